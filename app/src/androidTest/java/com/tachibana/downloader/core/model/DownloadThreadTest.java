@@ -42,6 +42,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
@@ -205,6 +206,76 @@ public class DownloadThreadTest extends AbstractTest
         assertEquals(info.totalBytes, downloadedBytes);
     }
 
+    @Test
+    public void testDownloadMultipart_split()
+    {
+        /* Write download info */
+        DownloadInfo info = new DownloadInfo(dir, linuxUrl, linuxName);
+        UUID id = info.id;
+        info.totalBytes = linuxSize;
+        info.hasMetadata = true;
+        info.setNumPieces(2);
+        /* Slow enough that the big piece is still running when the small one is finished */
+        info.speedLimit = 128;
+        repo.addInfo(info, new ArrayList<>());
+
+        /* A big piece and a small one */
+        long smallSize = 1024;
+        List<DownloadPiece> initPieces = repo.getPiecesById(id);
+        assertEquals(2, initPieces.size());
+        for (DownloadPiece piece : initPieces) {
+            if (piece.index == 0) {
+                piece.size = linuxSize - smallSize;
+            } else {
+                piece.startPos = piece.curBytes = linuxSize - smallSize;
+                piece.size = smallSize;
+            }
+            repo.updatePiece(piece);
+        }
+
+        /* Run download task and get result */
+        DownloadResult result = runTask(new DownloadThreadImpl(id, repo, pref, fs, systemFacade));
+        assertNotNull(result);
+
+        /* Read download info */
+        info = repo.getInfoById(id);
+        assertNotNull(info);
+        assertEquals(getStatus(info), DownloadResult.Status.FINISHED, result.status);
+
+        /* Read and check downloaded file */
+        File file = new File(dir.getPath(), linuxName);
+        try {
+            assertTrue(file.exists());
+
+            try (FileInputStream is = new FileInputStream(file)) {
+                assertEquals(linuxSize, file.length());
+                assertEquals(linuxSha256Hash, DigestUtils.makeSha256Hash(is));
+
+            } catch (FileNotFoundException e) {
+                fail("File not found");
+            } catch (IOException e) {
+                fail(Log.getStackTraceString(e));
+            }
+        } finally {
+            file.delete();
+        }
+
+        assertEquals(StatusCode.STATUS_SUCCESS, info.statusCode);
+
+        /* The idle thread has split the big piece, the pieces still cover the whole file */
+        List<DownloadPiece> pieces = repo.getPiecesById(id);
+        assertTrue(pieces.size() > initPieces.size());
+        Collections.sort(pieces, (a, b) -> Long.compare(a.startPos, b.startPos));
+        long pos = 0;
+        for (DownloadPiece piece : pieces) {
+            assertEquals(pos, piece.startPos);
+            assertEquals(StatusCode.STATUS_SUCCESS, piece.statusCode);
+            assertEquals(piece.size, info.getDownloadedBytes(piece));
+            pos += piece.size;
+        }
+        assertEquals(info.totalBytes, pos);
+    }
+
     @Test
     public void testDownload_withoutPartialSupport()
     {
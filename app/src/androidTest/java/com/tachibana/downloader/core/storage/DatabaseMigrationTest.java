@@ -22,6 +22,7 @@ package com.tachibana.downloader.core.storage;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
 import androidx.room.Room;
@@ -33,6 +34,7 @@ import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
 
 import com.tachibana.downloader.core.model.data.StatusCode;
+import com.tachibana.downloader.core.model.data.entity.DownloadBlocks;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.system.FileSystemFacade;
@@ -47,9 +49,11 @@ import java.io.IOException;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class DatabaseMigrationTest
@@ -132,6 +136,233 @@ public class DatabaseMigrationTest
         assertNull(db.downloadDao().getPiece(pieceIndex, infoId));
     }
 
+    @Test
+    public void testMigration5to6_StartPos() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 5);
+
+        UUID infoId = UUID.randomUUID();
+        UUID unknownSizeInfoId = UUID.randomUUID();
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(infoId, 100, 4, 5)), -1);
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(unknownSizeInfoId, -1, 1, 5)), -1);
+        for (int i = 0; i < 4; i++)
+            assertNotEquals(sqliteDb.insert("DownloadPiece", SQLiteDatabase.CONFLICT_REPLACE,
+                    makePieceValues(infoId, i, 25, 5)), -1);
+        assertNotEquals(sqliteDb.insert("DownloadPiece", SQLiteDatabase.CONFLICT_REPLACE,
+                makePieceValues(unknownSizeInfoId, 0, -1, 5)), -1);
+
+        sqliteDb.close();
+
+        helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 6, true,
+                DatabaseMigration.MIGRATION_5_6);
+
+        AppDatabase db = getMigratedRoomDatabase();
+
+        /* The pieces were equal before, so the start position is calculated from the index */
+        DownloadInfo info = db.downloadDao().getInfoById(infoId);
+        assertNotNull(info);
+        for (int i = 0; i < 4; i++) {
+            DownloadPiece piece = db.downloadDao().getPiece(i, infoId);
+            assertNotNull(piece);
+            assertEquals(i * 25, piece.startPos);
+            assertEquals(i * 25, info.pieceStartPos(piece));
+        }
+        DownloadPiece piece = db.downloadDao().getPiece(0, unknownSizeInfoId);
+        assertNotNull(piece);
+        assertEquals(0, piece.startPos);
+    }
+
+    @Test
+    public void testMigration6to7_AutoPieces() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 6);
+
+        UUID infoId = UUID.randomUUID();
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(infoId, 100, 4, 6)), -1);
+
+        sqliteDb.close();
+
+        helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 7, true,
+                DatabaseMigration.MIGRATION_6_7);
+
+        AppDatabase db = getMigratedRoomDatabase();
+
+        /* The existing downloads keep their number of pieces */
+        DownloadInfo info = db.downloadDao().getInfoById(infoId);
+        assertNotNull(info);
+        assertFalse(info.autoPieces);
+        assertEquals(4, info.getNumPieces());
+    }
+
+    @Test
+    public void testMigration7to8_Blocks() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 7);
+
+        UUID infoId = UUID.randomUUID();
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(infoId, 100, 4, 7)), -1);
+
+        sqliteDb.close();
+
+        sqliteDb = helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 8, true,
+                DatabaseMigration.MIGRATION_7_8);
+
+        /* The blocks are deleted along with the download */
+        try (Cursor c = sqliteDb.query("PRAGMA foreign_key_list(`DownloadBlocks`)")) {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals("DownloadInfo", c.getString(c.getColumnIndex("table")));
+            assertEquals("infoId", c.getString(c.getColumnIndex("from")));
+            assertEquals("id", c.getString(c.getColumnIndex("to")));
+            assertEquals("CASCADE", c.getString(c.getColumnIndex("on_delete")));
+        }
+        /* The foreign key column is the primary key, so it's indexed */
+        try (Cursor c = sqliteDb.query("PRAGMA index_list(`DownloadBlocks`)")) {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getInt(c.getColumnIndex("unique")));
+            /* The index of the primary key, the origin column is missing on older SQLite */
+            assertTrue(c.getString(c.getColumnIndex("name")).startsWith("sqlite_autoindex_DownloadBlocks"));
+        }
+
+        AppDatabase db = getMigratedRoomDatabase();
+
+        db.downloadDao().addBlocks(new DownloadBlocks(infoId, 100));
+        DownloadBlocks blocks = db.downloadDao().getBlocksById(infoId);
+        assertNotNull(blocks);
+        assertEquals(100, blocks.totalBytes);
+
+        DownloadInfo info = db.downloadDao().getInfoById(infoId);
+        assertNotNull(info);
+        db.downloadDao().deleteInfo(info);
+        assertNull(db.downloadDao().getBlocksById(infoId));
+    }
+
+    @Test
+    public void testMigration8to9_SpeedLimit() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 8);
+
+        UUID infoId = UUID.randomUUID();
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(infoId, 100, 4, 8)), -1);
+
+        sqliteDb.close();
+
+        helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 9, true,
+                DatabaseMigration.MIGRATION_8_9);
+
+        AppDatabase db = getMigratedRoomDatabase();
+
+        /* The existing downloads are unlimited */
+        DownloadInfo info = db.downloadDao().getInfoById(infoId);
+        assertNotNull(info);
+        assertEquals(0, info.speedLimit);
+    }
+
+    @Test
+    public void testMigration9to10_Priority() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 9);
+
+        UUID infoId = UUID.randomUUID();
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(infoId, 100, 4, 9)), -1);
+
+        sqliteDb.close();
+
+        helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 10, true,
+                DatabaseMigration.MIGRATION_9_10);
+
+        AppDatabase db = getMigratedRoomDatabase();
+
+        /* The existing downloads keep their place in the queue */
+        DownloadInfo info = db.downloadDao().getInfoById(infoId);
+        assertNotNull(info);
+        assertEquals(DownloadInfo.PRIORITY_NORMAL, info.priority);
+    }
+
+    @Test
+    public void testMigration10to11_QueueTurn() throws IOException
+    {
+        SupportSQLiteDatabase sqliteDb = helper.createDatabase(TEST_DATABASE_NAME, 10);
+
+        UUID infoId = UUID.randomUUID();
+        assertNotEquals(sqliteDb.insert("DownloadInfo", SQLiteDatabase.CONFLICT_REPLACE,
+                makeInfoValues(infoId, 100, 4, 10)), -1);
+
+        sqliteDb.close();
+
+        helper.runMigrationsAndValidate(TEST_DATABASE_NAME, 11, true,
+                DatabaseMigration.MIGRATION_10_11);
+
+        AppDatabase db = getMigratedRoomDatabase();
+
+        /* The existing downloads haven't had a turn yet */
+        DownloadInfo info = db.downloadDao().getInfoById(infoId);
+        assertNotNull(info);
+        assertEquals(0, info.queueTurn);
+    }
+
+    /*
+     * The DownloadInfo row of the given database version
+     */
+
+    private ContentValues makeInfoValues(UUID infoId, long totalBytes, int numPieces, int version)
+    {
+        ContentValues values = new ContentValues();
+        values.put("id", infoId.toString());
+        values.put("dirPath", fs.getDefaultDownloadPath());
+        values.put("url", "http://example.org");
+        values.put("fileName", "example");
+        values.put("mimeType", "application/octet-stream");
+        values.put("totalBytes", totalBytes);
+        values.put("numPieces", numPieces);
+        values.put("statusCode", StatusCode.STATUS_PAUSED);
+        values.put("unmeteredConnectionsOnly", 0);
+        values.put("retry", 1);
+        values.put("partialSupport", 1);
+        values.put("dateAdded", System.currentTimeMillis());
+        values.put("visibility", DownloadInfo.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
+        values.put("hasMetadata", 1);
+        values.put("numFailed", 0);
+        values.put("retryAfter", 0);
+        values.put("lastModify", System.currentTimeMillis());
+        if (version >= 7)
+            values.put("autoPieces", 0);
+        if (version >= 9)
+            values.put("speedLimit", 0);
+        if (version >= 10)
+            values.put("priority", DownloadInfo.PRIORITY_NORMAL);
+        if (version >= 11)
+            values.put("queueTurn", 0);
+
+        return values;
+    }
+
+    /*
+     * The DownloadPiece row of the given database version
+     */
+
+    private ContentValues makePieceValues(UUID infoId, int pieceIndex, long size, int version)
+    {
+        ContentValues values = new ContentValues();
+        values.put("pieceIndex", pieceIndex);
+        values.put("infoId", infoId.toString());
+        values.put("size", size);
+        values.put("curBytes", 0);
+        values.put("statusCode", StatusCode.STATUS_PAUSED);
+        values.put("speed", 0);
+        if (version >= 6)
+            values.put("startPos", pieceIndex * size);
+
+        return values;
+    }
+
     private AppDatabase getMigratedRoomDatabase()
     {
         AppDatabase db = Room.databaseBuilder(context,
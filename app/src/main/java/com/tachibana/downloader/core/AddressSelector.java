@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.utils.DateUtils;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Spreads the connections to a host across its resolved addresses,
+ * e.g. across the edge nodes of a CDN, instead of the single address that
+ * the HTTP client picks. The addresses are raced in the Happy Eyeballs way
+ * (RFC 8305): the attempts alternate between IPv6 and IPv4 and start
+ * with a short delay one after another. After the first address connects,
+ * the rest are given a few times its connect time; the addresses that
+ * haven't connected by then are dropped as slow. The addresses that fail
+ * to connect or fail the request are dropped for a while. The HTTP clients
+ * make their own connections, so the race sockets are closed and only
+ * the result is kept.
+ */
+
+public class AddressSelector
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = AddressSelector.class.getSimpleName();
+
+    /* The "Connection Attempt Delay" of RFC 8305 */
+    private static final long CONNECTION_ATTEMPT_DELAY = 250;
+    /* The addresses that connect this many times slower than the fastest are dropped */
+    private static final int SLOW_FACTOR = 3;
+    /* The race result lives as long as the resolved addresses */
+    private static final long RACE_EXPIRY = 60 * DateUtils.SECOND_IN_MILLIS;
+    /* The failed address isn't used for this time */
+    private static final long PENALTY_TIME = 60 * DateUtils.SECOND_IN_MILLIS;
+    private static final int MAX_HOSTS = 128;
+
+    private static AddressSelector selector;
+
+    private final HashMap<String, Host> hosts = new HashMap<>();
+    private Resolver resolver;
+    private SocketTuner socketTuner = SocketTuner.getInstance();
+    private ExecutorService executor = Executors.newCachedThreadPool();
+
+    interface Resolver
+    {
+        InetAddress[] lookup(@NonNull String host) throws UnknownHostException;
+    }
+
+    private static class Host
+    {
+        InetAddress[] addresses;
+        /* Without the slow and failed addresses, the fastest first */
+        List<InetAddress> usable = Collections.emptyList();
+        HashMap<InetAddress, Long> penalties = new HashMap<>();
+        long raceTime;
+        /* Another connection races the addresses, without holding the lock */
+        boolean racing;
+
+        boolean needRace(InetAddress[] addresses, long now)
+        {
+            if (this.addresses == null || raceTime + RACE_EXPIRY <= now)
+                return true;
+
+            HashSet<InetAddress> raced = new HashSet<>();
+            Collections.addAll(raced, this.addresses);
+            for (InetAddress address : addresses) {
+                if (!raced.contains(address))
+                    return true;
+            }
+
+            return false;
+        }
+
+        void setRace(InetAddress[] addresses, Race race, long now)
+        {
+            this.addresses = addresses;
+            usable = race.usable;
+            raceTime = now;
+            for (InetAddress address : race.failed)
+                penalties.put(address, now + PENALTY_TIME);
+        }
+
+        List<InetAddress> getUsable(long now)
+        {
+            Iterator<Map.Entry<InetAddress, Long>> it = penalties.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue() <= now)
+                    it.remove();
+            }
+            if (penalties.isEmpty())
+                return usable;
+
+            ArrayList<InetAddress> list = new ArrayList<>(usable);
+            list.removeAll(penalties.keySet());
+
+            return list;
+        }
+    }
+
+    private static class Attempt
+    {
+        final InetAddress address;
+        final long connectTime;
+
+        Attempt(InetAddress address, long connectTime)
+        {
+            this.address = address;
+            this.connectTime = connectTime;
+        }
+    }
+
+    private static class Race
+    {
+        /* The fastest first */
+        final List<InetAddress> usable;
+        final HashSet<InetAddress> failed;
+
+        Race(List<InetAddress> usable, HashSet<InetAddress> failed)
+        {
+            this.usable = usable;
+            this.failed = failed;
+        }
+    }
+
+    /*
+     * The sockets of the race attempts, which are closed when the race is over
+     */
+
+    private static class RaceSockets
+    {
+        private final ArrayList<Socket> sockets = new ArrayList<>();
+        private boolean closed;
+
+        synchronized void add(Socket socket) throws IOException
+        {
+            if (closed)
+                throw new SocketException("The race is over");
+            sockets.add(socket);
+        }
+
+        synchronized void close()
+        {
+            closed = true;
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+
+                } catch (IOException e) {
+                    /* Ignore */
+                }
+            }
+        }
+    }
+
+    public synchronized static AddressSelector getInstance()
+    {
+        if (selector == null)
+            selector = new AddressSelector(DnsCache.getInstance()::lookup);
+
+        return selector;
+    }
+
+    AddressSelector(@NonNull Resolver resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    /*
+     * Returns the address for the connection with the given number (e.g. the piece number)
+     * or null if the host has only one address or all of them failed.
+     * The first call for the host races its addresses, which takes
+     * a few round-trip times
+     */
+
+    @Nullable
+    public InetAddress select(@NonNull String hostName, int port, int slot, int timeout)
+    {
+        InetAddress[] addresses;
+        try {
+            addresses = resolver.lookup(hostName);
+
+        } catch (UnknownHostException e) {
+            return null;
+        }
+        if (addresses.length < 2)
+            return null;
+
+        Host host = getHost(hostName);
+        boolean needRace;
+        synchronized (host) {
+            try {
+                /* The concurrent connections to the host wait for the same race */
+                while (host.racing)
+                    host.wait();
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            needRace = host.needRace(addresses, DateUtils.elapsedRealtime());
+            host.racing = needRace;
+        }
+
+        if (needRace) {
+            Race race = null;
+            try {
+                race = race(hostName, addresses, port, timeout);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+            } finally {
+                synchronized (host) {
+                    if (race != null)
+                        host.setRace(addresses, race, DateUtils.elapsedRealtime());
+                    host.racing = false;
+                    host.notifyAll();
+                }
+            }
+            if (race == null)
+                return null;
+        }
+
+        synchronized (host) {
+            List<InetAddress> usable = host.getUsable(DateUtils.elapsedRealtime());
+            if (usable.isEmpty())
+                return null;
+
+            return usable.get(slot % usable.size());
+        }
+    }
+
+    /*
+     * The connection to the address of the host failed
+     */
+
+    public void onError(@NonNull String hostName, @NonNull InetAddress address)
+    {
+        Host host = getHost(hostName);
+        synchronized (host) {
+            host.penalties.put(address, DateUtils.elapsedRealtime() + PENALTY_TIME);
+        }
+    }
+
+    private Host getHost(String hostName)
+    {
+        synchronized (hosts) {
+            Host host = hosts.get(hostName);
+            if (host == null) {
+                if (hosts.size() >= MAX_HOSTS)
+                    hosts.clear();
+                host = new Host();
+                hosts.put(hostName, host);
+            }
+
+            return host;
+        }
+    }
+
+    private Race race(String hostName, InetAddress[] addresses, int port, int timeout)
+            throws InterruptedException
+    {
+        List<InetAddress> order = interleave(addresses);
+        HashMap<Future<Attempt>, InetAddress> futures = new HashMap<>();
+        ExecutorCompletionService<Attempt> attempts = new ExecutorCompletionService<>(executor);
+        ArrayList<Attempt> connected = new ArrayList<>();
+        HashSet<InetAddress> failed = new HashSet<>();
+        RaceSockets sockets = new RaceSockets();
+
+        long start = DateUtils.elapsedRealtime();
+        long raceEnd = (timeout > 0 ? start + timeout : Long.MAX_VALUE);
+        long nextAttemptTime = start;
+        /* Set when the first address connects */
+        long deadline = -1;
+        int next = 0;
+        int pending = 0;
+        try {
+            while (true) {
+                long now = DateUtils.elapsedRealtime();
+                /*
+                 * Start the next attempt on schedule, or all the remaining ones
+                 * after the first address has connected, to measure them
+                 */
+                while (next < order.size() && (deadline != -1 || now >= nextAttemptTime)) {
+                    InetAddress address = order.get(next++);
+                    futures.put(attempts.submit(() -> connect(address, port, timeout, sockets)),
+                            address);
+                    pending++;
+                    nextAttemptTime = now + CONNECTION_ATTEMPT_DELAY;
+                    if (deadline == -1)
+                        break;
+                }
+                long end = (deadline == -1 ? raceEnd : deadline);
+                if (pending == 0 || now >= end)
+                    break;
+
+                long wakeUp = (deadline == -1 && next < order.size() ?
+                        Math.min(nextAttemptTime, end) :
+                        end);
+                Future<Attempt> f = attempts.poll(Math.max(wakeUp - now, 0), TimeUnit.MILLISECONDS);
+                if (f == null)
+                    continue;
+                pending--;
+                try {
+                    Attempt attempt = f.get();
+                    connected.add(attempt);
+                    if (deadline == -1)
+                        deadline = DateUtils.elapsedRealtime() +
+                                Math.max(attempt.connectTime * SLOW_FACTOR, CONNECTION_ATTEMPT_DELAY);
+
+                } catch (ExecutionException e) {
+                    failed.add(futures.get(f));
+                    /* Don't wait for the delay after a failure */
+                    nextAttemptTime = DateUtils.elapsedRealtime();
+                }
+            }
+
+        } finally {
+            /* Abort the attempts that are still connecting */
+            sockets.close();
+        }
+
+        Collections.sort(connected, (a, b) -> Long.compare(a.connectTime, b.connectTime));
+        /* The TCP handshake is a single round trip */
+        if (!connected.isEmpty())
+            socketTuner.onRoundTrip(hostName, connected.get(0).connectTime);
+        ArrayList<InetAddress> usable = new ArrayList<>();
+        for (Attempt attempt : connected)
+            usable.add(attempt.address);
+
+        return new Race(usable, failed);
+    }
+
+    private static Attempt connect(InetAddress address,
+                                   int port,
+                                   int timeout,
+                                   RaceSockets sockets) throws IOException
+    {
+        try (Socket socket = new Socket()) {
+            sockets.add(socket);
+            long start = DateUtils.elapsedRealtime();
+            socket.connect(new InetSocketAddress(address, port), timeout);
+
+            return new Attempt(address, DateUtils.elapsedRealtime() - start);
+        }
+    }
+
+    /*
+     * Alternate the address families, starting with the family
+     * of the first address from the resolver (RFC 8305, section 4)
+     */
+
+    static List<InetAddress> interleave(InetAddress[] addresses)
+    {
+        ArrayList<InetAddress> first = new ArrayList<>();
+        ArrayList<InetAddress> second = new ArrayList<>();
+        boolean firstIsIpv6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsIpv6)
+                first.add(address);
+            else
+                second.add(address);
+        }
+
+        ArrayList<InetAddress> order = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size())
+                order.add(first.get(i));
+            if (i < second.size())
+                order.add(second.get(i));
+        }
+
+        return order;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counters of the network connections of all downloads, since the app start.
+ */
+
+public class ConnectionMetrics
+{
+    private static ConnectionMetrics metrics;
+
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+    private final AtomicLong tlsResumed = new AtomicLong();
+    private final AtomicLong tunedSockets = new AtomicLong();
+    private final AtomicLong raisedReceiveBuffers = new AtomicLong();
+    private volatile int lastReceiveBuffer;
+    private final AtomicLong http2Responses = new AtomicLong();
+    private final AtomicLong http1Responses = new AtomicLong();
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private final AtomicLong copiedCpuTime = new AtomicLong();
+    private final AtomicLong copiedTlsBytes = new AtomicLong();
+    private final AtomicLong copiedTlsCpuTime = new AtomicLong();
+    private final AtomicLong directBytes = new AtomicLong();
+    private final AtomicLong directCpuTime = new AtomicLong();
+
+    public synchronized static ConnectionMetrics getInstance()
+    {
+        if (metrics == null)
+            metrics = new ConnectionMetrics();
+
+        return metrics;
+    }
+
+    void onTlsHandshake(boolean resumed)
+    {
+        tlsHandshakes.incrementAndGet();
+        if (resumed)
+            tlsResumed.incrementAndGet();
+    }
+
+    /*
+     * The socket options are set; the receive buffer is raised to the requested
+     * size (0 if it isn't) and the kernel gave the effective one
+     */
+
+    void onReceiveBuffer(int requestedSize, int effectiveSize)
+    {
+        tunedSockets.incrementAndGet();
+        if (requestedSize > 0)
+            raisedReceiveBuffers.incrementAndGet();
+        lastReceiveBuffer = effectiveSize;
+    }
+
+    /*
+     * The response is received through the transport that
+     * negotiates the protocol, over HTTP/2 or the fallback HTTP/1.1
+     */
+
+    void onResponse(boolean http2)
+    {
+        if (http2)
+            http2Responses.incrementAndGet();
+        else
+            http1Responses.incrementAndGet();
+    }
+
+    /*
+     * The response data is written to the file, taking the given CPU time (ns)
+     * of the thread. The data is either read into the direct buffers, which
+     * are written to the file without copying, or copied through the heap.
+     * The decryption of TLS costs much more than the copying, so the copied
+     * data is counted apart for TLS and plain HTTP. Only plain HTTP uses the
+     * direct buffers, and it's compared with the copied plain HTTP data
+     */
+
+    public void onTransfer(boolean direct, boolean tls, long bytes, long cpuTime)
+    {
+        if (bytes <= 0 || cpuTime < 0)
+            return;
+
+        if (direct) {
+            directBytes.addAndGet(bytes);
+            directCpuTime.addAndGet(cpuTime);
+        } else if (tls) {
+            copiedTlsBytes.addAndGet(bytes);
+            copiedTlsCpuTime.addAndGet(cpuTime);
+        } else {
+            copiedBytes.addAndGet(bytes);
+            copiedCpuTime.addAndGet(cpuTime);
+        }
+    }
+
+    public long getTlsHandshakes()
+    {
+        return tlsHandshakes.get();
+    }
+
+    public long getTlsResumed()
+    {
+        return tlsResumed.get();
+    }
+
+    public long getTunedSockets()
+    {
+        return tunedSockets.get();
+    }
+
+    public long getRaisedReceiveBuffers()
+    {
+        return raisedReceiveBuffers.get();
+    }
+
+    /*
+     * Returns the receive buffer size (bytes) of the last tuned socket
+     */
+
+    public int getLastReceiveBuffer()
+    {
+        return lastReceiveBuffer;
+    }
+
+    public long getHttp2Responses()
+    {
+        return http2Responses.get();
+    }
+
+    public long getHttp1Responses()
+    {
+        return http1Responses.get();
+    }
+
+    /*
+     * Returns the CPU time (ms) spent to receive and write 1 GiB of data through
+     * the direct buffers or the heap, over TLS or plain HTTP (the direct buffers
+     * are plain HTTP only), or -1 if there was no such data
+     */
+
+    public long getCpuTimePerGb(boolean direct, boolean tls)
+    {
+        long bytes, cpuTime;
+        if (direct) {
+            bytes = directBytes.get();
+            cpuTime = directCpuTime.get();
+        } else if (tls) {
+            bytes = copiedTlsBytes.get();
+            cpuTime = copiedTlsCpuTime.get();
+        } else {
+            bytes = copiedBytes.get();
+            cpuTime = copiedCpuTime.get();
+        }
+        if (bytes == 0)
+            return -1;
+
+        return TimeUnit.NANOSECONDS.toMillis((long)(cpuTime * ((double)(1L << 30) / bytes)));
+    }
+
+    /*
+     * Returns the percentage of the TLS handshakes that resumed
+     * a cached session or -1 if there were no handshakes
+     */
+
+    public int getTlsResumptionRate()
+    {
+        long handshakes = tlsHandshakes.get();
+        if (handshakes == 0)
+            return -1;
+
+        return (int)(tlsResumed.get() * 100 / handshakes);
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "ConnectionMetrics{" +
+                "tlsHandshakes=" + tlsHandshakes +
+                ", tlsResumed=" + tlsResumed +
+                ", tlsResumptionRate=" + getTlsResumptionRate() + "%" +
+                ", tunedSockets=" + tunedSockets +
+                ", raisedReceiveBuffers=" + raisedReceiveBuffers +
+                ", lastReceiveBuffer=" + lastReceiveBuffer +
+                ", http2Responses=" + http2Responses +
+                ", http1Responses=" + http1Responses +
+                ", copiedBytes=" + copiedBytes +
+                ", copiedCpuTimePerGb=" + getCpuTimePerGb(false, false) + "ms" +
+                ", copiedTlsBytes=" + copiedTlsBytes +
+                ", copiedTlsCpuTimePerGb=" + getCpuTimePerGb(false, true) + "ms" +
+                ", directBytes=" + directBytes +
+                ", directCpuTimePerGb=" + getCpuTimePerGb(true, false) + "ms" +
+                '}';
+    }
+}
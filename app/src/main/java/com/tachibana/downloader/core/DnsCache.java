@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.utils.DateUtils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The in-process cache of the resolved host addresses, shared by all
+ * connections of all downloads. The platform resolver doesn't tell the real TTL,
+ * so the addresses are kept for a fixed time. The hosts of the waiting downloads
+ * can be resolved in advance, which also warms the system resolver cache
+ * used by the HTTP client.
+ */
+
+public class DnsCache
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = DnsCache.class.getSimpleName();
+
+    private static final long TTL = 60 * DateUtils.SECOND_IN_MILLIS;
+    private static final int MAX_ENTRIES = 128;
+    /* A slow lookup shouldn't hold up the others */
+    private static final int PREFETCH_THREADS = 2;
+
+    private static DnsCache cache;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private ScheduledExecutorService executor;
+
+    private static class Entry
+    {
+        final InetAddress[] addresses;
+        final long expireTime;
+
+        Entry(InetAddress[] addresses, long expireTime)
+        {
+            this.addresses = addresses;
+            this.expireTime = expireTime;
+        }
+    }
+
+    public synchronized static DnsCache getInstance()
+    {
+        if (cache == null)
+            cache = new DnsCache();
+
+        return cache;
+    }
+
+    /*
+     * Returns the cached addresses of the host or resolves them
+     */
+
+    @NonNull
+    public InetAddress[] lookup(@NonNull String host) throws UnknownHostException
+    {
+        InetAddress[] addresses = getCached(host);
+        if (addresses != null)
+            return addresses;
+
+        return resolve(host);
+    }
+
+    /*
+     * Returns the cached addresses of the host or null if they're missing or expired
+     */
+
+    public InetAddress[] getCached(@NonNull String host)
+    {
+        Entry entry = entries.get(host.toLowerCase());
+        if (entry == null || entry.expireTime <= DateUtils.elapsedRealtime())
+            return null;
+
+        return entry.addresses;
+    }
+
+    public interface LookupCallback
+    {
+        /* Either the addresses or the error is null */
+        void onLookup(InetAddress[] addresses, UnknownHostException error);
+    }
+
+    /*
+     * Returns the cached addresses of the host or resolves them in the background
+     * and passes them to the callback, on the resolver thread.
+     * For the callers that mustn't block, e.g. an event loop
+     */
+
+    public void lookup(@NonNull String host, @NonNull LookupCallback callback)
+    {
+        InetAddress[] addresses = getCached(host);
+        if (addresses != null) {
+            callback.onLookup(addresses, null);
+            return;
+        }
+
+        getExecutor().execute(() -> {
+            try {
+                callback.onLookup(lookup(host), null);
+
+            } catch (UnknownHostException e) {
+                callback.onLookup(null, e);
+            }
+        });
+    }
+
+    /*
+     * Resolve the host in the background, if it isn't cached
+     */
+
+    public void prefetch(@NonNull String host)
+    {
+        prefetch(host, 0);
+    }
+
+    /*
+     * Resolve the host in the background after the given delay (in ms),
+     * e.g. shortly before the download is retried
+     */
+
+    public void prefetch(@NonNull String host, long delay)
+    {
+        if (host.isEmpty())
+            return;
+
+        getExecutor().schedule(() -> {
+            if (getCached(host) != null)
+                return;
+            try {
+                resolve(host);
+
+            } catch (UnknownHostException e) {
+                /* The download will report it */
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Forget the addresses, e.g. if none of them can be connected to
+     */
+
+    public void invalidate(@NonNull String host)
+    {
+        entries.remove(host.toLowerCase());
+    }
+
+    private InetAddress[] resolve(String host) throws UnknownHostException
+    {
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        long now = DateUtils.elapsedRealtime();
+        if (entries.size() >= MAX_ENTRIES)
+            removeExpired(now);
+        if (entries.size() < MAX_ENTRIES)
+            entries.put(host.toLowerCase(), new Entry(addresses, now + TTL));
+        else
+            Log.w(TAG, "Cache is full, " + host + " isn't cached");
+
+        return addresses;
+    }
+
+    private void removeExpired(long now)
+    {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expireTime <= now)
+                it.remove();
+        }
+    }
+
+    private synchronized ScheduledExecutorService getExecutor()
+    {
+        if (executor == null)
+            executor = Executors.newScheduledThreadPool(PREFETCH_THREADS);
+
+        return executor;
+    }
+}
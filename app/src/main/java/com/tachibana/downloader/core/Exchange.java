@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/*
+ * A single request and its response, made by the transport.
+ * The request is sent when the response is asked for the first time.
+ */
+
+public interface Exchange
+{
+    /*
+     * Returns the request URL with the host name, even if it's connected to an address
+     */
+
+    URL getUrl();
+
+    /* Request */
+
+    void setMethod(@NonNull String method);
+
+    void setRequestHeader(@NonNull String name, String value);
+
+    void addRequestHeader(@NonNull String name, String value);
+
+    String getRequestHeader(@NonNull String name);
+
+    /* Response */
+
+    int getResponseCode() throws IOException;
+
+    String getResponseMessage() throws IOException;
+
+    String getHeaderField(@NonNull String name);
+
+    int getHeaderFieldInt(@NonNull String name, int defaultValue);
+
+    String getContentType();
+
+    /*
+     * Returns the response body. Reading it to the end and closing it
+     * leaves the connection for the following requests
+     */
+
+    InputStream getBody() throws IOException;
+
+    /*
+     * Returns the body of the error response or null if there is none
+     */
+
+    InputStream getErrorBody();
+
+    /*
+     * Aborts the request and the response; can be called from another thread.
+     * The blocked reads of the body return immediately and
+     * the connection isn't reused
+     */
+
+    void cancel();
+}
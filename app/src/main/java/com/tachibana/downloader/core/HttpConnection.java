@@ -23,40 +23,51 @@ package com.tachibana.downloader.core;
 
 import android.webkit.CookieManager;
 
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.utils.DateUtils;
+
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 
-import javax.net.ssl.HttpsURLConnection;
-
 import static android.text.format.DateUtils.SECOND_IN_MILLIS;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
 import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
 
 /*
- * The wrapper for HttpUrlConnection.
+ * Makes the request through the transport from TransportHelper, following the redirects.
  */
 
 public class HttpConnection implements Runnable
 {
     /* Can't be more than 7 */
-    private static final int MAX_REDIRECTS = 5;
+    public static final int MAX_REDIRECTS = 5;
+    /* Larger redirect bodies aren't worth reading to keep the connection */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
     public static final int DEFAULT_TIMEOUT = (int)(20 * SECOND_IN_MILLIS);
 
     private URL url;
-    private TLSSocketFactory socketFactory;
+    private Transport transport;
     private Listener listener;
     private int timeout = DEFAULT_TIMEOUT;
     private String referer;
+    private boolean keepAlive;
+    private URL cookiesUrl;
+    private String cookies;
+    private int addressSlot = -1;
+    private AddressSelector addressSelector = AddressSelector.getInstance();
+    private SocketTuner socketTuner = SocketTuner.getInstance();
 
     public interface Listener
     {
-        void onConnectionCreated(HttpURLConnection conn);
+        void onConnectionCreated(Exchange conn);
 
-        void onResponseHandle(HttpURLConnection conn, int code, String message);
+        void onResponseHandle(Exchange conn, int code, String message);
 
         void onMovedPermanently(String newUrl);
 
@@ -68,7 +79,8 @@ public class HttpConnection implements Runnable
     public HttpConnection(String url) throws MalformedURLException, GeneralSecurityException
     {
         this.url = new URL(url);
-        this.socketFactory = new TLSSocketFactory();
+        /* Fail early if the default transport can't be created */
+        TransportHelper.getDefaultTransport();
     }
 
     public void setReferer(String referer) { this.referer = referer; }
@@ -77,6 +89,58 @@ public class HttpConnection implements Runnable
         this.listener = listener;
     }
 
+    /*
+     * Don't close the connection after the response, so that the following
+     * requests to the same host can reuse it. The response body must be either
+     * read to the end and closed or aborted with cancel() by the listener,
+     * otherwise the server may continue streaming it
+     */
+
+    public void setKeepAlive(boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    /*
+     * Use the given cookies (null if none) for the initial URL instead of
+     * asking the cookie store. The redirects to other URLs still ask it
+     */
+
+    public void setCookies(String cookies)
+    {
+        this.cookies = cookies;
+        this.cookiesUrl = url;
+    }
+
+    /*
+     * Use the given transport for all requests instead of the default one
+     */
+
+    public void setTransport(Transport transport)
+    {
+        this.transport = transport;
+    }
+
+    /*
+     * Connect to one of the resolved addresses of the host, chosen by the given
+     * non-negative connection number (e.g. the piece number), so that the connections
+     * with different numbers are spread across the addresses
+     */
+
+    public void setAddressSlot(int slot)
+    {
+        this.addressSlot = slot;
+    }
+
+    /*
+     * Returns the URL with the host name, after the redirects followed so far
+     */
+
+    public URL getUrl()
+    {
+        return url;
+    }
+
     /*
      * The non-negative number of milliseconds to wait before the connection timed out.
      * Zero is interpreted as an infinite timeout
@@ -92,60 +156,130 @@ public class HttpConnection implements Runnable
     {
         int redirectionCount = 0;
         while (redirectionCount++ < MAX_REDIRECTS) {
-            HttpURLConnection conn = null;
+            Exchange conn = null;
+            boolean reusable = false;
+            InetAddress address = null;
             try {
-                conn = (HttpURLConnection)url.openConnection();
-                conn.setInstanceFollowRedirects(false);
-                conn.setConnectTimeout(timeout);
-                conn.setReadTimeout(timeout);
+                if (addressSlot >= 0)
+                    address = addressSelector.select(url.getHost(),
+                            (url.getPort() == -1 ? url.getDefaultPort() : url.getPort()),
+                            addressSlot, timeout);
+                Transport hopTransport = (transport == null ?
+                        TransportHelper.getDefaultTransport() :
+                        transport);
+                conn = hopTransport.newExchange(url, address, timeout);
 
                 // Get the cookies for the current domain.
-                String cookiesString = CookieManager.getInstance().getCookie(url.toString());
+                String cookiesString = (url == cookiesUrl ?
+                        cookies :
+                        CookieManager.getInstance().getCookie(url.toString()));
 
                 // Only add the cookies if they are not null.
                 if (cookiesString != null) {
                     // Add the cookies to the header property.
-                    conn.setRequestProperty("Cookie", cookiesString);
+                    conn.setRequestHeader("Cookie", cookiesString);
                 }
 
                 if (referer != null && !referer.isEmpty()) {
-                    conn.setRequestProperty("Referer", referer);
+                    conn.setRequestHeader("Referer", referer);
                 }
 
-                if (conn instanceof HttpsURLConnection)
-                    ((HttpsURLConnection) conn).setSSLSocketFactory(socketFactory);
-
                 if (listener != null)
                     listener.onConnectionCreated(conn);
 
+                long requestTime = DateUtils.elapsedRealtime();
                 int responseCode = conn.getResponseCode();
-                switch (responseCode) {
-                    case HTTP_MOVED_PERM:
-                    case HTTP_MOVED_TEMP:
-                    case HTTP_SEE_OTHER:
-                        String location = conn.getHeaderField("Location");
-                        url = new URL(url, location);
-                        if (responseCode == HTTP_MOVED_PERM && listener != null)
-                            listener.onMovedPermanently(url.toString());
-                        continue;
-                    default:
-                        if (listener != null)
-                            listener.onResponseHandle(conn, responseCode, conn.getResponseMessage());
-                        return;
+                /* At least one round trip, more if the connection is new */
+                socketTuner.onRoundTrip(url.getHost(), DateUtils.elapsedRealtime() - requestTime);
+                URL redirectUrl = getRedirectUrl(url, responseCode, conn.getHeaderField("Location"));
+                if (redirectUrl != null) {
+                    url = redirectUrl;
+                    if (responseCode == HTTP_MOVED_PERM && listener != null)
+                        listener.onMovedPermanently(url.toString());
+                    reusable = keepAlive && drainResponse(conn);
+                    continue;
                 }
+                if (listener != null)
+                    listener.onResponseHandle(conn, responseCode, conn.getResponseMessage());
+                reusable = keepAlive;
+                return;
+
+            } catch (GeneralSecurityException e) {
+                if (listener != null)
+                    listener.onIOException(new IOException(e));
+                return;
 
             } catch (IOException e) {
+                if (address != null)
+                    addressSelector.onError(url.getHost(), address);
                 if (listener != null)
                     listener.onIOException(e);
                 return;
 
             } finally {
-                if (conn != null)
-                    conn.disconnect();
+                if (conn != null && !reusable)
+                    conn.cancel();
             }
         }
 
         if (listener != null)
             listener.onTooManyRedirects();
     }
+
+    /*
+     * Returns the URL to follow for the given response,
+     * or null if it's not a redirect
+     */
+
+    public static URL getRedirectUrl(@NonNull URL url, int code, String location)
+            throws MalformedURLException
+    {
+        switch (code) {
+            case HTTP_MOVED_PERM:
+            case HTTP_MOVED_TEMP:
+            case HTTP_SEE_OTHER:
+                return (location == null ? null : new URL(url, location));
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * Read the rest of the response body to return the connection
+     * to the pool. Returns false if the body is too large or broken
+     */
+
+    private boolean drainResponse(Exchange conn)
+    {
+        InputStream in = null;
+        try {
+            in = conn.getBody();
+            byte[] buffer = new byte[8192];
+            int total = 0;
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                total += len;
+                if (total > MAX_DRAIN_BYTES) {
+                    /* Don't let close() read the rest */
+                    conn.cancel();
+                    return false;
+                }
+            }
+
+            return true;
+
+        } catch (IOException e) {
+            return false;
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+
+                } catch (IOException e) {
+                    /* Ignore */
+                }
+            }
+        }
+    }
 }
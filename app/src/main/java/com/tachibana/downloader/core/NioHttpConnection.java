@@ -0,0 +1,919 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import android.os.Debug;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.utils.DateUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/*
+ * One HTTP/1.1 GET request over a non-blocking channel (with SSLEngine for HTTPS),
+ * driven by a selector loop. The connection is closed after the response
+ * and the redirects aren't followed. The listener is called on the loop thread
+ * and mustn't block; the response body is passed to it as it arrives.
+ * Over plain HTTP the body is read into a direct buffer, so the listener can
+ * write it to a FileChannel without the payload ever being copied to the heap.
+ * The body can have Content-Length, be chunked or end with the connection close.
+ * The connection isn't reused, since it streams the consecutive pieces of
+ * the download for as long as they are pending. The connection is always direct,
+ * so it isn't used if there is a system proxy (see TransportHelper.hasProxy).
+ */
+
+public class NioHttpConnection implements SelectorLoop.Handler
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = NioHttpConnection.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADERS_SIZE = 64 * 1024;
+    private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SelectorLoop loop;
+    private final URL url;
+    private final String host;
+    private final int port;
+    private final boolean https;
+    private final int timeout;
+    private final LinkedHashMap<String, String> requestHeaders = new LinkedHashMap<>();
+    private Listener listener;
+    private DnsCache dnsCache = DnsCache.getInstance();
+    private SocketTuner socketTuner = SocketTuner.getInstance();
+    private ConnectionMetrics metrics = ConnectionMetrics.getInstance();
+
+    private InetAddress[] addresses;
+    private int nextAddress;
+    private IOException connectError;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SSLEngine engine;
+    /* The request bytes, the TLS records to send, the received records and the received data */
+    private ByteBuffer request;
+    private ByteBuffer netOut;
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private boolean connecting;
+    private boolean handshaking;
+    /* The handshake waits for its delegated tasks, which run on a worker thread */
+    private boolean runningTasks;
+    private boolean requestSent;
+    private ByteArrayOutputStream headers = new ByteArrayOutputStream();
+    private int headersEndMatched;
+    private boolean headersReceived;
+    /* -1 if the body ends with the connection */
+    private long bodyRemaining = -1;
+    private boolean chunked;
+    /* The bytes left in the current chunk, -1 while reading a chunk size or the trailer */
+    private long chunkRemaining = -1;
+    /* The chunk data is followed by CRLF */
+    private boolean chunkEndPending;
+    private boolean trailer;
+    private StringBuilder chunkLine = new StringBuilder();
+    private long bodyBytes;
+    private boolean paused;
+    private SelectorLoop.Timer resumeTimer;
+    private SelectorLoop.Timer timeoutTimer;
+    /* Each address is given the timeout to connect */
+    private SelectorLoop.Timer connectTimer;
+    private long lastActivityTime;
+    private long connectTime;
+    private long requestTime;
+    private volatile boolean closed;
+
+    public interface Listener
+    {
+        /*
+         * The header names are in lower case.
+         * Returns false to close the connection without reading the body
+         */
+        boolean onResponse(int code, @NonNull String message, @NonNull Map<String, String> headers);
+
+        /* The data is valid only during the call */
+        void onData(@NonNull ByteBuffer data);
+
+        /* The whole body is received, the connection is closed */
+        void onComplete();
+
+        /* The connection is closed */
+        void onError(@NonNull IOException e);
+    }
+
+    public NioHttpConnection(@NonNull SelectorLoop loop,
+                             @NonNull URL url,
+                             int timeout) throws MalformedURLException
+    {
+        String protocol = url.getProtocol().toLowerCase();
+        if (!protocol.equals("http") && !protocol.equals("https"))
+            throw new MalformedURLException("Unsupported protocol: " + protocol);
+
+        this.loop = loop;
+        this.url = url;
+        this.host = url.getHost();
+        this.port = (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+        this.https = protocol.equals("https");
+        this.timeout = timeout;
+    }
+
+    public URL getUrl()
+    {
+        return url;
+    }
+
+    public void setListener(@NonNull Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /*
+     * Must be called before start(). The connection always sends "Connection: close"
+     */
+
+    public void setRequestHeader(@NonNull String name, String value)
+    {
+        if (value == null)
+            requestHeaders.remove(name);
+        else
+            requestHeaders.put(name, value);
+    }
+
+    public void start()
+    {
+        loop.execute(() -> {
+            if (closed)
+                return;
+            touch();
+            if (timeout > 0)
+                timeoutTimer = loop.schedule(this::checkTimeout, timeout);
+
+            dnsCache.lookup(host, (addresses, error) -> loop.execute(() -> {
+                if (closed)
+                    return;
+                if (error != null) {
+                    fail(error);
+                    return;
+                }
+                this.addresses = addresses;
+                connectNext();
+            }));
+        });
+    }
+
+    /*
+     * Stop reading the response for the given time, in ms,
+     * e.g. to limit the speed. Must be called on the loop thread
+     */
+
+    public void pauseReading(long delay)
+    {
+        if (closed || paused)
+            return;
+
+        paused = true;
+        setInterest(0);
+        resumeTimer = loop.schedule(() -> {
+            paused = false;
+            resumeTimer = null;
+            touch();
+            setInterest(SelectionKey.OP_READ);
+            try {
+                /* Some data can be already received by the TLS engine */
+                onReadable();
+
+            } catch (IOException e) {
+                fail(e);
+            }
+        }, delay);
+    }
+
+    /*
+     * Close the connection without calling the listener. Can be called from any thread
+     */
+
+    public void cancel()
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        loop.execute(this::close);
+    }
+
+    @Override
+    public void onReady(@NonNull SelectionKey key)
+    {
+        if (closed)
+            return;
+
+        try {
+            if (connecting) {
+                if (key.isConnectable() && channel.finishConnect())
+                    onConnected();
+                return;
+            }
+            if (handshaking) {
+                if (!runningTasks)
+                    handshake();
+                return;
+            }
+            if (key.isWritable() && !requestSent)
+                writeRequest();
+            if (!closed && key.isValid() && key.isReadable())
+                onReadable();
+
+        } catch (IOException e) {
+            if (connecting) {
+                connectError = e;
+                connectNext();
+            } else {
+                fail(e);
+            }
+        }
+    }
+
+    private void connectNext()
+    {
+        closeChannel();
+        if (nextAddress >= addresses.length) {
+            /* The addresses may have changed */
+            dnsCache.invalidate(host);
+            fail(connectError == null ? new IOException("Unable to connect to " + host) : connectError);
+            return;
+        }
+
+        InetAddress address = addresses[nextAddress++];
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            socketTuner.tune(channel.socket(), host);
+            connecting = true;
+            connectTime = System.currentTimeMillis();
+            key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(new InetSocketAddress(address, port)))
+                onConnected();
+            else if (timeout > 0)
+                connectTimer = loop.schedule(this::onConnectTimeout, timeout);
+
+        } catch (IOException e) {
+            connectError = e;
+            connectNext();
+        }
+    }
+
+    /*
+     * The address doesn't answer, try the next one
+     */
+
+    private void onConnectTimeout()
+    {
+        connectTimer = null;
+        if (closed || !connecting)
+            return;
+
+        connectError = new SocketTimeoutException("Connect timed out");
+        connectNext();
+    }
+
+    private void onConnected() throws IOException
+    {
+        connecting = false;
+        if (connectTimer != null) {
+            connectTimer.cancel();
+            connectTimer = null;
+        }
+        touch();
+        if (!https) {
+            /* The body goes from the socket to the file without copying it to the heap */
+            appIn = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            sendRequest();
+            return;
+        }
+
+        try {
+            engine = TLSSocketFactory.getInstance().createSSLEngine(host, port);
+
+        } catch (GeneralSecurityException e) {
+            throw new SSLException(e);
+        }
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        netOut = ByteBuffer.allocate(packetSize);
+        netOut.flip();
+        appIn = ByteBuffer.allocate(Math.max(BUFFER_SIZE,
+                engine.getSession().getApplicationBufferSize()));
+        handshaking = true;
+        engine.beginHandshake();
+        handshake();
+    }
+
+    private void handshake() throws IOException
+    {
+        while (handshaking) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    return;
+                case NEED_WRAP:
+                    if (flush())
+                        wrap(EMPTY);
+                    if (!flush()) {
+                        setInterest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                    SSLEngineResult res = unwrap();
+                    if (res.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new SSLException("Connection closed during handshake");
+                    if (res.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW)
+                        break;
+                    int n = readNet();
+                    if (n < 0)
+                        throw new EOFException("Connection closed during handshake");
+                    if (n == 0) {
+                        setInterest(SelectionKey.OP_READ |
+                                (netOut.hasRemaining() ? SelectionKey.OP_WRITE : 0));
+                        return;
+                    }
+                    break;
+                default:
+                    /* The last handshake records may be still unsent */
+                    if (!flush()) {
+                        setInterest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    handshaking = false;
+                    onHandshakeFinished();
+                    break;
+            }
+        }
+    }
+
+    /*
+     * The tasks (e.g. the certificate checks) may block, so they run on a worker
+     * thread, and the handshake continues on the loop when they are done
+     */
+
+    private void runDelegatedTasks()
+    {
+        runningTasks = true;
+        setInterest(0);
+        SelectorLoop.offload(() -> {
+            IOException error = null;
+            try {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                    task.run();
+
+            } catch (Throwable t) {
+                error = new SSLException(t);
+            }
+            IOException taskError = error;
+            loop.execute(() -> {
+                runningTasks = false;
+                if (closed)
+                    return;
+                touch();
+                try {
+                    if (taskError != null)
+                        throw taskError;
+                    handshake();
+
+                } catch (IOException e) {
+                    fail(e);
+                }
+            });
+        });
+    }
+
+    /*
+     * Before API 24 the engine doesn't check the host, so it's done
+     * here, before the request is sent
+     */
+
+    private void onHandshakeFinished() throws IOException
+    {
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, engine.getSession()))
+            throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+        /* The resumed session was created before the connection */
+        metrics.onTlsHandshake(engine.getSession().getCreationTime() < connectTime);
+
+        sendRequest();
+    }
+
+    private void sendRequest() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        String path = url.getFile();
+        sb.append("GET ").append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host);
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort())
+            sb.append(':').append(url.getPort());
+        sb.append("\r\n");
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Connection"))
+                continue;
+            sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+
+        request = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        requestTime = DateUtils.elapsedRealtime();
+        writeRequest();
+    }
+
+    private void writeRequest() throws IOException
+    {
+        if (engine != null) {
+            while (request.hasRemaining()) {
+                if (!flush()) {
+                    setInterest(SelectionKey.OP_WRITE);
+                    return;
+                }
+                wrap(request);
+            }
+        }
+        if (!flush()) {
+            setInterest(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        requestSent = true;
+        setInterest(SelectionKey.OP_READ);
+    }
+
+    /*
+     * Returns true if everything is sent
+     */
+
+    private boolean flush() throws IOException
+    {
+        ByteBuffer out = (engine == null ? request : netOut);
+        if (out.hasRemaining() && channel.write(out) > 0)
+            touch();
+
+        return !out.hasRemaining();
+    }
+
+    private void wrap(ByteBuffer src) throws SSLException
+    {
+        SSLEngineResult res;
+        netOut.compact();
+        try {
+            res = engine.wrap(src, netOut);
+
+        } finally {
+            netOut.flip();
+        }
+        if (res.getStatus() == SSLEngineResult.Status.CLOSED)
+            throw new SSLException("Connection closed");
+    }
+
+    private SSLEngineResult unwrap() throws SSLException
+    {
+        netIn.flip();
+        try {
+            return engine.unwrap(netIn, appIn);
+
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    private int readNet() throws IOException
+    {
+        if (!netIn.hasRemaining())
+            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+        int n = channel.read(netIn);
+        if (n > 0)
+            touch();
+
+        return n;
+    }
+
+    private void onReadable() throws IOException
+    {
+        long cpuStart = Debug.threadCpuTimeNanos();
+        long bytesStart = bodyBytes;
+        try {
+            readAvailable();
+
+        } finally {
+            if (cpuStart >= 0)
+                metrics.onTransfer(appIn.isDirect(), https, bodyBytes - bytesStart,
+                        Debug.threadCpuTimeNanos() - cpuStart);
+        }
+    }
+
+    private void readAvailable() throws IOException
+    {
+        while (!closed && !paused) {
+            int n;
+            if (engine == null) {
+                n = channel.read(appIn);
+                if (n > 0)
+                    touch();
+            } else {
+                n = readTls();
+            }
+
+            if (appIn.position() > 0) {
+                appIn.flip();
+                processData(appIn);
+                appIn.clear();
+            }
+            if (closed)
+                return;
+            if (n < 0) {
+                onEndOfStream();
+                return;
+            }
+            if (n == 0)
+                return;
+        }
+    }
+
+    /*
+     * Returns the number of the decrypted bytes, 0 if more data must be received
+     * or -1 if the connection is closed
+     */
+
+    private int readTls() throws IOException
+    {
+        int produced = 0;
+        while (true) {
+            SSLEngineResult res = unwrap();
+            produced += res.bytesProduced();
+            /* The server has sent close_notify */
+            if (res.getStatus() == SSLEngineResult.Status.CLOSED)
+                return (produced > 0 ? produced : -1);
+            SSLEngineResult.HandshakeStatus hs = res.getHandshakeStatus();
+            if (hs != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING &&
+                hs != SSLEngineResult.HandshakeStatus.FINISHED)
+                throw new SSLException("Renegotiation isn't supported");
+
+            switch (res.getStatus()) {
+                case OK:
+                    if (!appIn.hasRemaining())
+                        return produced;
+                    if (res.bytesConsumed() > 0)
+                        break;
+                    /* Nothing to decrypt, fall through */
+                case BUFFER_UNDERFLOW:
+                    if (produced > 0)
+                        return produced;
+                    int n = readNet();
+                    if (n <= 0)
+                        return n;
+                    break;
+                case BUFFER_OVERFLOW:
+                    if (produced > 0)
+                        return produced;
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+            }
+        }
+    }
+
+    private void processData(ByteBuffer data) throws IOException
+    {
+        while (!headersReceived) {
+            if (!data.hasRemaining())
+                return;
+            byte b = data.get();
+            headers.write(b);
+            if (headers.size() > MAX_HEADERS_SIZE)
+                throw new ProtocolException("Too large response headers");
+
+            if (b == HEADERS_END[headersEndMatched])
+                headersEndMatched++;
+            else
+                headersEndMatched = (b == HEADERS_END[0] ? 1 : 0);
+            if (headersEndMatched == HEADERS_END.length && parseHeaders())
+                return;
+        }
+
+        if (chunked) {
+            processChunks(data);
+            return;
+        }
+        if (!data.hasRemaining())
+            return;
+        if (bodyRemaining >= 0 && data.remaining() > bodyRemaining)
+            data.limit(data.position() + (int)bodyRemaining);
+
+        int len = data.remaining();
+        bodyBytes += len;
+        listener.onData(data);
+        if (bodyRemaining >= 0) {
+            bodyRemaining -= len;
+            if (bodyRemaining == 0)
+                complete();
+        }
+    }
+
+    /*
+     * Pass the data of the chunks to the listener without copying it,
+     * skipping the chunk sizes, their extensions and the trailer
+     */
+
+    private void processChunks(ByteBuffer data) throws IOException
+    {
+        while (!closed && data.hasRemaining()) {
+            if (chunkRemaining > 0) {
+                int len = (int)Math.min(data.remaining(), chunkRemaining);
+                int limit = data.limit();
+                int end = data.position() + len;
+                data.limit(end);
+                bodyBytes += len;
+                chunkRemaining -= len;
+                listener.onData(data);
+                data.limit(limit);
+                data.position(end);
+                if (chunkRemaining == 0) {
+                    chunkRemaining = -1;
+                    chunkEndPending = true;
+                }
+                continue;
+            }
+
+            String line = readChunkLine(data);
+            if (line == null)
+                return;
+            if (chunkEndPending) {
+                chunkEndPending = false;
+                if (!line.isEmpty())
+                    throw new ProtocolException("Missing CRLF after the chunk");
+            } else if (trailer) {
+                if (line.isEmpty())
+                    complete();
+            } else {
+                chunkRemaining = parseChunkSize(line);
+                if (chunkRemaining == 0) {
+                    chunkRemaining = -1;
+                    trailer = true;
+                }
+            }
+        }
+    }
+
+    /*
+     * Returns the line without CRLF or null if the line isn't received yet
+     */
+
+    private String readChunkLine(ByteBuffer data) throws IOException
+    {
+        while (data.hasRemaining()) {
+            char c = (char)(data.get() & 0xff);
+            if (c == '\n') {
+                int len = chunkLine.length();
+                if (len > 0 && chunkLine.charAt(len - 1) == '\r')
+                    chunkLine.setLength(len - 1);
+                String line = chunkLine.toString();
+                chunkLine.setLength(0);
+
+                return line;
+            }
+            chunkLine.append(c);
+            if (chunkLine.length() > MAX_HEADERS_SIZE)
+                throw new ProtocolException("Too large chunk header");
+        }
+
+        return null;
+    }
+
+    private static long parseChunkSize(String line) throws ProtocolException
+    {
+        int end = line.indexOf(';');
+        String size = (end == -1 ? line : line.substring(0, end)).trim();
+        try {
+            long n = Long.parseLong(size, 16);
+            if (n < 0)
+                throw new NumberFormatException();
+
+            return n;
+
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid chunk size: " + size);
+        }
+    }
+
+    /*
+     * Returns true if the connection is closed
+     */
+
+    private boolean parseHeaders() throws IOException
+    {
+        String[] lines = new String(headers.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+        headers.reset();
+        headersEndMatched = 0;
+
+        String statusLine = lines[0];
+        int codeStart = statusLine.indexOf(' ') + 1;
+        int code;
+        try {
+            if (!statusLine.startsWith("HTTP/") || codeStart == 0)
+                throw new NumberFormatException();
+            code = Integer.parseInt(statusLine.substring(codeStart, Math.min(codeStart + 3,
+                    statusLine.length())));
+
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Unexpected status line: " + statusLine);
+        }
+        /* The final response follows */
+        if (code >= 100 && code < 200)
+            return false;
+        String message = (statusLine.length() > codeStart + 4 ?
+                statusLine.substring(codeStart + 4).trim() :
+                "");
+
+        HashMap<String, String> responseHeaders = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0)
+                continue;
+            String name = lines[i].substring(0, colon).trim().toLowerCase();
+            String value = lines[i].substring(colon + 1).trim();
+            String prev = responseHeaders.get(name);
+            responseHeaders.put(name, (prev == null ? value : prev + ", " + value));
+        }
+        headersReceived = true;
+        socketTuner.onRoundTrip(host, DateUtils.elapsedRealtime() - requestTime);
+
+        if (!listener.onResponse(code, message, responseHeaders)) {
+            close();
+            return true;
+        }
+        if (closed)
+            return true;
+
+        /* Content-Length is ignored for the chunked body */
+        chunked = "chunked".equalsIgnoreCase(responseHeaders.get("transfer-encoding"));
+        String contentLength = responseHeaders.get("content-length");
+        if (contentLength != null && !chunked) {
+            try {
+                bodyRemaining = Long.parseLong(contentLength);
+
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length: " + contentLength);
+            }
+        }
+        if (code == 204 || code == 304) {
+            chunked = false;
+            bodyRemaining = 0;
+        }
+        if (bodyRemaining == 0) {
+            complete();
+            return true;
+        }
+
+        return false;
+    }
+
+    private void onEndOfStream()
+    {
+        if (!headersReceived)
+            fail(new EOFException("Connection closed before the response"));
+        else if (bodyRemaining > 0)
+            fail(new EOFException("Unexpected end of stream, " + bodyRemaining + " bytes left"));
+        else if (chunked)
+            fail(new EOFException("Unexpected end of stream in the chunked body"));
+        else
+            complete();
+    }
+
+    private void checkTimeout()
+    {
+        timeoutTimer = null;
+        if (closed)
+            return;
+
+        /* The connection to each address has its own timer */
+        long left = (paused || connecting ?
+                timeout :
+                lastActivityTime + timeout - DateUtils.elapsedRealtime());
+        if (left <= 0)
+            fail(new SocketTimeoutException("Read timed out"));
+        else
+            timeoutTimer = loop.schedule(this::checkTimeout, left);
+    }
+
+    private void touch()
+    {
+        lastActivityTime = DateUtils.elapsedRealtime();
+    }
+
+    private void setInterest(int ops)
+    {
+        if (key != null && key.isValid())
+            key.interestOps(ops);
+    }
+
+    private void complete()
+    {
+        if (closed)
+            return;
+
+        close();
+        listener.onComplete();
+    }
+
+    private void fail(IOException e)
+    {
+        if (closed)
+            return;
+
+        close();
+        listener.onError(e);
+    }
+
+    private void close()
+    {
+        closed = true;
+        if (timeoutTimer != null) {
+            timeoutTimer.cancel();
+            timeoutTimer = null;
+        }
+        if (resumeTimer != null) {
+            resumeTimer.cancel();
+            resumeTimer = null;
+        }
+        closeChannel();
+    }
+
+    private void closeChannel()
+    {
+        if (connectTimer != null) {
+            connectTimer.cancel();
+            connectTimer = null;
+        }
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+
+            } catch (IOException e) {
+                /* Ignore */
+            }
+            channel = null;
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minCapacity)
+    {
+        int capacity = Math.max(minCapacity, buffer.capacity() * 2);
+        ByteBuffer newBuffer = (buffer.isDirect() ?
+                ByteBuffer.allocateDirect(capacity) :
+                ByteBuffer.allocate(capacity));
+        buffer.flip();
+        newBuffer.put(buffer);
+
+        return newBuffer;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+
+/*
+ * The HTTP/2 transport. The protocol is negotiated with ALPN, the servers
+ * without HTTP/2 and the plain HTTP get HTTP/1.1. Over HTTP/2 all requests
+ * to the same origin, i.e. the pieces of the download and the metadata requests
+ * of the other downloads from there, go as concurrent streams on a single connection.
+ * The client opens the connection and the streams with a 16 MiB flow control window,
+ * so a stream isn't limited by the window on fast links.
+ *
+ * If the address is given, the request goes to a connection to this address,
+ * which spreads the requests across the addresses instead of multiplexing them
+ * on one connection. The requests to the same address still share the connections.
+ */
+
+class OkHttpTransport implements Transport
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = OkHttpTransport.class.getSimpleName();
+
+    static final List<Protocol> PROTOCOLS = Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1);
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    /* In minutes */
+    private static final long KEEP_ALIVE_DURATION = 5;
+    private static final int MAX_CLIENTS = 64;
+
+    private final OkHttpClient client;
+    /*
+     * The clients with other timeouts or pinned to an address share the pool
+     * of the first one. The connections made with a different resolver
+     * aren't shared, so the client of the address is kept
+     */
+    private final HashMap<String, OkHttpClient> clients = new HashMap<>();
+    private DnsCache dnsCache = DnsCache.getInstance();
+    private ConnectionMetrics metrics = ConnectionMetrics.getInstance();
+
+    OkHttpTransport(@NonNull SSLSocketFactory socketFactory,
+                    @NonNull List<Protocol> protocols) throws GeneralSecurityException
+    {
+        client = new OkHttpClient.Builder()
+                .protocols(protocols)
+                /* The plain TCP sockets, including the ones under TLS */
+                .socketFactory(new TuningSocketFactory())
+                .sslSocketFactory(socketFactory, getDefaultTrustManager())
+                .dns((hostname) -> Arrays.asList(dnsCache.lookup(hostname)))
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS,
+                        KEEP_ALIVE_DURATION, TimeUnit.MINUTES))
+                /* Done by HttpConnection */
+                .followRedirects(false)
+                .followSslRedirects(false)
+                .build();
+    }
+
+    @NonNull
+    @Override
+    public Exchange newExchange(@NonNull URL url, @Nullable InetAddress address, int timeout)
+    {
+        return new OkHttpExchange(getClient(timeout, url.getHost(), address), url);
+    }
+
+    int getConnectionCount()
+    {
+        return client.connectionPool().connectionCount();
+    }
+
+    private synchronized OkHttpClient getClient(int timeout, String host, InetAddress address)
+    {
+        String key = (address == null ?
+                Integer.toString(timeout) :
+                timeout + "/" + host.toLowerCase() + "/" + address.getHostAddress());
+        OkHttpClient c = clients.get(key);
+        if (c == null) {
+            OkHttpClient.Builder builder = client.newBuilder()
+                    .connectTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .readTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .writeTimeout(timeout, TimeUnit.MILLISECONDS);
+            if (address != null) {
+                /* The other names, e.g. of the proxy, are resolved as usual */
+                List<InetAddress> pinned = Collections.singletonList(address);
+                builder.dns((hostname) -> (hostname.equalsIgnoreCase(host) ?
+                        pinned :
+                        Arrays.asList(dnsCache.lookup(hostname))));
+            }
+            if (clients.size() >= MAX_CLIENTS)
+                clients.clear();
+            c = builder.build();
+            clients.put(key, c);
+        }
+
+        return c;
+    }
+
+    private static X509TrustManager getDefaultTrustManager() throws GeneralSecurityException
+    {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        factory.init((KeyStore)null);
+        for (TrustManager trustManager : factory.getTrustManagers()) {
+            if (trustManager instanceof X509TrustManager)
+                return (X509TrustManager)trustManager;
+        }
+
+        throw new KeyStoreException("No X509TrustManager");
+    }
+
+    private class OkHttpExchange implements Exchange
+    {
+        private final OkHttpClient client;
+        private final URL url;
+        private final Headers.Builder headers = new Headers.Builder();
+        private String method = "GET";
+        private volatile Call call;
+        private volatile boolean cancelled;
+        private Response response;
+
+        OkHttpExchange(OkHttpClient client, URL url)
+        {
+            this.client = client;
+            this.url = url;
+        }
+
+        @Override
+        public URL getUrl()
+        {
+            return url;
+        }
+
+        @Override
+        public void setMethod(@NonNull String method)
+        {
+            this.method = method;
+        }
+
+        @Override
+        public void setRequestHeader(@NonNull String name, String value)
+        {
+            if (value == null)
+                headers.removeAll(name);
+            else
+                headers.set(name, value);
+        }
+
+        @Override
+        public void addRequestHeader(@NonNull String name, String value)
+        {
+            if (value != null)
+                headers.add(name, value);
+        }
+
+        @Override
+        public String getRequestHeader(@NonNull String name)
+        {
+            return headers.get(name);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException
+        {
+            return execute().code();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException
+        {
+            return execute().message();
+        }
+
+        @Override
+        public String getHeaderField(@NonNull String name)
+        {
+            return (response == null ? null : response.header(name));
+        }
+
+        @Override
+        public int getHeaderFieldInt(@NonNull String name, int defaultValue)
+        {
+            String value = getHeaderField(name);
+            if (value == null)
+                return defaultValue;
+            try {
+                return Integer.parseInt(value.trim());
+
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return getHeaderField("Content-Type");
+        }
+
+        @Override
+        public InputStream getBody() throws IOException
+        {
+            Response response = execute();
+            if (response.code() >= HTTP_BAD_REQUEST)
+                throw new IOException("Response code " + response.code());
+
+            return response.body().byteStream();
+        }
+
+        @Override
+        public InputStream getErrorBody()
+        {
+            if (response == null || response.code() < HTTP_BAD_REQUEST)
+                return null;
+            ResponseBody body = response.body();
+
+            return (body == null ? null : body.byteStream());
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+            Call c = call;
+            /* Resets the stream or closes the HTTP/1.1 connection */
+            if (c != null)
+                c.cancel();
+        }
+
+        private synchronized Response execute() throws IOException
+        {
+            if (response != null)
+                return response;
+
+            Request request = new Request.Builder()
+                    .url(url)
+                    .headers(headers.build())
+                    .method(method, null)
+                    .build();
+            call = client.newCall(request);
+            if (cancelled)
+                call.cancel();
+            response = call.execute();
+            metrics.onResponse(response.protocol() == Protocol.HTTP_2 ||
+                               response.protocol() == Protocol.H2_PRIOR_KNOWLEDGE);
+
+            return response;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * An event loop thread, which drives the non-blocking channels registered with it
+ * and runs the tasks posted to it. A few loops are shared by all downloads,
+ * the connections are spread across them, so that hundreds of connections
+ * cost a handful of threads. The handlers and the tasks mustn't block:
+ * the blocking work (the disk and database writes, the TLS handshake tasks)
+ * is offloaded to a few worker threads, which post the result back to the loop.
+ */
+
+public class SelectorLoop implements Runnable
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = SelectorLoop.class.getSimpleName();
+
+    /* Most of the time is spent in the network and the disk, not in the loop */
+    private static final int NUM_LOOPS =
+            Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+
+    /* The fsyncs of a file are coalesced and SQLite has one writer anyway */
+    private static final int NUM_WORKERS = 4;
+
+    private static SelectorLoop[] loops;
+    private static int nextLoop;
+    private static ExecutorService workers;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /* Accessed only by the loop thread */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Thread thread;
+
+    public interface Handler
+    {
+        /* Called on the loop thread when the channel is ready for the registered operations */
+        void onReady(@NonNull SelectionKey key);
+    }
+
+    /*
+     * The task scheduled on the loop thread
+     */
+
+    public static class Timer implements Comparable<Timer>
+    {
+        private final long time;
+        private final Runnable task;
+        private boolean cancelled;
+
+        private Timer(long time, Runnable task)
+        {
+            this.time = time;
+            this.task = task;
+        }
+
+        /* Must be called on the loop thread */
+        public void cancel()
+        {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other)
+        {
+            return Long.compare(time, other.time);
+        }
+    }
+
+    /*
+     * Returns the next of the shared loops, starting them on the first call
+     */
+
+    public synchronized static SelectorLoop next() throws IOException
+    {
+        if (loops == null) {
+            SelectorLoop[] newLoops = new SelectorLoop[NUM_LOOPS];
+            for (int i = 0; i < NUM_LOOPS; i++)
+                newLoops[i] = new SelectorLoop("SelectorLoop-" + i);
+            loops = newLoops;
+        }
+        SelectorLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+
+        return loop;
+    }
+
+    /*
+     * Run the blocking work on a worker thread. Can be called from any thread
+     */
+
+    public static void offload(@NonNull Runnable work)
+    {
+        getWorkers().execute(work);
+    }
+
+    private synchronized static ExecutorService getWorkers()
+    {
+        if (workers == null)
+            workers = Executors.newFixedThreadPool(NUM_WORKERS);
+
+        return workers;
+    }
+
+    private SelectorLoop(String name) throws IOException
+    {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Run the task on the loop thread
+     */
+
+    public void execute(@NonNull Runnable task)
+    {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public boolean inLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /*
+     * Run the task on the loop thread after the given delay, in ms.
+     * Must be called on the loop thread
+     */
+
+    @NonNull
+    public Timer schedule(@NonNull Runnable task, long delay)
+    {
+        Timer timer = new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay), task);
+        timers.add(timer);
+
+        return timer;
+    }
+
+    /*
+     * Must be called on the loop thread
+     */
+
+    @NonNull
+    public SelectionKey register(@NonNull SelectableChannel channel,
+                                 int ops,
+                                 @NonNull Handler handler) throws ClosedChannelException
+    {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run()
+    {
+        while (true) {
+            try {
+                long timeout = runTimers();
+                if (tasks.isEmpty())
+                    selector.select(timeout);
+                else
+                    selector.selectNow();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid())
+                        continue;
+                    runSafely(() -> ((Handler)key.attachment()).onReady(key));
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    runSafely(task);
+
+            } catch (IOException e) {
+                Log.e(TAG, Log.getStackTraceString(e));
+            }
+        }
+    }
+
+    /*
+     * Run the expired timers and return the time until the next one, in ms (0 - none)
+     */
+
+    private long runTimers()
+    {
+        while (!timers.isEmpty()) {
+            Timer timer = timers.peek();
+            if (timer.cancelled) {
+                timers.poll();
+                continue;
+            }
+            long delay = timer.time - System.nanoTime();
+            if (delay > 0)
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay));
+
+            timers.poll();
+            runSafely(timer.task);
+        }
+
+        return 0;
+    }
+
+    /*
+     * A failed handler mustn't stop the loop for the other connections
+     */
+
+    private void runSafely(Runnable task)
+    {
+        try {
+            task.run();
+
+        } catch (Throwable t) {
+            Log.e(TAG, Log.getStackTraceString(t));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.utils.DateUtils;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+
+/*
+ * Sets the socket options of the download connections. The receive buffer
+ * limits the TCP window, so on the links with a large bandwidth-delay product
+ * (fast and distant) a single connection can't fill the link with the default buffer.
+ * The buffer is sized from the round-trip time and the connection speed
+ * measured for the host before. Setting the buffer turns off its automatic
+ * tuning by the kernel, so the buffer is only set if it should be larger
+ * than the current one.
+ */
+
+public class SocketTuner
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = SocketTuner.class.getSimpleName();
+
+    /* The window must cover the bandwidth-delay product; the kernel uses a part of the buffer for itself */
+    private static final int BDP_FACTOR = 2;
+    private static final int MIN_RECEIVE_BUFFER = 64 * 1024;
+    private static final int MAX_RECEIVE_BUFFER = 8 * 1024 * 1024;
+    /* IPTOS_THROUGHPUT */
+    private static final int TRAFFIC_CLASS = 0x08;
+    /* The network may have changed after that */
+    private static final long ESTIMATE_EXPIRY = 10 * 60 * DateUtils.SECOND_IN_MILLIS;
+    private static final int MAX_HOSTS = 128;
+
+    private static SocketTuner tuner;
+
+    private final HashMap<String, Estimate> estimates = new HashMap<>();
+    private ConnectionMetrics metrics = ConnectionMetrics.getInstance();
+
+    private static class Estimate
+    {
+        /* In milliseconds, 0 if unknown */
+        long minRtt;
+        /* Bytes/s of a single connection */
+        long maxSpeed;
+        long updateTime;
+    }
+
+    public synchronized static SocketTuner getInstance()
+    {
+        if (tuner == null)
+            tuner = new SocketTuner();
+
+        return tuner;
+    }
+
+    /*
+     * The round-trip time to the host, or its upper bound, e.g. the connect time
+     * or the time from the request to the response
+     */
+
+    public void onRoundTrip(@NonNull String host, long rttMillis)
+    {
+        if (rttMillis <= 0)
+            return;
+
+        synchronized (estimates) {
+            Estimate estimate = getEstimate(host);
+            if (estimate.minRtt == 0 || rttMillis < estimate.minRtt)
+                estimate.minRtt = rttMillis;
+        }
+    }
+
+    /*
+     * The speed (bytes/s) of a single connection to the host
+     */
+
+    public void onSpeed(@NonNull String host, long speed)
+    {
+        if (speed <= 0)
+            return;
+
+        synchronized (estimates) {
+            Estimate estimate = getEstimate(host);
+            if (speed > estimate.maxSpeed)
+                estimate.maxSpeed = speed;
+        }
+    }
+
+    /*
+     * Returns the receive buffer size for the following connections to the host
+     * or 0 if the default one is enough or the link isn't measured yet
+     */
+
+    public int getReceiveBufferSize(@NonNull String host)
+    {
+        long rtt;
+        long speed;
+        synchronized (estimates) {
+            Estimate estimate = estimates.get(host);
+            if (estimate == null || estimate.updateTime + ESTIMATE_EXPIRY <= DateUtils.elapsedRealtime())
+                return 0;
+            rtt = estimate.minRtt;
+            speed = estimate.maxSpeed;
+        }
+
+        long size = speed * rtt / 1000 * BDP_FACTOR;
+        if (size < MIN_RECEIVE_BUFFER)
+            return 0;
+
+        return (int)Math.min(size, MAX_RECEIVE_BUFFER);
+    }
+
+    /*
+     * Set the options of the TCP socket to the given host (null if unknown).
+     * The larger receive buffer works fully only if it's set before connecting,
+     * since the TCP window scale is negotiated by the handshake
+     */
+
+    public void tune(@NonNull Socket socket, @Nullable String host)
+    {
+        try {
+            /* The requests are sent at once, the data goes in the other direction */
+            socket.setTcpNoDelay(true);
+            socket.setTrafficClass(TRAFFIC_CLASS);
+
+            int size = (host == null ? 0 : getReceiveBufferSize(host));
+            int curSize = socket.getReceiveBufferSize();
+            if (size > curSize) {
+                socket.setReceiveBufferSize(size);
+                /* The kernel may double or cap it */
+                metrics.onReceiveBuffer(size, socket.getReceiveBufferSize());
+            } else {
+                metrics.onReceiveBuffer(0, curSize);
+            }
+
+        } catch (SocketException e) {
+            /* Ignore, the defaults still work */
+        }
+    }
+
+    private Estimate getEstimate(String host)
+    {
+        long now = DateUtils.elapsedRealtime();
+        Estimate estimate = estimates.get(host);
+        if (estimate == null || estimate.updateTime + ESTIMATE_EXPIRY <= now) {
+            if (estimates.size() >= MAX_HOSTS)
+                estimates.clear();
+            estimate = new Estimate();
+            estimates.put(host, estimate);
+        }
+        estimate.updateTime = now;
+
+        return estimate;
+    }
+}
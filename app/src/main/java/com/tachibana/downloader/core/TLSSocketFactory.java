@@ -20,37 +20,125 @@
 
 package com.tachibana.downloader.core;
 
+import android.os.Build;
+
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 /*
  * SSL handshake error solution: https://www.freshbytelabs.com/2018/09/how-to-solve-sslhandshakeexception-in.html
+ *
+ * The factory is shared by all connections, so that the following connections
+ * to the same host resume the cached TLS session (by session ID or ticket)
+ * instead of the full handshake. It also lets the HTTP client pool
+ * the connections, since the pool is keyed by the socket factory.
  */
 
 public class TLSSocketFactory extends SSLSocketFactory
 {
+    /* The number of cached sessions, about one per host */
+    private static final int SESSION_CACHE_SIZE = 64;
+    /* In seconds */
+    private static final int SESSION_TIMEOUT = 60 * 60;
+
+    private static final String[] ENABLED_PROTOCOLS = new String[] {"TLSv1.1", "TLSv1.2"};
+
+    private static TLSSocketFactory factory;
+    /* The host name of the connection of the current thread to one of the host addresses */
+    private static final ThreadLocal<String> serverName = new ThreadLocal<>();
+
+    private SSLContext context;
     private SSLSocketFactory delegate;
+    /* The same verifier lets the client pool the connections to the address */
+    private final ConcurrentHashMap<String, HostnameVerifier> hostVerifiers = new ConcurrentHashMap<>();
+    private ConnectionMetrics metrics = ConnectionMetrics.getInstance();
+    private SocketTuner socketTuner = SocketTuner.getInstance();
 
-    public TLSSocketFactory() throws KeyManagementException, NoSuchAlgorithmException
+    public synchronized static TLSSocketFactory getInstance()
+            throws KeyManagementException, NoSuchAlgorithmException
     {
-        SSLContext context = SSLContext.getInstance("TLS");
+        if (factory == null)
+            factory = new TLSSocketFactory();
+
+        return factory;
+    }
+
+    private TLSSocketFactory() throws KeyManagementException, NoSuchAlgorithmException
+    {
+        context = SSLContext.getInstance("TLS");
         context.init(null, null, null);
-        SSLSessionContext sslSessionContext = context.getServerSessionContext();
-        int sessionCacheSize = sslSessionContext.getSessionCacheSize();
-        if (sessionCacheSize > 0) {
-            sslSessionContext.setSessionCacheSize(0);
-        }
+        SSLSessionContext sslSessionContext = context.getClientSessionContext();
+        sslSessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sslSessionContext.setSessionTimeout(SESSION_TIMEOUT);
         delegate = context.getSocketFactory();
     }
 
+    /*
+     * The TLS sockets created by the current thread until the next call connect
+     * to an address of the given host, rather than to the host name.
+     * Null returns to the normal connections
+     */
+
+    static void setServerName(String host)
+    {
+        if (host == null)
+            serverName.remove();
+        else
+            serverName.set(host);
+    }
+
+    /*
+     * Returns the verifier that checks the certificate against the given host
+     * instead of the address that the connection URL contains
+     */
+
+    HostnameVerifier getHostnameVerifier(String host)
+    {
+        HostnameVerifier verifier = hostVerifiers.get(host);
+        if (verifier == null) {
+            HostnameVerifier defaultVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+            verifier = (hostname, session) -> defaultVerifier.verify(host, session);
+            HostnameVerifier prev = hostVerifiers.putIfAbsent(host, verifier);
+            if (prev != null)
+                verifier = prev;
+        }
+
+        return verifier;
+    }
+
+    /*
+     * Returns the client engine for the non-blocking connections to the host,
+     * which shares the session cache with the sockets
+     */
+
+    SSLEngine createSSLEngine(String host, int port)
+    {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(ENABLED_PROTOCOLS);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            /* The certificate is checked against the host during the handshake */
+            SSLParameters params = engine.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(params);
+        }
+
+        return engine;
+    }
+
     @Override
     public String[] getDefaultCipherSuites()
     {
@@ -66,43 +154,69 @@ public class TLSSocketFactory extends SSLSocketFactory
     @Override
     public Socket createSocket() throws IOException
     {
-        return enableTLSOnSocket(delegate.createSocket());
+        /* Isn't connected yet */
+        return enableTLSOnSocket(delegate.createSocket(), null);
     }
 
     @Override
     public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException
     {
-        return enableTLSOnSocket(delegate.createSocket(s, host, port, autoClose));
+        String name = serverName.get();
+        /* The options of the TCP socket under TLS, unless it's made by TuningSocketFactory */
+        if (!TuningSocketFactory.isTuned(s))
+            socketTuner.tune(s, (name == null ? host : name));
+        if (name == null)
+            return enableTLSOnSocket(delegate.createSocket(s, host, port, autoClose), null);
+
+        /* The socket is connected to the address, the handshake is with the host */
+        Socket socket = enableTLSOnSocket(delegate.createSocket(s, name, port, autoClose), null);
+
+        return (socket instanceof SSLSocket ? new HostSSLSocket((SSLSocket)socket) : socket);
     }
 
     @Override
     public Socket createSocket(String host, int port) throws IOException
     {
-        return enableTLSOnSocket(delegate.createSocket(host, port));
+        return enableTLSOnSocket(delegate.createSocket(host, port), host);
     }
 
     @Override
     public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
     {
-        return enableTLSOnSocket(delegate.createSocket(host, port, localHost, localPort));
+        return enableTLSOnSocket(delegate.createSocket(host, port, localHost, localPort), host);
     }
 
     @Override
     public Socket createSocket(InetAddress host, int port) throws IOException
     {
-        return enableTLSOnSocket(delegate.createSocket(host, port));
+        return enableTLSOnSocket(delegate.createSocket(host, port), host.getHostAddress());
     }
 
     @Override
     public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
     {
-        return enableTLSOnSocket(delegate.createSocket(address, port, localAddress, localPort));
+        return enableTLSOnSocket(delegate.createSocket(address, port, localAddress, localPort),
+                address.getHostAddress());
     }
 
-    private Socket enableTLSOnSocket(Socket socket)
+    /*
+     * The socket options are set if the socket is connected to the given host
+     * by itself, rather than layered over an already tuned socket
+     */
+
+    private Socket enableTLSOnSocket(Socket socket, String host)
     {
-        if (socket instanceof SSLSocket)
-            ((SSLSocket)socket).setEnabledProtocols(new String[] {"TLSv1.1", "TLSv1.2"});
+        if (host != null)
+            socketTuner.tune(socket, host);
+
+        if (socket instanceof SSLSocket) {
+            SSLSocket sslSocket = (SSLSocket)socket;
+            sslSocket.setEnabledProtocols(ENABLED_PROTOCOLS);
+            /* The resumed session was created before the socket */
+            long createTime = System.currentTimeMillis();
+            sslSocket.addHandshakeCompletedListener((event) ->
+                    metrics.onTlsHandshake(event.getSession().getCreationTime() < createTime));
+        }
 
         return socket;
     }
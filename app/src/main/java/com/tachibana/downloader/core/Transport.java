@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+
+/*
+ * The HTTP client that makes the requests of HttpConnection.
+ * The transport doesn't follow the redirects and doesn't add cookies,
+ * it's done by HttpConnection.
+ */
+
+public interface Transport
+{
+    /*
+     * Prepares the request to the given URL; nothing is sent until the response is asked.
+     * If the address isn't null, connect to this address of the host instead
+     * of the one the transport picks. The timeout is in milliseconds,
+     * zero is interpreted as an infinite timeout
+     */
+
+    @NonNull
+    Exchange newExchange(@NonNull URL url, @Nullable InetAddress address, int timeout) throws IOException;
+}
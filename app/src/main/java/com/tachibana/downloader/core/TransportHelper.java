@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import androidx.annotation.NonNull;
+
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+
+/*
+ * Chooses the transport of the requests: HTTP/2 with the fallback to HTTP/1.1,
+ * if it's enabled, or the platform HTTP/1.1 client.
+ */
+
+public class TransportHelper
+{
+    private static Transport defaultTransport;
+    private static boolean http2;
+
+    public synchronized static Transport getDefaultTransport() throws GeneralSecurityException
+    {
+        if (defaultTransport == null) {
+            if (http2)
+                defaultTransport = new OkHttpTransport(TLSSocketFactory.getInstance(),
+                        OkHttpTransport.PROTOCOLS);
+            else
+                defaultTransport = new UrlConnectionTransport(TLSSocketFactory.getInstance());
+        }
+
+        return defaultTransport;
+    }
+
+    /*
+     * The following requests use the new default transport,
+     * the current ones finish with the old one
+     */
+
+    public synchronized static void setHttp2Enabled(boolean enabled)
+    {
+        if (http2 == enabled)
+            return;
+
+        http2 = enabled;
+        defaultTransport = null;
+    }
+
+    /*
+     * The system proxy connects to the host itself, so the address
+     * of the host can't be chosen and the connection can't be direct
+     */
+
+    public static boolean hasProxy(@NonNull String url)
+    {
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null)
+            return false;
+
+        try {
+            for (Proxy proxy : selector.select(new URI(url))) {
+                if (proxy.type() != Proxy.Type.DIRECT)
+                    return true;
+            }
+
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return false;
+        }
+
+        return false;
+    }
+}
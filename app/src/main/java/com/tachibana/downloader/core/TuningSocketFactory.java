@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+import javax.net.SocketFactory;
+
+/*
+ * Creates the TCP sockets with the options set by SocketTuner for the host
+ * they connect to. The options are set before connecting, so that
+ * the TCP window scale covers the receive buffer.
+ */
+
+class TuningSocketFactory extends SocketFactory
+{
+    private SocketTuner socketTuner = SocketTuner.getInstance();
+
+    /*
+     * Returns true if the socket is created by this factory, i.e. already tuned
+     */
+
+    static boolean isTuned(Socket socket)
+    {
+        return socket instanceof TunedSocket;
+    }
+
+    @Override
+    public Socket createSocket()
+    {
+        return new TunedSocket(socketTuner);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException
+    {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException
+    {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        socket.connect(new InetSocketAddress(host, port));
+
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException
+    {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException
+    {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port));
+
+        return socket;
+    }
+
+    private static class TunedSocket extends Socket
+    {
+        private final SocketTuner socketTuner;
+
+        TunedSocket(SocketTuner socketTuner)
+        {
+            this.socketTuner = socketTuner;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException
+        {
+            /* The addresses from the resolver keep the host name */
+            String host = null;
+            if (endpoint instanceof InetSocketAddress)
+                host = ((InetSocketAddress)endpoint).getHostString();
+            socketTuner.tune(this, host);
+
+            super.connect(endpoint, timeout);
+        }
+    }
+}
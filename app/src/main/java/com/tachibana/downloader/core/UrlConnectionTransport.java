@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import okhttp3.Protocol;
+
+/*
+ * The default transport, made with the platform HttpURLConnection.
+ * It pools the connections by itself. Normally the platform resolves the host
+ * (the system resolver caches the addresses prefetched by DnsCache) and tries
+ * its addresses one by one, through the system proxy if there is one.
+ * If the address is given (see AddressSelector), the connection is made
+ * to this address with the host name for TLS, and if the address can't be
+ * connected to, the request goes the normal way.
+ *
+ * The plain HTTP requests are made by the HTTP/1.1 OkHttpTransport instead:
+ * the platform client has no hook for its plain sockets, unlike the TLS ones,
+ * so they couldn't be tuned by SocketTuner.
+ */
+
+class UrlConnectionTransport implements Transport
+{
+    private TLSSocketFactory socketFactory;
+    private OkHttpTransport plainTransport;
+
+    UrlConnectionTransport(@NonNull TLSSocketFactory socketFactory) throws GeneralSecurityException
+    {
+        this.socketFactory = socketFactory;
+        plainTransport = new OkHttpTransport(socketFactory,
+                Collections.singletonList(Protocol.HTTP_1_1));
+    }
+
+    @NonNull
+    @Override
+    public Exchange newExchange(@NonNull URL url, @Nullable InetAddress address, int timeout)
+            throws IOException
+    {
+        if ("http".equals(url.getProtocol()))
+            return plainTransport.newExchange(url, address, timeout);
+
+        /* The proxy connects to the host itself */
+        if (address != null && TransportHelper.hasProxy(url.toString()))
+            address = null;
+
+        return new UrlConnectionExchange(this, url, address, timeout);
+    }
+
+    private HttpURLConnection openConnection(URL url, InetAddress address, int timeout)
+            throws IOException
+    {
+        HttpURLConnection conn = (address == null ?
+                (HttpURLConnection)url.openConnection() :
+                openAddressConnection(url, address));
+        conn.setInstanceFollowRedirects(false);
+        conn.setConnectTimeout(timeout);
+        conn.setReadTimeout(timeout);
+
+        if (conn instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(socketFactory);
+            /* The address is in the URL, the certificate is checked against the host */
+            if (address != null)
+                ((HttpsURLConnection) conn).setHostnameVerifier(
+                        socketFactory.getHostnameVerifier(url.getHost()));
+        }
+
+        return conn;
+    }
+
+    /*
+     * The URL keeps the host name in the Host header
+     */
+
+    private HttpURLConnection openAddressConnection(URL url, InetAddress address) throws IOException
+    {
+        URL addressUrl = new URL(url.getProtocol(), address.getHostAddress(),
+                url.getPort(), url.getFile());
+        HttpURLConnection conn = (HttpURLConnection)addressUrl.openConnection();
+        String host = url.getHost();
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort())
+            host += ":" + url.getPort();
+        conn.setRequestProperty("Host", host);
+
+        return conn;
+    }
+
+    private static class UrlConnectionExchange implements Exchange
+    {
+        private final UrlConnectionTransport transport;
+        private final URL url;
+        private final int timeout;
+        private HttpURLConnection conn;
+        /* Null if the platform chooses the address */
+        private InetAddress address;
+        /* Kept to repeat the request the normal way if the address can't be connected to */
+        private String method;
+        private final LinkedHashMap<String, List<String>> headers = new LinkedHashMap<>();
+        private AddressSelector addressSelector = AddressSelector.getInstance();
+        private boolean connected;
+
+        UrlConnectionExchange(UrlConnectionTransport transport,
+                              URL url,
+                              InetAddress address,
+                              int timeout) throws IOException
+        {
+            this.transport = transport;
+            this.url = url;
+            this.address = address;
+            this.timeout = timeout;
+            conn = transport.openConnection(url, address, timeout);
+        }
+
+        @Override
+        public URL getUrl()
+        {
+            return url;
+        }
+
+        @Override
+        public void setMethod(@NonNull String method)
+        {
+            try {
+                conn.setRequestMethod(method);
+                this.method = method;
+
+            } catch (ProtocolException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        public void setRequestHeader(@NonNull String name, String value)
+        {
+            conn.setRequestProperty(name, value);
+            ArrayList<String> values = new ArrayList<>();
+            values.add(value);
+            headers.put(name, values);
+        }
+
+        @Override
+        public void addRequestHeader(@NonNull String name, String value)
+        {
+            conn.addRequestProperty(name, value);
+            List<String> values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<>();
+                headers.put(name, values);
+            }
+            values.add(value);
+        }
+
+        @Override
+        public String getRequestHeader(@NonNull String name)
+        {
+            return conn.getRequestProperty(name);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException
+        {
+            connect();
+
+            return conn.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException
+        {
+            connect();
+
+            return conn.getResponseMessage();
+        }
+
+        @Override
+        public String getHeaderField(@NonNull String name)
+        {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public int getHeaderFieldInt(@NonNull String name, int defaultValue)
+        {
+            return conn.getHeaderFieldInt(name, defaultValue);
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return conn.getContentType();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException
+        {
+            connect();
+
+            return conn.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorBody()
+        {
+            return conn.getErrorStream();
+        }
+
+        @Override
+        public synchronized void cancel()
+        {
+            conn.disconnect();
+        }
+
+        private synchronized void connect() throws IOException
+        {
+            if (connected)
+                return;
+
+            if (address == null) {
+                conn.connect();
+                connected = true;
+                return;
+            }
+
+            /* Connected to the address, the TLS handshake is with the host name */
+            TLSSocketFactory.setServerName(url.getHost());
+            try {
+                conn.connect();
+                connected = true;
+                return;
+
+            } catch (IOException e) {
+                /* The other connections will skip it for a while */
+                addressSelector.onError(url.getHost(), address);
+
+            } finally {
+                TLSSocketFactory.setServerName(null);
+            }
+
+            conn.disconnect();
+            address = null;
+            conn = transport.openConnection(url, null, timeout);
+            if (method != null)
+                conn.setRequestMethod(method);
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                for (String value : header.getValue())
+                    conn.addRequestProperty(header.getKey(), value);
+            }
+            conn.connect();
+            connected = true;
+        }
+    }
+}
@@ -20,6 +20,9 @@ public class ChangeableParams implements Parcelable
     public Boolean unmeteredConnectionsOnly;
     public Boolean retry;
     public String checksum;
+    /* KiB/s, 0 - unlimited */
+    public Integer speedLimit;
+    public Integer priority;
 
     public ChangeableParams() {}
 
@@ -36,6 +39,12 @@ public class ChangeableParams implements Parcelable
         if (retryVal != -1)
             retry = retryVal > 0;
         checksum = source.readString();
+        int speedLimitVal = source.readInt();
+        if (speedLimitVal != -1)
+            speedLimit = speedLimitVal;
+        int priorityVal = source.readInt();
+        if (priorityVal != -1)
+            priority = priorityVal;
     }
 
     @Override
@@ -60,6 +69,8 @@ public class ChangeableParams implements Parcelable
         else
             dest.writeByte((byte)(retry ? 1 : 0));
         dest.writeString(checksum);
+        dest.writeInt(speedLimit == null ? -1 : speedLimit);
+        dest.writeInt(priority == null ? -1 : priority);
     }
 
     public static final Parcelable.Creator<ChangeableParams> CREATOR =
@@ -89,6 +100,8 @@ public class ChangeableParams implements Parcelable
                 ", unmeteredConnectionsOnly=" + unmeteredConnectionsOnly +
                 ", retry=" + retry +
                 ", checksum='" + checksum + '\'' +
+                ", speedLimit=" + speedLimit +
+                ", priority=" + priority +
                 '}';
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.Exchange;
+import com.tachibana.downloader.core.HttpConnection;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.settings.SettingsRepository;
+import com.tachibana.downloader.core.storage.DataRepository;
+import com.tachibana.downloader.core.utils.DateUtils;
+import com.tachibana.downloader.core.utils.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import static java.net.HttpURLConnection.HTTP_MULT_CHOICE;
+
+/*
+ * Connects to the hosts of the downloads that go next, while they're waiting
+ * in the queue: resolves the host, connects and completes the TLS handshake
+ * with a HEAD request that has the headers, cookies and referer of the download
+ * (see RequestTemplate). The connection is left
+ * in the HTTP client pool, where the first piece of the download takes it.
+ * A host isn't warmed up again until its connection is likely closed by the server as idle.
+ */
+
+class ConnectionWarmer
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = ConnectionWarmer.class.getSimpleName();
+
+    /* Servers usually close the idle connections after 5-60 seconds */
+    static final long IDLE_EXPIRY = 15 * DateUtils.SECOND_IN_MILLIS;
+
+    private DataRepository repo;
+    private SettingsRepository pref;
+    private final HashMap<String, Long> warmTimeByHost = new HashMap<>();
+    private RedirectCache redirectCache = RedirectCache.getInstance();
+
+    ConnectionWarmer(@NonNull DataRepository repo, @NonNull SettingsRepository pref)
+    {
+        this.repo = repo;
+        this.pref = pref;
+    }
+
+    /*
+     * Blocks until connected. Returns false if the connection
+     * can't be reused or the host has been warmed up recently
+     */
+
+    boolean warmUp(@NonNull UUID id)
+    {
+        if (!pref.reuseConnections())
+            return false;
+
+        /* The same request headers as the download, so that the server treats it alike */
+        RequestTemplate template = RequestTemplate.load(repo, id);
+        if (template == null)
+            return false;
+        DownloadInfo info = template.info;
+        String host = Utils.getHostFromUrl(info.url);
+        if (host == null || !markWarm(host.toLowerCase()))
+            return false;
+
+        HttpConnection connection;
+        try {
+            connection = new HttpConnection(info.url);
+
+        } catch (MalformedURLException | GeneralSecurityException e) {
+            return false;
+        }
+        connection.setTimeout(pref.timeout());
+        connection.setKeepAlive(true);
+        connection.setReferer(template.referer);
+        connection.setCookies(template.cookies);
+        connection.setListener(new HttpConnection.Listener() {
+            @Override
+            public void onConnectionCreated(Exchange conn)
+            {
+                conn.setMethod("HEAD");
+                PieceHelper.addCustomHeaders(conn::addRequestHeader, template);
+            }
+
+            @Override
+            public void onResponseHandle(Exchange conn, int code, String message)
+            {
+                /* Any response will do, the connection is already established */
+                closeResponse(conn);
+                /* The download connects straight to where it's redirected */
+                if (code < HTTP_MULT_CHOICE)
+                    redirectCache.put(id, info.url, conn.getUrl().toString());
+            }
+
+            @Override
+            public void onMovedPermanently(String newUrl)
+            {
+                /* Ignore */
+            }
+
+            @Override
+            public void onIOException(IOException e)
+            {
+                Log.w(TAG, "Unable to warm up " + host + ": " + e);
+            }
+
+            @Override
+            public void onTooManyRedirects()
+            {
+                /* Ignore */
+            }
+        });
+        connection.run();
+
+        return true;
+    }
+
+    private synchronized boolean markWarm(String host)
+    {
+        long now = DateUtils.elapsedRealtime();
+        Iterator<Map.Entry<String, Long>> it = warmTimeByHost.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() >= IDLE_EXPIRY)
+                it.remove();
+        }
+        if (warmTimeByHost.containsKey(host))
+            return false;
+        warmTimeByHost.put(host, now);
+
+        return true;
+    }
+
+    /*
+     * The empty response body must be read to return the connection to the pool
+     */
+
+    private void closeResponse(Exchange conn)
+    {
+        InputStream in;
+        try {
+            in = conn.getBody();
+
+        } catch (IOException e) {
+            in = conn.getErrorBody();
+        }
+        if (in == null)
+            return;
+
+        try {
+            in.close();
+
+        } catch (IOException e) {
+            /* Ignore */
+        }
+    }
+}
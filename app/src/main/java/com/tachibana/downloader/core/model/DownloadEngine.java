@@ -32,17 +32,22 @@ import androidx.work.OneTimeWorkRequest;
 import androidx.work.WorkManager;
 
 import com.tachibana.downloader.R;
+import com.tachibana.downloader.core.ConnectionMetrics;
+import com.tachibana.downloader.core.DnsCache;
 import com.tachibana.downloader.core.RepositoryHelper;
+import com.tachibana.downloader.core.TransportHelper;
 import com.tachibana.downloader.core.exception.FileAlreadyExistsException;
 import com.tachibana.downloader.core.model.data.DownloadResult;
 import com.tachibana.downloader.core.model.data.StatusCode;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.storage.DataRepository;
 import com.tachibana.downloader.core.system.FileDescriptorWrapper;
 import com.tachibana.downloader.core.system.FileSystemFacade;
 import com.tachibana.downloader.core.system.SystemFacade;
 import com.tachibana.downloader.core.system.SystemFacadeHelper;
+import com.tachibana.downloader.core.utils.DateUtils;
 import com.tachibana.downloader.core.utils.DigestUtils;
 import com.tachibana.downloader.core.utils.Utils;
 import com.tachibana.downloader.receiver.ConnectionReceiver;
@@ -55,10 +60,13 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import io.reactivex.Completable;
 import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
@@ -69,6 +77,11 @@ public class DownloadEngine
     @SuppressWarnings("unused")
     private static final String TAG = DownloadEngine.class.getSimpleName();
 
+    /* How long before the retry the host is resolved */
+    private static final long DNS_PREFETCH_LEAD_TIME = 5 * DateUtils.SECOND_IN_MILLIS;
+    /* The number of the next queued downloads to connect to in advance */
+    private static final int NUM_WARM_UP_DOWNLOADS = 2;
+
     private Context appContext;
     private DataRepository repo;
     private SettingsRepository pref;
@@ -77,7 +90,14 @@ public class DownloadEngine
     private HashMap<UUID, DownloadThread> activeDownloads = new HashMap<>();
     private ConcurrentLinkedQueue<DownloadEngineListener> listeners = new ConcurrentLinkedQueue<>();
     private HashMap<UUID, ChangeableParams> duringChange = new HashMap<>();
-    private DownloadQueue queue = new DownloadQueue();
+    private DownloadQueue queue;
+    private HostConnections hostConnections = new HostConnections();
+    /* The downloads whose info is being loaded to decide if they can run */
+    private HashSet<UUID> admitting = new HashSet<>();
+    /* Shared by all downloads */
+    private SpeedLimiter speedLimiter = new SpeedLimiter();
+    private DnsCache dnsCache = DnsCache.getInstance();
+    private ConnectionWarmer warmer;
 
     private PowerReceiver powerReceiver = new PowerReceiver();
     private ConnectionReceiver connectionReceiver = new ConnectionReceiver();
@@ -102,6 +122,10 @@ public class DownloadEngine
         repo = RepositoryHelper.getDataRepository(appContext);
         pref = RepositoryHelper.getSettingsRepository(appContext);
         fs = SystemFacadeHelper.getFileSystemFacade(appContext);
+        queue = new DownloadQueue(DownloadQueue.getPolicy(pref.queuePolicy()));
+        queue.setTurnListener(this::saveQueueTurn);
+        warmer = new ConnectionWarmer(repo, pref);
+        TransportHelper.setHttp2Enabled(pref.http2());
 
         switchConnectionReceiver();
         switchPowerReceiver();
@@ -330,20 +354,92 @@ public class DownloadEngine
 
     public synchronized void doRunDownload(@NonNull UUID id)
     {
-        if (duringChange.containsKey(id))
+        if (duringChange.containsKey(id) || admitting.contains(id))
             return;
 
-        if (isMaxActiveDownloads()) {
-            queue.push(id);
+        DownloadThread task = activeDownloads.get(id);
+        if (task != null && task.isRunning())
             return;
+
+        /* The host of the download is needed to decide if it can run now */
+        admitting.add(id);
+        disposables.add(repo.getInfoByIdSingle(id)
+                .subscribeOn(Schedulers.io())
+                .map(this::makeAdmission)
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(this::admitDownload,
+                        (Throwable t) -> {
+                            Log.e(TAG, "Getting info " + id + " error: " +
+                                    Log.getStackTraceString(t));
+                            admitting.remove(id);
+                            if (checkNoDownloads())
+                                notifyListeners(DownloadEngineListener::onDownloadsCompleted);
+                        })
+        );
+    }
+
+    private static class Admission
+    {
+        DownloadInfo info;
+        DownloadQueue.Entry entry;
+
+        Admission(DownloadInfo info, DownloadQueue.Entry entry)
+        {
+            this.info = info;
+            this.entry = entry;
+        }
+    }
+
+    /*
+     * Must be called off the main thread, it reads the pieces
+     */
+
+    private Admission makeAdmission(DownloadInfo info)
+    {
+        long remainingBytes = Long.MAX_VALUE;
+        if (info.totalBytes > 0) {
+            remainingBytes = info.totalBytes;
+            List<DownloadPiece> pieces = repo.getPiecesById(info.id);
+            if (pieces != null) {
+                for (DownloadPiece piece : pieces)
+                    remainingBytes -= info.getDownloadedBytes(piece);
+            }
         }
 
+        return new Admission(info, new DownloadQueue.Entry(info, getHost(info), remainingBytes));
+    }
+
+    private synchronized void admitDownload(Admission admission)
+    {
+        DownloadInfo info = admission.info;
+        DownloadQueue.Entry entry = admission.entry;
+        UUID id = info.id;
+        admitting.remove(id);
+        if (duringChange.containsKey(id))
+            return;
+
         DownloadThread task = activeDownloads.get(id);
         if (task != null && task.isRunning())
             return;
 
+        String host = entry.host;
+        int maxPerHost = pref.maxConnectionsPerHost();
+        queue.setPolicy(DownloadQueue.getPolicy(pref.queuePolicy()));
+        queue.remove(id);
+        /* The queued downloads that are ahead by the policy go first */
+        DownloadQueue.Entry first = queue.peek((h) -> hostConnections.getFree(h, maxPerHost) > 0);
+        if (isMaxActiveDownloads() ||
+            hostConnections.getFree(host, maxPerHost) == 0 ||
+            first != null && queue.isAhead(first, entry)) {
+            queue.push(entry);
+            dnsCache.prefetch(host);
+            scheduleWaitingDownload();
+            return;
+        }
+        int numConnections = hostConnections.acquire(id, host, info.getNumPieces(), maxPerHost);
+
         task = new DownloadThreadImpl(id, repo, pref, fs,
-                SystemFacadeHelper.getSystemFacade(appContext));
+                SystemFacadeHelper.getSystemFacade(appContext), speedLimiter, numConnections);
         activeDownloads.put(id, task);
         disposables.add(Observable.fromCallable(task)
                 .subscribeOn(Schedulers.io())
@@ -351,11 +447,16 @@ public class DownloadEngine
                 .subscribe(this::observeDownloadResult,
                         (Throwable t) -> {
                             Log.e(TAG, Log.getStackTraceString(t));
+                            activeDownloads.remove(id);
+                            hostConnections.release(id);
+                            scheduleWaitingDownload();
                             if (checkNoDownloads())
                                 notifyListeners(DownloadEngineListener::onDownloadsCompleted);
                         }
                 )
         );
+        /* Fill the remaining slots, if any */
+        scheduleWaitingDownload();
     }
 
     /*
@@ -367,6 +468,8 @@ public class DownloadEngine
         if (duringChange.containsKey(info.id))
             return;
 
+        queue.remove(info.id);
+
         DownloadScheduler.undone(appContext, info);
         repo.deleteInfo(info, withFile);
 
@@ -464,6 +567,14 @@ public class DownloadEngine
             changed = true;
             info.checksum = params.checksum;
         }
+        if (params.speedLimit != null) {
+            changed = true;
+            info.speedLimit = params.speedLimit;
+        }
+        if (params.priority != null) {
+            changed = true;
+            info.priority = params.priority;
+        }
 
         Exception err = null;
         boolean nameChanged = params.fileName != null;
@@ -501,10 +612,21 @@ public class DownloadEngine
 
         if (changed)
             repo.updateInfo(info, true, false);
+        if (params.priority != null)
+            setQueuedPriority(info.id, params.priority);
 
         return urlChanged;
     }
 
+    /*
+     * The waiting download takes its new place in the queue
+     */
+
+    private synchronized void setQueuedPriority(UUID id, int priority)
+    {
+        queue.setPriority(id, priority);
+    }
+
     private interface CallListener
     {
         void apply(DownloadEngineListener listener);
@@ -520,7 +642,7 @@ public class DownloadEngine
 
     private boolean checkNoDownloads()
     {
-        return activeDownloads.isEmpty();
+        return activeDownloads.isEmpty() && admitting.isEmpty();
     }
 
     private void observeDownloadResult(DownloadResult result)
@@ -529,7 +651,9 @@ public class DownloadEngine
             return;
 
         activeDownloads.remove(result.infoId);
+        hostConnections.release(result.infoId);
         scheduleWaitingDownload();
+        Log.i(TAG, ConnectionMetrics.getInstance().toString());
 
         switch (result.status) {
             case FINISHED:
@@ -575,6 +699,11 @@ public class DownloadEngine
                 checkMoveAfterDownload(info);
                 break;
             case StatusCode.STATUS_WAITING_TO_RETRY:
+                /* Resolve the host shortly before the retry */
+                dnsCache.prefetch(getHost(info), Math.max(0,
+                        DownloadScheduler.getInitialDelay(info, false) - DNS_PREFETCH_LEAD_TIME));
+                runDownload(info);
+                break;
             case StatusCode.STATUS_WAITING_FOR_NETWORK:
                 runDownload(info);
                 break;
@@ -614,7 +743,7 @@ public class DownloadEngine
 
     private boolean isMaxActiveDownloads()
     {
-        return activeDownloads.size() == pref.maxActiveDownloads();
+        return activeDownloads.size() >= pref.maxActiveDownloads();
     }
 
     private void scheduleWaitingDownload()
@@ -622,11 +751,54 @@ public class DownloadEngine
         if (isMaxActiveDownloads())
             return;
 
-        UUID id = queue.pop();
+        /* The hosts take turns, skipping the ones that have no free connections */
+        int maxPerHost = pref.maxConnectionsPerHost();
+        queue.setPolicy(DownloadQueue.getPolicy(pref.queuePolicy()));
+        UUID id = queue.pop((host) -> hostConnections.getFree(host, maxPerHost) > 0);
         if (id == null)
             return;
 
         runDownload(id);
+        /*
+         * Connect to the hosts of the following downloads, which go when
+         * the current ones finish. The started one connects by itself
+         */
+        for (DownloadQueue.Entry next : queue.peekHeads(NUM_WARM_UP_DOWNLOADS, (host) -> true))
+            warmUp(next.id);
+    }
+
+    /*
+     * The queue is changed on the main thread, so the turn is stored in background.
+     * The turns only grow, so the order of the updates doesn't matter
+     */
+
+    private void saveQueueTurn(List<UUID> ids, long turn)
+    {
+        disposables.add(Completable.fromRunnable(() -> repo.updateQueueTurn(ids, turn))
+                .subscribeOn(Schedulers.io())
+                .subscribe(() -> {},
+                        (Throwable t) -> Log.e(TAG, "Saving queue turn error: " +
+                                Log.getStackTraceString(t))
+                )
+        );
+    }
+
+    private void warmUp(UUID id)
+    {
+        disposables.add(Completable.fromRunnable(() -> warmer.warmUp(id))
+                .subscribeOn(Schedulers.io())
+                .subscribe(() -> {},
+                        (Throwable t) -> Log.e(TAG, "Warm up " + id + " error: " +
+                                Log.getStackTraceString(t))
+                )
+        );
+    }
+
+    private String getHost(DownloadInfo info)
+    {
+        String host = Utils.getHostFromUrl(info.url);
+
+        return (host == null ? "" : host.toLowerCase());
     }
 
     private void handleSettingsChanged(String key)
@@ -645,6 +817,9 @@ public class DownloadEngine
 
         } else if (key.equals(appContext.getString(R.string.pref_key_custom_battery_control))) {
             switchPowerReceiver();
+
+        } else if (key.equals(appContext.getString(R.string.pref_key_http2))) {
+            TransportHelper.setHttp2Enabled(pref.http2());
         }
 
         if (reschedule) {
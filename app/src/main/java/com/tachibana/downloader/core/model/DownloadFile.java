@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.system.FileDescriptorWrapper;
+import com.tachibana.downloader.core.system.FileSystemFacade;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.SyncFailedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The file of a download, opened once and shared by all of its piece
+ * connections, which write to it at their own positions. So a download holds
+ * one file descriptor (one SAF provider call) instead of one per connection.
+ * The syncs are coalesced: if the file has been synced since the caller's
+ * last write, nothing is done, so the connections that sync at the same time
+ * wait for one fsync instead of doing their own. The file is closed
+ * when the last user releases it.
+ */
+
+class DownloadFile
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = DownloadFile.class.getSimpleName();
+
+    private final Opener opener;
+    private FileDescriptorWrapper fdWrapper;
+    private FileDescriptor fd;
+    private FileOutputStream fout;
+    private FileChannel channel;
+    private int refCount = 1;
+    private boolean closed;
+    /* The number of completed writes, to know which of them are synced */
+    private final AtomicLong numWrites = new AtomicLong();
+    private final Object syncLock = new Object();
+    private long syncedWrites;
+
+    interface Opener
+    {
+        FileDescriptorWrapper open() throws IOException;
+    }
+
+    /*
+     * Opens the file, the caller is its first user
+     */
+
+    static DownloadFile open(@NonNull FileSystemFacade fs, @NonNull Uri filePath) throws IOException
+    {
+        return new DownloadFile(() -> fs.getFD(filePath));
+    }
+
+    DownloadFile(@NonNull Opener opener) throws IOException
+    {
+        this.opener = opener;
+        reopen(null);
+    }
+
+    /*
+     * Adds a user of the file, which must release it after use
+     */
+
+    synchronized DownloadFile acquire()
+    {
+        refCount++;
+
+        return this;
+    }
+
+    /*
+     * The file is synced and closed after the last user
+     */
+
+    void release()
+    {
+        synchronized (this) {
+            if (closed || --refCount > 0)
+                return;
+        }
+        try {
+            sync();
+
+        } catch (IOException e) {
+            /* Ignore */
+        } finally {
+            synchronized (this) {
+                closed = true;
+                closeQuietly();
+            }
+        }
+    }
+
+    FileDescriptor getFD() throws IOException
+    {
+        synchronized (this) {
+            if (closed)
+                throw new ClosedChannelException();
+            if (!fd.valid())
+                reopen(channel);
+
+            return fd;
+        }
+    }
+
+    /*
+     * Writes all of the buffer at the given position of the file
+     */
+
+    void write(@NonNull ByteBuffer src, long position) throws IOException
+    {
+        /*
+         * The interrupt would close the channel for the other
+         * connections too, so it's delayed until after the write
+         */
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                FileChannel ch = getChannel();
+                try {
+                    while (src.hasRemaining())
+                        position += ch.write(src, position);
+                    break;
+
+                } catch (ClosedChannelException e) {
+                    /* This or another connection is interrupted during the write */
+                    if (Thread.interrupted())
+                        interrupted = true;
+                    reopen(ch);
+                }
+            }
+
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        numWrites.incrementAndGet();
+    }
+
+    /*
+     * Ensures that everything written by the caller is on disk
+     */
+
+    void sync() throws IOException
+    {
+        long target = numWrites.get();
+        synchronized (syncLock) {
+            /* Somebody else has synced after our writes */
+            if (syncedWrites >= target)
+                return;
+
+            long writes = numWrites.get();
+            try {
+                getFD().sync();
+
+            } catch (SyncFailedException e) {
+                /* The descriptor is closed along with the channel, retry with a new one */
+                synchronized (this) {
+                    if (closed)
+                        throw e;
+                    reopen(channel);
+                }
+                getFD().sync();
+            }
+            syncedWrites = writes;
+        }
+    }
+
+    private synchronized FileChannel getChannel() throws IOException
+    {
+        if (closed)
+            throw new ClosedChannelException();
+
+        return channel;
+    }
+
+    /*
+     * Opens the file again if the given channel is still the current one,
+     * i.e. it's not reopened by another connection yet
+     */
+
+    private synchronized void reopen(FileChannel prevChannel) throws IOException
+    {
+        if (closed)
+            throw new ClosedChannelException();
+        if (channel != prevChannel)
+            return;
+
+        /* The descriptor may survive the channel, the SAF ones do */
+        if (fd == null || !fd.valid()) {
+            closeQuietly();
+            fdWrapper = opener.open();
+            fd = fdWrapper.open("rw");
+            if (fd == null) {
+                closeQuietly();
+                throw new IOException("Write error: unable to open file");
+            }
+        }
+        fout = new FileOutputStream(fd);
+        channel = fout.getChannel();
+    }
+
+    private void closeQuietly()
+    {
+        try {
+            if (fout != null)
+                fout.close();
+        } catch (IOException e) {
+            /* Ignore */
+        }
+        try {
+            if (fdWrapper != null)
+                fdWrapper.close();
+        } catch (IOException e) {
+            /* Ignore */
+        }
+        fout = null;
+        channel = null;
+        fd = null;
+        fdWrapper = null;
+    }
+}
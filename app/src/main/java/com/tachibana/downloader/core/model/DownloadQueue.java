@@ -22,13 +22,29 @@ package com.tachibana.downloader.core.model;
 
 import androidx.annotation.NonNull;
 
-import java.util.ArrayDeque;
-import java.util.NoSuchElementException;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.UUID;
 
 /*
  * The priority queue if we want to defer download for an indefinite period of time,
- * for example, simultaneous downloads.
+ * for example, simultaneous downloads. The order is set by the policy:
+ * FIFO, by priority or the shortest remaining download first.
+ * The downloads are grouped by host, and the hosts whose first downloads
+ * are equal by the policy take turns, so that many downloads from
+ * one server don't hold back the downloads from the other ones.
+ * The turns of the hosts are stored with their downloads (see TurnListener),
+ * so the order depends only on the stored download info and it's the same
+ * after restart. Push and pop take O(log n), plus O(number of hosts) for pop
+ * and O(number of downloads of the host) for storing the turn.
  */
 
 class DownloadQueue
@@ -36,28 +52,322 @@ class DownloadQueue
     @SuppressWarnings("unused")
     private static final String TAG = DownloadQueue.class.getSimpleName();
 
-    private ArrayDeque<UUID> queue = new ArrayDeque<>();
+    public static final int POLICY_FIFO = 0;
+    public static final int POLICY_PRIORITY = 1;
+    public static final int POLICY_SHORTEST_FIRST = 2;
+
+    /*
+     * Compares the downloads by the policy key only;
+     * equal downloads are ordered by the date added
+     */
+
+    public interface Policy extends Comparator<Entry> {}
+
+    public static final Policy FIFO = (a, b) -> 0;
+    public static final Policy PRIORITY = (a, b) -> Integer.compare(b.priority, a.priority);
+    public static final Policy SHORTEST_FIRST = (a, b) -> Long.compare(a.remainingBytes, b.remainingBytes);
 
-    public void push(@NonNull UUID downloadId)
+    public static Policy getPolicy(int policy)
     {
-        if (queue.contains(downloadId))
+        switch (policy) {
+            case POLICY_PRIORITY:
+                return PRIORITY;
+            case POLICY_SHORTEST_FIRST:
+                return SHORTEST_FIRST;
+            default:
+                return FIFO;
+        }
+    }
+
+    public static class Entry
+    {
+        public final UUID id;
+        public final String host;
+        public final int priority;
+        public final long dateAdded;
+        /* Long.MAX_VALUE if the size is unknown */
+        public final long remainingBytes;
+        /* The turn of the host when this download was queued or the host last popped */
+        long turn;
+
+        public Entry(@NonNull DownloadInfo info, @NonNull String host, long remainingBytes)
+        {
+            this(info.id, host, info.priority, info.dateAdded, remainingBytes, info.queueTurn);
+        }
+
+        public Entry(@NonNull UUID id,
+                     @NonNull String host,
+                     int priority,
+                     long dateAdded,
+                     long remainingBytes)
+        {
+            this(id, host, priority, dateAdded, remainingBytes, 0);
+        }
+
+        public Entry(@NonNull UUID id,
+                     @NonNull String host,
+                     int priority,
+                     long dateAdded,
+                     long remainingBytes,
+                     long turn)
+        {
+            this.id = id;
+            this.host = host;
+            this.priority = priority;
+            this.dateAdded = dateAdded;
+            this.remainingBytes = remainingBytes;
+            this.turn = turn;
+        }
+    }
+
+    private class HostQueue
+    {
+        String host;
+        TreeSet<Entry> entries = new TreeSet<>(DownloadQueue.this::compareEntries);
+        /* The number of the last pop from this host, for taking turns */
+        long turn;
+
+        HostQueue(String host)
+        {
+            this.host = host;
+        }
+    }
+
+    public interface HostFilter
+    {
+        boolean canRun(@NonNull String host);
+    }
+
+    /*
+     * Called when the turn of the queued downloads changes, to store it
+     * in DownloadInfo.queueTurn. Called on the thread that changes the queue
+     */
+
+    public interface TurnListener
+    {
+        void onTurnChanged(@NonNull List<UUID> downloadIds, long turn);
+    }
+
+    private Policy policy;
+    /* Sorted by the first download of each host */
+    private TreeSet<HostQueue> hosts = new TreeSet<>(this::compareHosts);
+    private HashMap<String, HostQueue> queueByHost = new HashMap<>();
+    private HashMap<UUID, Entry> entryById = new HashMap<>();
+    private long turn;
+    private TurnListener turnListener;
+
+    public DownloadQueue()
+    {
+        this(FIFO);
+    }
+
+    public DownloadQueue(@NonNull Policy policy)
+    {
+        this.policy = policy;
+    }
+
+    public Policy getPolicy()
+    {
+        return policy;
+    }
+
+    public void setTurnListener(TurnListener listener)
+    {
+        turnListener = listener;
+    }
+
+    /*
+     * Reorder the queued downloads, O(n log n)
+     */
+
+    public void setPolicy(@NonNull Policy policy)
+    {
+        if (this.policy == policy)
             return;
-        queue.push(downloadId);
+
+        this.policy = policy;
+        HashMap<UUID, Entry> entries = entryById;
+        hosts = new TreeSet<>(this::compareHosts);
+        queueByHost = new HashMap<>();
+        entryById = new HashMap<>();
+        for (Entry entry : entries.values())
+            push(entry);
+    }
+
+    public int size()
+    {
+        return entryById.size();
     }
 
-    public UUID pop()
+    public boolean contains(@NonNull UUID downloadId)
     {
-        UUID downloadId = null;
-        while (downloadId == null) {
-            try {
-                downloadId = queue.pop();
+        return entryById.containsKey(downloadId);
+    }
 
-            } catch (NoSuchElementException e) {
-                /* Queue is empty, return */
-                return null;
+    public void push(@NonNull Entry entry)
+    {
+        if (entryById.containsKey(entry.id))
+            return;
+
+        HostQueue queue = queueByHost.get(entry.host);
+        if (queue == null) {
+            queue = new HostQueue(entry.host);
+            queue.turn = entry.turn;
+            queueByHost.put(entry.host, queue);
+        } else {
+            /* The key of the host can change */
+            hosts.remove(queue);
+            if (entry.turn > queue.turn)
+                queue.turn = entry.turn;
+            else if (entry.turn < queue.turn)
+                setTurn(Collections.singletonList(entry), queue.turn);
+        }
+        /* The turns go on after the stored ones */
+        turn = Math.max(turn, queue.turn);
+        queue.entries.add(entry);
+        hosts.add(queue);
+        entryById.put(entry.id, entry);
+    }
+
+    /*
+     * The entries are sorted by priority, so the queued download is
+     * pushed again with the new priority. Returns false if it isn't queued
+     */
+
+    public boolean setPriority(@NonNull UUID downloadId, int priority)
+    {
+        Entry entry = entryById.get(downloadId);
+        if (entry == null)
+            return false;
+        if (entry.priority == priority)
+            return true;
+
+        remove(downloadId);
+        push(new Entry(entry.id, entry.host, priority,
+                entry.dateAdded, entry.remainingBytes, entry.turn));
+
+        return true;
+    }
+
+    public void remove(@NonNull UUID downloadId)
+    {
+        Entry entry = entryById.remove(downloadId);
+        if (entry == null)
+            return;
+
+        HostQueue queue = queueByHost.get(entry.host);
+        hosts.remove(queue);
+        queue.entries.remove(entry);
+        if (queue.entries.isEmpty())
+            queueByHost.remove(entry.host);
+        else
+            hosts.add(queue);
+    }
+
+    /*
+     * Returns the first download that passes the filter
+     * or null if there is none, without removing it
+     */
+
+    public Entry peek(@NonNull HostFilter filter)
+    {
+        for (HostQueue queue : hosts) {
+            if (filter.canRun(queue.host))
+                return queue.entries.first();
+        }
+
+        return null;
+    }
+
+    /*
+     * Returns the first downloads of up to the given number of hosts
+     * that pass the filter, in the order they go
+     */
+
+    public List<Entry> peekHeads(int max, @NonNull HostFilter filter)
+    {
+        ArrayList<Entry> heads = new ArrayList<>(max);
+        for (HostQueue queue : hosts) {
+            if (heads.size() >= max)
+                break;
+            if (filter.canRun(queue.host))
+                heads.add(queue.entries.first());
+        }
+
+        return heads;
+    }
+
+    /*
+     * Removes and returns the first download that passes the filter
+     * or null if there is none. Its host then goes after the other
+     * hosts with the equal downloads
+     */
+
+    public UUID pop(@NonNull HostFilter filter)
+    {
+        Iterator<HostQueue> it = hosts.iterator();
+        while (it.hasNext()) {
+            HostQueue queue = it.next();
+            if (!filter.canRun(queue.host))
+                continue;
+
+            it.remove();
+            /* The empty queues are removed, so there is always a download */
+            Entry entry = queue.entries.pollFirst();
+            entryById.remove(entry.id);
+            queue.turn = ++turn;
+            if (queue.entries.isEmpty()) {
+                queueByHost.remove(queue.host);
+            } else {
+                setTurn(queue.entries, queue.turn);
+                hosts.add(queue);
             }
+
+            return entry.id;
+        }
+
+        return null;
+    }
+
+    /*
+     * Returns true if the first download is ahead of the second by the policy key
+     */
+
+    public boolean isAhead(@NonNull Entry first, @NonNull Entry second)
+    {
+        return policy.compare(first, second) < 0;
+    }
+
+    private void setTurn(Collection<Entry> entries, long turn)
+    {
+        ArrayList<UUID> ids = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            entry.turn = turn;
+            ids.add(entry.id);
         }
+        if (turnListener != null)
+            turnListener.onTurnChanged(ids, turn);
+    }
+
+    private int compareEntries(Entry a, Entry b)
+    {
+        int res = policy.compare(a, b);
+        if (res == 0)
+            res = Long.compare(a.dateAdded, b.dateAdded);
+        if (res == 0)
+            res = a.id.compareTo(b.id);
+
+        return res;
+    }
+
+    private int compareHosts(HostQueue a, HostQueue b)
+    {
+        int res = policy.compare(a.entries.first(), b.entries.first());
+        if (res == 0)
+            res = Long.compare(a.turn, b.turn);
+        if (res == 0)
+            res = a.host.compareTo(b.host);
 
-        return downloadId;
+        return res;
     }
-}
\ No newline at end of file
+}
@@ -165,22 +165,27 @@ public class DownloadScheduler
                 .build();
     }
 
+    private static long getInitialDelay(DownloadInfo info)
+    {
+        return getInitialDelay(info, true);
+    }
+
     /*
      * Return initial delay in milliseconds required before this download is
-     * allowed to start again
+     * allowed to start again. Without fuzz it's the earliest possible delay
      */
 
-    private static long getInitialDelay(DownloadInfo info)
+    static long getInitialDelay(DownloadInfo info, boolean fuzz)
     {
         if (info.statusCode == StatusCode.STATUS_WAITING_TO_RETRY) {
             long now = System.currentTimeMillis();
             long startAfter;
             if (info.retryAfter > 0) {
-                startAfter = info.lastModify + fuzzDelay(info.retryAfter);
+                startAfter = info.lastModify + (fuzz ? fuzzDelay(info.retryAfter) : info.retryAfter);
             } else {
                 final long delay = (RETRY_FIRST_DELAY * DateUtils.SECOND_IN_MILLIS *
                         (1 << (info.numFailed - 1)));
-                startAfter = info.lastModify + fuzzDelay(delay);
+                startAfter = info.lastModify + (fuzz ? fuzzDelay(delay) : delay);
             }
             return Math.max(0, startAfter - now);
 
@@ -28,16 +28,19 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.tachibana.downloader.core.Exchange;
 import com.tachibana.downloader.core.HttpConnection;
+import com.tachibana.downloader.core.SelectorLoop;
+import com.tachibana.downloader.core.TransportHelper;
 import com.tachibana.downloader.core.model.data.DownloadResult;
 import com.tachibana.downloader.core.model.data.PieceResult;
 import com.tachibana.downloader.core.model.data.StatusCode;
+import com.tachibana.downloader.core.model.data.entity.DownloadBlocks;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.storage.DataRepository;
-import com.tachibana.downloader.core.system.FileDescriptorWrapper;
 import com.tachibana.downloader.core.system.FileSystemFacade;
 import com.tachibana.downloader.core.system.SystemFacade;
 import com.tachibana.downloader.core.utils.DateUtils;
@@ -47,7 +50,6 @@ import com.tachibana.downloader.core.utils.Utils;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.security.GeneralSecurityException;
@@ -55,10 +57,17 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import static com.tachibana.downloader.core.model.data.StatusCode.HTTP_TOO_MANY_REQUESTS;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_BAD_REQUEST;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_CANNOT_RESUME;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_FETCH_METADATA;
@@ -87,6 +96,18 @@ class DownloadThreadImpl implements DownloadThread
     @SuppressWarnings("unused")
     private static final String TAG = DownloadThreadImpl.class.getSimpleName();
 
+    /* How often the running pieces are checked, ms */
+    private static final long PIECES_CHECK_INTERVAL = 2 * DateUtils.SECOND_IN_MILLIS;
+    /* Auto pieces mode: the time given to connections to reach their speed, ms */
+    private static final long AUTO_PIECES_PROBE_TIME = 6 * DateUtils.SECOND_IN_MILLIS;
+    /* Auto pieces mode: the minimum speed growth to keep adding connections, % */
+    private static final int AUTO_PIECES_MIN_GROWTH = 10;
+    /*
+     * The metadata response isn't handed to the first piece if the file takes
+     * longer to prepare, since the server may drop the stalled response, ms
+     */
+    private static final long MAX_METADATA_RESPONSE_WAIT = 3 * DateUtils.SECOND_IN_MILLIS;
+
     private DownloadInfo info;
     private UUID id;
     /* Stop and delete */
@@ -94,11 +115,33 @@ class DownloadThreadImpl implements DownloadThread
     private boolean pause;
     private boolean running;
     private ExecutorService exec;
+    /* The pieces driven by the selector loops instead of the threads */
+    private final List<NioPieceTask> nioTasks = new CopyOnWriteArrayList<>();
+    /* Used to abort the connections that are blocked on reading */
+    private volatile PieceDispatcher activeDispatcher;
+    /* Opened once and shared by the pieces, which write at their positions */
+    private DownloadFile file;
+    /* The body of the metadata response, which is handed to the first piece */
+    private volatile Exchange metadataResponse;
+    private long metadataResponseTime;
+    private RedirectCache redirectCache = RedirectCache.getInstance();
+    /* Read after the metadata is fetched, when the first piece starts */
+    private RequestTemplate requestTemplate;
     private DataRepository repo;
     private SettingsRepository pref;
     private FileSystemFacade fs;
     private SystemFacade systemFacade;
     private int networkType;
+    /* Auto pieces mode state */
+    private int autoNumThreads;
+    private long autoLastSpeed;
+    private long autoLastChangeTime;
+    private boolean autoTuned;
+    /* The global limiter is shared by all downloads, the download one is inside it */
+    private SpeedLimiter globalLimiter;
+    private SpeedLimiter speedLimiter;
+    /* The number of connections allowed by the engine, e.g. because of the per-host limit */
+    private int maxConnections;
 
     private class ExecDownloadResult
     {
@@ -118,28 +161,54 @@ class DownloadThreadImpl implements DownloadThread
                               @NonNull SettingsRepository pref,
                               @NonNull FileSystemFacade fs,
                               @NonNull SystemFacade systemFacade)
+    {
+        this(id, repo, pref, fs, systemFacade, new SpeedLimiter(), Integer.MAX_VALUE);
+    }
+
+    public DownloadThreadImpl(@NonNull UUID id,
+                              @NonNull DataRepository repo,
+                              @NonNull SettingsRepository pref,
+                              @NonNull FileSystemFacade fs,
+                              @NonNull SystemFacade systemFacade,
+                              @NonNull SpeedLimiter globalLimiter,
+                              int maxConnections)
     {
         this.id = id;
         this.repo = repo;
         this.pref = pref;
         this.fs = fs;
         this.systemFacade = systemFacade;
+        this.globalLimiter = globalLimiter;
+        this.speedLimiter = new SpeedLimiter(globalLimiter);
+        this.maxConnections = maxConnections;
     }
 
     @Override
     public void requestStop()
     {
         stop = true;
-        if (exec != null)
-            exec.shutdownNow();
+        abortPieces();
     }
 
     @Override
     public void requestPause()
     {
         pause = true;
+        abortPieces();
+    }
+
+    private void abortPieces()
+    {
         if (exec != null)
             exec.shutdownNow();
+        Exchange conn = metadataResponse;
+        if (conn != null)
+            conn.cancel();
+        PieceDispatcher dispatcher = activeDispatcher;
+        if (dispatcher != null)
+            dispatcher.abortAll();
+        for (NioPieceTask task : nioTasks)
+            task.cancel();
     }
 
     @Override
@@ -242,7 +311,7 @@ class DownloadThreadImpl implements DownloadThread
 
     private void checkPiecesStatus(List<Future<PieceResult>> resList)
     {
-        if (info.statusCode == HTTP_UNAVAILABLE)
+        if (info.statusCode == HTTP_UNAVAILABLE || info.statusCode == HTTP_TOO_MANY_REQUESTS)
             extractRetryAfter(resList);
 
         List<DownloadPiece> pieces = repo.getPiecesByIdSorted(id);
@@ -252,7 +321,7 @@ class DownloadThreadImpl implements DownloadThread
             info.statusMsg = errMsg;
             Log.i(TAG, "id=" + id + ", " + errMsg);
 
-        } else if (pieces.size() != info.getNumPieces()) {
+        } else if (pieces.size() < info.getNumPieces() || !coverFile(pieces)) {
             String errMsg = "Some pieces are missing";
             info.statusCode = STATUS_UNKNOWN_ERROR;
             info.statusMsg = errMsg;
@@ -299,12 +368,55 @@ class DownloadThreadImpl implements DownloadThread
                     }
                 }
 
-                if (retry)
+                if (retry) {
                     handleRetryableStatus(madeProgress);
+
+                } else if (info.statusCode == STATUS_SUCCESS && !allFinished(pieces)) {
+                    String errMsg = "Some pieces are not finished";
+                    info.statusCode = STATUS_UNKNOWN_ERROR;
+                    info.statusMsg = errMsg;
+                    Log.i(TAG, "id=" + id + ", " + errMsg);
+                }
             }
         }
     }
 
+    /*
+     * Returns true if the pieces cover the whole file without gaps and overlaps.
+     * The pieces can be split during download, so their number isn't enough
+     */
+
+    private boolean coverFile(List<DownloadPiece> pieces)
+    {
+        if (info.totalBytes <= 0)
+            return true;
+
+        ArrayList<DownloadPiece> sorted = new ArrayList<>(pieces);
+        Collections.sort(sorted, (a, b) -> Long.compare(a.startPos, b.startPos));
+        long pos = 0;
+        for (DownloadPiece piece : sorted) {
+            if (piece.startPos != pos || piece.size <= 0)
+                return false;
+            pos += piece.size;
+        }
+
+        return pos == info.totalBytes;
+    }
+
+    /*
+     * The empty piece of a zero length file isn't downloaded at all
+     */
+
+    private boolean allFinished(List<DownloadPiece> pieces)
+    {
+        for (DownloadPiece piece : pieces) {
+            if (piece.size != 0 && piece.statusCode != STATUS_SUCCESS)
+                return false;
+        }
+
+        return true;
+    }
+
     private void extractRetryAfter(List<Future<PieceResult>> resList)
     {
         long maxRetryAfter = 0;
@@ -371,6 +483,8 @@ class DownloadThreadImpl implements DownloadThread
             if (!info.hasMetadata) {
                 if ((ret = fetchMetadata()) != null)
                     return new ExecDownloadResult(ret, resList);
+            } else {
+                claimProbe();
             }
 
             /* Create file if doesn't exists or replace it */
@@ -405,30 +519,329 @@ class DownloadThreadImpl implements DownloadThread
                 return new ExecDownloadResult(ret, resList);
             }
 
+            try {
+                file = DownloadFile.open(fs, filePath);
+
+            } catch (IOException e) {
+                ret = new StopRequest(STATUS_FILE_ERROR, e);
+                return new ExecDownloadResult(ret, resList);
+            }
+
             /* Pre-flight disk space requirements, when known */
             if (info.totalBytes > 0 && pref.preallocateDiskSpace()) {
-                if ((ret = allocFileSpace(filePath)) != null)
+                if ((ret = allocFileSpace()) != null)
                     return new ExecDownloadResult(ret, resList);
             }
+            if (metadataResponse != null &&
+                DateUtils.elapsedRealtime() - metadataResponseTime > MAX_METADATA_RESPONSE_WAIT) {
+                Log.i(TAG, "id=" + id + ", metadata response has waited too long, dropped");
+                closeMetadataResponse();
+            }
+
+            /*
+             * The number of pieces is the number of connections. The file
+             * is split into more segments, which the connections pull
+             * from the dispatcher until all of them are downloaded
+             */
+            List<DownloadPiece> pieces = repo.getPiecesById(id);
+            PieceDispatcher dispatcher = new PieceDispatcher(pieces, loadBlocks(pieces));
+            activeDispatcher = dispatcher;
+            int numThreads = Math.min(getMaxConnections(), dispatcher.numPending());
+            if (numThreads == 0)
+                return new ExecDownloadResult(ret, resList);
+
+            /*
+             * The non-blocking pieces need the ranges, so the size must be known.
+             * The connections cost almost nothing there, so all of them are
+             * opened at once instead of probing the number in auto pieces mode.
+             * They are always direct, so the proxy needs the blocking ones
+             */
+            boolean nonBlocking = pref.nonBlockingConnections() &&
+                    info.partialSupport && info.totalBytes > 0 &&
+                    !TransportHelper.hasProxy(info.url);
+            int poolSize = numThreads;
+            if (info.autoPieces && !nonBlocking) {
+                /* Probe with one connection, then add more while the speed grows */
+                poolSize = getMaxConnections();
+                numThreads = 1;
+                autoNumThreads = 1;
+                autoLastSpeed = 0;
+                autoLastChangeTime = DateUtils.elapsedRealtime();
+                autoTuned = false;
+                dispatcher.setMaxThreads(autoNumThreads);
+            }
 
-            exec = (info.getNumPieces() == 1 ?
-                    Executors.newSingleThreadExecutor() :
-                    Executors.newFixedThreadPool(info.getNumPieces()));
+            speedLimiter.setLimit(info.speedLimit * 1024L);
+            updateGlobalSpeedLimit();
 
-            ArrayList<PieceThread> pieceThreads = new ArrayList<>(info.getNumPieces());
-            for (int i = 0; i < info.getNumPieces(); i++)
-                pieceThreads.add(new PieceThreadImpl(id, i, repo, fs, systemFacade, pref));
+            resList = new ArrayList<>(poolSize);
+            if (nonBlocking) {
+                for (int i = 0; i < numThreads; i++)
+                    addNioPieceTask(resList, dispatcher, dispatcher.pollPending());
+            } else {
+                exec = (poolSize == 1 ?
+                        Executors.newSingleThreadExecutor() :
+                        Executors.newFixedThreadPool(poolSize));
+                for (int i = 0; i < numThreads; i++)
+                    addPieceThread(resList, dispatcher, dispatcher.pollPending());
+            }
+            /* The non-blocking pieces don't take it */
+            closeMetadataResponse();
 
             /* Wait all threads */
-            resList = exec.invokeAll(pieceThreads);
+            try {
+                waitPieces(resList, dispatcher);
+            } finally {
+                saveBlocks(dispatcher);
+                nioTasks.clear();
+            }
+            if (exec != null)
+                exec.shutdown();
 
         } catch (InterruptedException e) {
             requestStop();
+        } finally {
+            /* Not taken by the first piece */
+            closeMetadataResponse();
+            /* Closed after the last piece, which can still be finishing if interrupted */
+            if (file != null) {
+                file.release();
+                file = null;
+            }
         }
 
         return new ExecDownloadResult(ret, resList);
     }
 
+    /*
+     * Wait for the piece threads, periodically checking the running pieces
+     */
+
+    private void waitPieces(List<Future<PieceResult>> resList,
+                            PieceDispatcher dispatcher) throws InterruptedException
+    {
+        /* New threads can be added while waiting */
+        for (int i = 0; i < resList.size(); i++) {
+            Future<PieceResult> f = resList.get(i);
+            while (true) {
+                try {
+                    f.get(PIECES_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                    break;
+
+                } catch (TimeoutException e) {
+                    saveBlocks(dispatcher);
+                    updateGlobalSpeedLimit();
+                    /*
+                     * Reconnecting from zero would lose downloaded data.
+                     * Limited connections are slow on purpose
+                     */
+                    if (info.partialSupport && !speedLimiter.isLimited())
+                        dispatcher.reconnectStalled();
+                    if (info.autoPieces && exec != null)
+                        adjustNumThreads(resList, dispatcher);
+                } catch (ExecutionException | CancellationException e) {
+                    /* The piece status is checked later */
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+     * Returns the bitmap of the downloaded blocks or null if the download can't
+     * be resumed from an arbitrary position. The bitmap is reset
+     * if the file size has changed, otherwise the progress of the pieces
+     * is checked against it
+     */
+
+    private DownloadBlocks loadBlocks(List<DownloadPiece> pieces)
+    {
+        if (!info.partialSupport || info.totalBytes <= 0)
+            return null;
+
+        DownloadBlocks blocks = repo.getBlocksById(id);
+        if (blocks == null || blocks.totalBytes != info.totalBytes) {
+            blocks = new DownloadBlocks(id, info.totalBytes);
+            repo.addBlocks(blocks);
+        } else {
+            validateProgress(pieces, blocks);
+        }
+
+        return blocks;
+    }
+
+    /*
+     * Resume the pieces only as far as the bitmap confirms that their data
+     * is on disk: from the first block of the downloaded range that
+     * isn't marked. The bitmap is saved less often than the pieces,
+     * so the last few blocks can be downloaded again after a crash
+     */
+
+    private void validateProgress(List<DownloadPiece> pieces, DownloadBlocks blocks)
+    {
+        for (DownloadPiece piece : pieces) {
+            if (piece.statusCode == STATUS_SUCCESS || piece.curBytes <= piece.startPos)
+                continue;
+
+            long pos = blocks.getConfirmedPos(piece.startPos, piece.curBytes);
+            if (pos >= piece.curBytes)
+                continue;
+            Log.i(TAG, "id=" + id + ", piece=" + piece.index + " is confirmed only up to " +
+                    pos + " instead of " + piece.curBytes);
+            piece.curBytes = pos;
+            repo.updatePiece(piece);
+        }
+    }
+
+    private void saveBlocks(PieceDispatcher dispatcher)
+    {
+        DownloadBlocks blocks = dispatcher.takeChangedBlocks();
+        if (blocks != null)
+            repo.updateBlocks(blocks);
+    }
+
+    private int getMaxConnections()
+    {
+        return Math.max(1, Math.min(info.getNumPieces(), maxConnections));
+    }
+
+    /*
+     * The global limit depends on the current network type and can change during download
+     */
+
+    private void updateGlobalSpeedLimit()
+    {
+        int limit = (Utils.isMetered(systemFacade) ?
+                pref.speedLimitMetered() :
+                pref.speedLimitUnmetered());
+        globalLimiter.setLimit(limit * 1024L);
+    }
+
+    /*
+     * Returns the request template shared by the piece threads,
+     * which is read again if the cookies have changed
+     */
+
+    private synchronized RequestTemplate getRequestTemplate()
+    {
+        if (requestTemplate == null || requestTemplate.isStale())
+            requestTemplate = RequestTemplate.load(repo, id);
+
+        return requestTemplate;
+    }
+
+    private void addPieceThread(List<Future<PieceResult>> resList,
+                                PieceDispatcher dispatcher,
+                                int pieceIndex)
+    {
+        PieceThreadImpl thread = new PieceThreadImpl(id, pieceIndex,
+                repo, fs, systemFacade, pref, dispatcher, speedLimiter,
+                this::getRequestTemplate);
+        /* The metadata response starts with the first piece */
+        Exchange conn = metadataResponse;
+        if (conn != null && pieceIndex == 0) {
+            metadataResponse = null;
+            thread.setInitialResponse(conn);
+        }
+        thread.setFile(file.acquire());
+        dispatcher.addThread(thread);
+        try {
+            resList.add(exec.submit((PieceThread)thread));
+
+        } catch (RejectedExecutionException e) {
+            /* Download is stopped */
+            dispatcher.removeThread(thread);
+            file.release();
+        }
+    }
+
+    private void addNioPieceTask(List<Future<PieceResult>> resList,
+                                 PieceDispatcher dispatcher,
+                                 int pieceIndex)
+    {
+        NioPieceTask task;
+        try {
+            task = new NioPieceTask(id, pieceIndex, repo, file.acquire(), systemFacade, pref,
+                    dispatcher, speedLimiter, this::getRequestTemplate, SelectorLoop.next());
+
+        } catch (IOException e) {
+            file.release();
+            /* Unable to open the selector; the piece fails and is retried with the download */
+            Log.e(TAG, Log.getStackTraceString(e));
+            dispatcher.pieceDone(pieceIndex);
+            DownloadPiece piece = repo.getPiece(pieceIndex, id);
+            if (piece != null) {
+                piece.statusCode = STATUS_UNKNOWN_ERROR;
+                piece.statusMsg = e.getMessage();
+                repo.updatePiece(piece);
+            }
+            return;
+        }
+        nioTasks.add(task);
+        resList.add(task.start());
+        /* Download is stopped */
+        if (stop || pause)
+            task.cancel();
+    }
+
+    /*
+     * Auto pieces mode: add one connection at a time while the total speed
+     * grows meaningfully. Stop when it doesn't, removing the last connection
+     * if it made the download slower. The server answering 503 or 429 means
+     * that there are too many connections, so one of them is removed.
+     * The excess threads finish after their current piece
+     */
+
+    private void adjustNumThreads(List<Future<PieceResult>> resList,
+                                  PieceDispatcher dispatcher)
+    {
+        if (dispatcher.checkServerBusy()) {
+            if (autoNumThreads > 1) {
+                autoNumThreads--;
+                dispatcher.setMaxThreads(autoNumThreads);
+                Log.i(TAG, "id=" + id + ", server is busy, reduce connections to " + autoNumThreads);
+            }
+            autoTuned = true;
+            return;
+        }
+
+        long now = DateUtils.elapsedRealtime();
+        if (autoTuned || now - autoLastChangeTime < AUTO_PIECES_PROBE_TIME)
+            return;
+
+        long speed = dispatcher.getTotalSpeed();
+        /* Still connecting */
+        if (speed == 0)
+            return;
+
+        if (autoLastSpeed > 0 && speed * 100 < autoLastSpeed * (100 + AUTO_PIECES_MIN_GROWTH)) {
+            if (speed < autoLastSpeed && autoNumThreads > 1) {
+                autoNumThreads--;
+                dispatcher.setMaxThreads(autoNumThreads);
+            }
+            autoTuned = true;
+            Log.i(TAG, "id=" + id + ", speed stopped growing, use " + autoNumThreads + " connections");
+            return;
+        }
+
+        /* Either the limit is reached or some threads have run out of work */
+        if (autoNumThreads >= getMaxConnections() || dispatcher.numThreads() < autoNumThreads) {
+            autoTuned = true;
+            return;
+        }
+        if (!dispatcher.hasWork()) {
+            autoTuned = true;
+            return;
+        }
+
+        autoNumThreads++;
+        autoLastSpeed = speed;
+        autoLastChangeTime = now;
+        dispatcher.setMaxThreads(autoNumThreads);
+        /* The thread takes its piece itself, the split isn't saved on this thread */
+        addPieceThread(resList, dispatcher, -1);
+    }
+
     private StopRequest fetchMetadata()
     {
         final StopRequest[] ret = new StopRequest[1];
@@ -443,27 +856,43 @@ class DownloadThreadImpl implements DownloadThread
             return new StopRequest(STATUS_UNKNOWN_ERROR, "Unable to create SSLContext");
         }
         connection.setTimeout(pref.timeout());
+        /* The response body is either read by the first piece or aborted */
+        connection.setKeepAlive(true);
         connection.setListener(new HttpConnection.Listener() {
             @Override
-            public void onConnectionCreated(HttpURLConnection conn)
+            public void onConnectionCreated(Exchange conn)
             {
-                /* Nothing */
+                addRequestHeaders(conn);
             }
 
             @Override
-            public void onResponseHandle(HttpURLConnection conn, int code, String message)
+            public void onResponseHandle(Exchange conn, int code, String message)
+            {
+                handleResponse(conn, code, message);
+                if (metadataResponse != conn)
+                    conn.cancel();
+            }
+
+            private void handleResponse(Exchange conn, int code, String message)
             {
                 switch (code) {
                     case HTTP_OK:
+                        /* The pieces skip the redirects */
+                        redirectCache.put(id, info.url, conn.getUrl().toString());
                         ret[0] = parseOkHeaders(conn);
+                        if (ret[0] == null) {
+                            metadataResponse = conn;
+                            metadataResponseTime = DateUtils.elapsedRealtime();
+                        }
                         break;
                     case HTTP_PRECON_FAILED:
                         ret[0] = new StopRequest(STATUS_CANNOT_RESUME,
                                 "Precondition failed");
                         break;
                     case HTTP_UNAVAILABLE:
+                    case HTTP_TOO_MANY_REQUESTS:
                         parseUnavailableHeaders(conn);
-                        ret[0] = new StopRequest(HTTP_UNAVAILABLE, message);
+                        ret[0] = new StopRequest(code, message);
                         break;
                     case HTTP_INTERNAL_ERROR:
                         ret[0] = new StopRequest(HTTP_INTERNAL_ERROR, message);
@@ -503,14 +932,60 @@ class DownloadThreadImpl implements DownloadThread
         return ret[0];
     }
 
-    private StopRequest parseOkHeaders(HttpURLConnection conn)
+    /*
+     * The same headers as the pieces send, so that the response
+     * body is the same as they would get
+     */
+
+    private void addRequestHeaders(Exchange conn)
+    {
+        for (Header header : repo.getHeadersById(id)) {
+            if ("ETag".equals(header.name))
+                continue;
+            conn.addRequestHeader(header.name, header.value);
+        }
+        if (conn.getRequestHeader("User-Agent") == null && !TextUtils.isEmpty(info.userAgent))
+            conn.addRequestHeader("User-Agent", info.userAgent);
+        conn.setRequestHeader("Accept-Encoding", "identity");
+    }
+
+    /*
+     * The link probe of the add download dialog is used as the metadata response.
+     * The URL of the download added from the dialog is already normalized
+     */
+
+    private void claimProbe()
+    {
+        if (metadataResponse != null)
+            return;
+
+        RequestTemplate template = getRequestTemplate();
+        Exchange conn = ProbeCache.getInstance().claim(info.url,
+                template.userAgent, info.totalBytes, template.etag);
+        if (conn == null)
+            return;
+
+        redirectCache.put(id, info.url, conn.getUrl().toString());
+        metadataResponse = conn;
+        metadataResponseTime = DateUtils.elapsedRealtime();
+    }
+
+    private void closeMetadataResponse()
+    {
+        Exchange conn = metadataResponse;
+        metadataResponse = null;
+        if (conn != null)
+            conn.cancel();
+    }
+
+    private StopRequest parseOkHeaders(Exchange conn)
     {
         String mimeType = Intent.normalizeMimeType(conn.getContentType());
         /* Try to determine the MIME type by the filename extension */
         if (mimeType == null || mimeType.equals("application/octet-stream")) {
             String contentDisposition = conn.getHeaderField("Content-Disposition");
             String contentLocation = conn.getHeaderField("Content-Location");
-            String tmpUrl = conn.getURL().toString();
+            String tmpUrl = conn.getUrl().toString();
 
             String fileName = Utils.getHttpFileName(fs,
                     tmpUrl,
@@ -566,9 +1041,9 @@ class DownloadThreadImpl implements DownloadThread
         return null;
     }
 
-    private void parseUnavailableHeaders(@NonNull HttpURLConnection conn)
+    private void parseUnavailableHeaders(@NonNull Exchange conn)
     {
-        long retryAfter = conn.getHeaderFieldInt("Retry-After", -1);
+        long retryAfter = PieceHelper.parseRetryAfter(conn.getHeaderField("Retry-After"));
 
         if (retryAfter > 0)
             info.retryAfter = constrainRetryAfter(retryAfter);
@@ -588,11 +1063,11 @@ class DownloadThreadImpl implements DownloadThread
         return amount < low ? low : (amount > high ? high : amount);
     }
 
-    private StopRequest allocFileSpace(Uri filePath)
+    private StopRequest allocFileSpace()
     {
         FileDescriptor fd = null;
-        try (FileDescriptorWrapper w = fs.getFD(filePath)) {
-            fd = w.open("rw");
+        try {
+            fd = file.getFD();
             try {
                 fs.allocate(fd, info.totalBytes);
 
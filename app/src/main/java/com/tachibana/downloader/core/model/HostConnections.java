@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/*
+ * Counts the connections that the running downloads open to each host,
+ * so that the total number of them per host doesn't exceed the limit.
+ * A download gets as many connections as are free, but at least one.
+ */
+
+class HostConnections
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = HostConnections.class.getSimpleName();
+
+    private HashMap<String, Integer> numByHost = new HashMap<>();
+    private HashMap<UUID, String> hostById = new HashMap<>();
+    private HashMap<UUID, Integer> numById = new HashMap<>();
+
+    public int getFree(@NonNull String host, int maxPerHost)
+    {
+        Integer num = numByHost.get(host);
+
+        return Math.max(0, maxPerHost - (num == null ? 0 : num));
+    }
+
+    /*
+     * Returns the number of connections granted to the download
+     * or 0 if the host has no free connections
+     */
+
+    public int acquire(@NonNull UUID id, @NonNull String host, int wanted, int maxPerHost)
+    {
+        release(id);
+
+        int num = Math.min(Math.max(wanted, 1), getFree(host, maxPerHost));
+        if (num == 0)
+            return 0;
+
+        Integer used = numByHost.get(host);
+        numByHost.put(host, (used == null ? 0 : used) + num);
+        hostById.put(id, host);
+        numById.put(id, num);
+
+        return num;
+    }
+
+    public void release(@NonNull UUID id)
+    {
+        String host = hostById.remove(id);
+        Integer num = numById.remove(id);
+        if (host == null || num == null)
+            return;
+
+        Integer used = numByHost.get(host);
+        if (used == null || used <= num)
+            numByHost.remove(host);
+        else
+            numByHost.put(host, used - num);
+    }
+}
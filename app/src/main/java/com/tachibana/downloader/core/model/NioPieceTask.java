@@ -0,0 +1,847 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.text.TextUtils;
+import android.util.Log;
+import android.webkit.CookieManager;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.HttpConnection;
+import com.tachibana.downloader.core.NioHttpConnection;
+import com.tachibana.downloader.core.SelectorLoop;
+import com.tachibana.downloader.core.SocketTuner;
+import com.tachibana.downloader.core.model.data.PieceResult;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+import com.tachibana.downloader.core.settings.SettingsRepository;
+import com.tachibana.downloader.core.storage.DataRepository;
+import com.tachibana.downloader.core.system.SystemFacade;
+import com.tachibana.downloader.core.utils.DateUtils;
+import com.tachibana.downloader.core.utils.Utils;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_BAD_REQUEST;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_CANNOT_RESUME;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_FILE_ERROR;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_HTTP_DATA_ERROR;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_RUNNING;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_STOPPED;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_SUCCESS;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_TOO_MANY_REDIRECTS;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_UNKNOWN_ERROR;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_WAITING_FOR_NETWORK;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_WAITING_TO_RETRY;
+
+/*
+ * The non-blocking counterpart of the piece thread: downloads the pieces
+ * of one connection on a selector loop instead of a thread of its own.
+ * Like the thread, it streams the following pending pieces over the same
+ * connection, then takes the next pending piece from the dispatcher,
+ * retries a failed piece with a backoff and reports the result as
+ * a PieceResult future, so the download thread handles both the same way.
+ * The running pieces aren't split or duplicated, the dispatcher does it
+ * only for the piece threads.
+ *
+ * The state is accessed only on the loop thread. The blocking work (loading
+ * the pieces and the request template, saving the progress, syncing the file,
+ * reading the cookies) runs in order on a worker thread, and the task continues
+ * on the loop with its result. The database is updated with copies of the piece,
+ * so the transfer doesn't wait for it. Only the writes to the file are done
+ * on the loop, they don't wait for the disk.
+ */
+
+class NioPieceTask implements NioHttpConnection.Listener
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = NioPieceTask.class.getSimpleName();
+
+    /* The minimum amount of progress that has to be done before the progress bar gets updated */
+    private static final int MIN_PROGRESS_STEP = 65536;
+    /* The minimum amount of time that has to elapse before the progress bar gets updated, ms */
+    private static final long MIN_PROGRESS_TIME = 2000;
+
+    private final UUID infoId;
+    private final int firstPieceIndex;
+    private final DataRepository repo;
+    private final DownloadFile file;
+    private final SystemFacade systemFacade;
+    private final SettingsRepository pref;
+    private final PieceDispatcher dispatcher;
+    private final SpeedLimiter speedLimiter;
+    private final RequestTemplate.Provider templateProvider;
+    private final SelectorLoop loop;
+    private final PieceResult result;
+    private final ResultFuture future = new ResultFuture();
+    private RedirectCache redirectCache = RedirectCache.getInstance();
+    private SocketTuner socketTuner = SocketTuner.getInstance();
+
+    private DownloadPiece piece;
+    /* The piece that is being loaded, -1 if none */
+    private int loadingIndex = -1;
+    private long startPos;
+    private long endPos;
+    /* The end of the requested range, may include the following pieces */
+    private long rangeEnd;
+    /* The position from which the current connection writes data */
+    private long writeStartPos;
+    private RequestTemplate template;
+    private NioHttpConnection conn;
+    /* The URL of the previous successful request, null if it's the original one */
+    private String resolvedUrl;
+    private boolean resuming;
+    private int numRedirects;
+    private int numRetries;
+    /* The piece position before the current request */
+    private long prevBytes;
+    private SelectorLoop.Timer retryTimer;
+    private String transferHost;
+    private long lastUpdateBytes;
+    private long lastUpdateTime;
+    private long speedSampleStart;
+    private long speedSampleBytes;
+    /* The current connection writes to the file */
+    private boolean transferring;
+    /* The progress is being saved by the worker */
+    private boolean savingProgress;
+    private volatile boolean cancelled;
+    private boolean done;
+    /* The blocking work of the task, run in order off the loop */
+    private final ArrayDeque<Runnable> work = new ArrayDeque<>();
+    private boolean working;
+
+    private static class ResultFuture extends FutureTask<PieceResult>
+    {
+        ResultFuture()
+        {
+            super(() -> null);
+        }
+
+        void complete(PieceResult result)
+        {
+            set(result);
+        }
+    }
+
+    NioPieceTask(@NonNull UUID infoId,
+                 int pieceIndex,
+                 @NonNull DataRepository repo,
+                 @NonNull DownloadFile file,
+                 @NonNull SystemFacade systemFacade,
+                 @NonNull SettingsRepository pref,
+                 @NonNull PieceDispatcher dispatcher,
+                 SpeedLimiter speedLimiter,
+                 @NonNull RequestTemplate.Provider templateProvider,
+                 @NonNull SelectorLoop loop)
+    {
+        this.infoId = infoId;
+        this.firstPieceIndex = pieceIndex;
+        this.repo = repo;
+        this.file = file;
+        this.systemFacade = systemFacade;
+        this.pref = pref;
+        this.dispatcher = dispatcher;
+        this.speedLimiter = speedLimiter;
+        this.templateProvider = templateProvider;
+        this.loop = loop;
+        this.result = new PieceResult(infoId, pieceIndex);
+    }
+
+    /*
+     * Returns the future of the result, which is set when the task has
+     * nothing more to download, failed or is cancelled
+     */
+
+    Future<PieceResult> start()
+    {
+        loop.execute(() -> guard(() -> startPiece(firstPieceIndex)));
+
+        return future;
+    }
+
+    /*
+     * Abort the current connection and stop, e.g. on pause.
+     * Can be called from any thread
+     */
+
+    void cancel()
+    {
+        cancelled = true;
+        loop.execute(() -> guard(this::onCancel));
+    }
+
+    private void startPiece(int index)
+    {
+        piece = null;
+        loadingIndex = index;
+        offload(() -> {
+            DownloadPiece nextPiece = repo.getPiece(index, infoId);
+            resume(() -> onPieceLoaded(index, nextPiece));
+        });
+    }
+
+    private void onPieceLoaded(int index, DownloadPiece nextPiece)
+    {
+        loadingIndex = -1;
+        piece = nextPiece;
+        if (piece == null) {
+            Log.w(TAG, "Piece " + index + " is null, skipping");
+            finish();
+            return;
+        }
+        if (piece.statusCode == STATUS_SUCCESS) {
+            Log.w(TAG, index + " already finished, skipping");
+            finishPiece(true);
+            return;
+        }
+
+        /* Start progress and speed sampling from the position of this piece */
+        lastUpdateBytes = speedSampleBytes = piece.curBytes;
+        speedSampleStart = DateUtils.elapsedRealtime();
+        numRetries = 0;
+        attempt();
+    }
+
+    private void attempt()
+    {
+        piece.statusCode = STATUS_RUNNING;
+        piece.statusMsg = null;
+        writeToDatabase();
+        prevBytes = piece.curBytes;
+
+        request();
+    }
+
+    private void request()
+    {
+        if (cancelled) {
+            onAttemptDone(new StopRequest(STATUS_STOPPED, "Download cancelled"));
+            return;
+        }
+        if (piece.size == 0) {
+            onAttemptDone(new StopRequest(STATUS_SUCCESS, "Length is zero; skipping"));
+            return;
+        }
+
+        /* The template can be loaded from the database */
+        offload(() -> {
+            RequestTemplate newTemplate = templateProvider.get();
+            boolean connected = Utils.checkConnectivity(pref, systemFacade);
+            resume(() -> onRequestReady(newTemplate, connected));
+        });
+    }
+
+    private void onRequestReady(RequestTemplate newTemplate, boolean connected)
+    {
+        template = newTemplate;
+        if (template == null) {
+            onAttemptDone(new StopRequest(STATUS_STOPPED, "Download deleted or missing"));
+            return;
+        }
+        DownloadInfo info = template.info;
+        startPos = info.pieceStartPos(piece);
+        endPos = info.pieceEndPos(piece);
+
+        /* Skip the blocks that are already downloaded, e.g. by an interrupted duplicate */
+        long pos = PieceHelper.skipDone(dispatcher, info, piece.curBytes, endPos);
+        if (pos > piece.curBytes) {
+            piece.curBytes = pos;
+            if (pos > endPos) {
+                onAttemptDone(null);
+                return;
+            }
+        }
+        /* Reset and download from the beginning */
+        if (!info.partialSupport) {
+            piece.curBytes = startPos;
+            writeToDatabase();
+        }
+
+        if (!connected) {
+            onAttemptDone(new StopRequest(STATUS_WAITING_FOR_NETWORK));
+            return;
+        }
+
+        /* Connect straight to where the URL redirected the previous time */
+        resolvedUrl = redirectCache.get(infoId, info.url);
+        resuming = piece.curBytes != startPos;
+        numRedirects = 0;
+        URL url;
+        try {
+            url = new URL(resolvedUrl == null ? info.url : resolvedUrl);
+
+        } catch (MalformedURLException e) {
+            onAttemptDone(new StopRequest(STATUS_BAD_REQUEST, "bad url " + info.url, e));
+            return;
+        }
+        /* The cookies of the redirect target aren't known in advance */
+        if (resolvedUrl == null)
+            connect(url, template.cookies);
+        else
+            connectWithStoredCookies(url);
+    }
+
+    /*
+     * Reading the cookie store may block
+     */
+
+    private void connectWithStoredCookies(URL url)
+    {
+        offload(() -> {
+            String cookies = CookieManager.getInstance().getCookie(url.toString());
+            resume(() -> connect(url, cookies));
+        });
+    }
+
+    private void connect(URL url, String cookies)
+    {
+        try {
+            conn = new NioHttpConnection(loop, url, pref.timeout());
+
+        } catch (MalformedURLException e) {
+            onAttemptDone(new StopRequest(STATUS_BAD_REQUEST, "bad url " + url, e));
+            return;
+        }
+        if (cookies != null)
+            conn.setRequestHeader("Cookie", cookies);
+        if (!TextUtils.isEmpty(template.referer))
+            conn.setRequestHeader("Referer", template.referer);
+        /* Request the following pieces that nobody downloads yet to stream them too */
+        rangeEnd = PieceHelper.getRangeEnd(dispatcher, endPos);
+        PieceHelper.addRequestHeaders(conn::setRequestHeader, template,
+                resuming, piece.curBytes, rangeEnd);
+
+        conn.setListener(this);
+        conn.start();
+    }
+
+    @Override
+    public boolean onResponse(int code, @NonNull String message, @NonNull Map<String, String> headers)
+    {
+        try {
+            return handleResponse(code, message, headers);
+
+        } catch (Throwable t) {
+            onCrash(t);
+            return false;
+        }
+    }
+
+    /*
+     * Returns true if the response body is transferred
+     */
+
+    private boolean handleResponse(int code, String message, Map<String, String> headers)
+    {
+        DownloadInfo info = template.info;
+        String location = headers.get("location");
+        URL redirectUrl;
+        try {
+            redirectUrl = HttpConnection.getRedirectUrl(conn.getUrl(), code, location);
+
+        } catch (MalformedURLException e) {
+            onAttemptDone(new StopRequest(STATUS_BAD_REQUEST, "bad redirect url " + location, e));
+            return false;
+        }
+        if (redirectUrl != null) {
+            /* The same number of requests as the piece thread makes */
+            if (++numRedirects >= HttpConnection.MAX_REDIRECTS)
+                onAttemptDone(new StopRequest(STATUS_TOO_MANY_REDIRECTS, "Too many redirects"));
+            else
+                connectWithStoredCookies(redirectUrl);
+            return false;
+        }
+        if (PieceHelper.isRedirectExpired(resolvedUrl, code)) {
+            redirectCache.remove(infoId);
+            request();
+            return false;
+        }
+
+        StopRequest ret = PieceHelper.checkResponse(code, message,
+                (name) -> headers.get(name.toLowerCase(Locale.US)),
+                info, startPos != 0 || resuming, result, dispatcher);
+        if (ret != null) {
+            onAttemptDone(ret);
+            return false;
+        }
+        redirectCache.put(infoId, info.url, conn.getUrl().toString());
+
+        return startTransfer();
+    }
+
+    private boolean startTransfer()
+    {
+        if (piece.size == -1) {
+            onAttemptDone(new StopRequest(STATUS_CANNOT_RESUME,
+                    "Can't know size of download, giving up"));
+            return false;
+        }
+
+        transferring = true;
+        writeStartPos = piece.curBytes;
+        transferHost = conn.getUrl().getHost();
+
+        return true;
+    }
+
+    @Override
+    public void onData(@NonNull ByteBuffer data)
+    {
+        try {
+            transferData(data);
+
+        } catch (Throwable t) {
+            onCrash(t);
+        }
+    }
+
+    private void transferData(ByteBuffer data)
+    {
+        long delay = (speedLimiter == null ? 0 : speedLimiter.reserve(data.remaining()));
+
+        while (data.hasRemaining()) {
+            /* The piece ends inside the data, the rest belongs to the following piece */
+            int n = (int)Math.min(data.remaining(), endPos + 1 - piece.curBytes);
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + n);
+            StopRequest ret;
+            try {
+                /* It goes to the page cache, only the sync waits for the disk */
+                file.write(chunk, piece.curBytes);
+                piece.curBytes += n;
+                ret = updateProgress();
+
+            } catch (IOException e) {
+                ret = new StopRequest(STATUS_FILE_ERROR, e);
+            }
+            data.position(chunk.position());
+            if (ret != null) {
+                stopTransfer(ret);
+                return;
+            }
+
+            if (piece.curBytes >= endPos + 1 && !streamNextPiece()) {
+                /* The rest of the response isn't needed */
+                stopTransfer(null);
+                return;
+            }
+        }
+
+        if (delay > 0)
+            conn.pauseReading(Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay)));
+    }
+
+    @Override
+    public void onComplete()
+    {
+        try {
+            transferDone(null);
+
+        } catch (Throwable t) {
+            onCrash(t);
+        }
+    }
+
+    @Override
+    public void onError(@NonNull IOException e)
+    {
+        try {
+            transferDone(PieceHelper.getIOError(e));
+
+        } catch (Throwable t) {
+            onCrash(t);
+        }
+    }
+
+    private void stopTransfer(StopRequest ret)
+    {
+        conn.cancel();
+        transferDone(ret);
+    }
+
+    private void transferDone(StopRequest ret)
+    {
+        syncFile();
+        /* Finished without error; verify length */
+        if (ret == null && piece.curBytes != endPos + 1) {
+            ret = new StopRequest(STATUS_HTTP_DATA_ERROR,
+                    "Piece length mismatch; found "
+                    + piece.curBytes + " instead of " + (endPos + 1));
+        }
+        onAttemptDone(ret);
+    }
+
+    /*
+     * Continue reading the response into the following piece, if nobody
+     * downloads it yet. Returns false if there is nothing to continue with
+     */
+
+    private boolean streamNextPiece()
+    {
+        /* The response doesn't contain it */
+        if (rangeEnd <= endPos || cancelled)
+            return false;
+
+        DownloadPiece nextPiece = dispatcher.claimAt(endPos + 1);
+        if (nextPiece == null)
+            return false;
+
+        long speed = piece.speed;
+        piece.statusCode = STATUS_SUCCESS;
+        piece.statusMsg = null;
+        piece.speed = 0;
+        writeToDatabase();
+        dispatcher.pieceDone(piece.index);
+
+        piece = nextPiece;
+        piece.statusCode = STATUS_RUNNING;
+        piece.statusMsg = null;
+        /* The same connection, so the speed is the same */
+        piece.speed = speed;
+        startPos = template.info.pieceStartPos(piece);
+        endPos = template.info.pieceEndPos(piece);
+        prevBytes = piece.curBytes;
+        numRetries = 0;
+        writeToDatabase();
+
+        return true;
+    }
+
+    private StopRequest updateProgress()
+    {
+        if (cancelled)
+            return new StopRequest(STATUS_STOPPED, "Download cancelled");
+
+        long now = DateUtils.elapsedRealtime();
+        long currentBytes = piece.curBytes;
+
+        final long sampleDelta = now - speedSampleStart;
+        if (sampleDelta > 500) {
+            long sampleSpeed = ((currentBytes - speedSampleBytes) * 1000) / sampleDelta;
+            if (piece.speed == 0)
+                piece.speed = sampleSpeed;
+            else
+                piece.speed = ((piece.speed * 3) + sampleSpeed) / 4;
+
+            speedSampleStart = now;
+            speedSampleBytes = currentBytes;
+            if (transferHost != null)
+                socketTuner.onSpeed(transferHost, piece.speed);
+        }
+
+        long bytesDelta = currentBytes - lastUpdateBytes;
+        long timeDelta = now - lastUpdateTime;
+        if (!savingProgress && bytesDelta > MIN_PROGRESS_STEP && timeDelta > MIN_PROGRESS_TIME) {
+            saveProgress();
+            lastUpdateBytes = currentBytes;
+            lastUpdateTime = now;
+        }
+
+        return null;
+    }
+
+    /*
+     * sync() to ensure that current progress has been flushed to disk,
+     * so we can always resume based on latest database information.
+     * The transfer continues meanwhile
+     */
+
+    private void saveProgress()
+    {
+        savingProgress = true;
+        long from = getSyncedFrom();
+        DownloadPiece copy = new DownloadPiece(piece);
+        offload(() -> {
+            StopRequest ret = null;
+            try {
+                file.sync();
+                dispatcher.markDone(from, copy.curBytes);
+                if (repo.updatePiece(copy) == 0)
+                    ret = new StopRequest(STATUS_STOPPED, "Download deleted or missing");
+
+            } catch (IOException e) {
+                ret = new StopRequest(STATUS_FILE_ERROR, e);
+            }
+            StopRequest saveRet = ret;
+            resume(() -> onProgressSaved(saveRet));
+        });
+    }
+
+    private void onProgressSaved(StopRequest ret)
+    {
+        savingProgress = false;
+        /* Otherwise the transfer has already stopped */
+        if (ret != null && transferring)
+            stopTransfer(ret);
+    }
+
+    private void onAttemptDone(StopRequest ret)
+    {
+        conn = null;
+        if (ret == null) {
+            piece.statusCode = STATUS_SUCCESS;
+            /* The piece doesn't transfer anything anymore */
+            piece.speed = 0;
+            finishPiece(true);
+            return;
+        }
+
+        /* Only the failures in a row count, the piece can be long */
+        if (piece.curBytes != prevBytes)
+            numRetries = 0;
+        handleRequest(ret);
+        if (piece.statusCode == STATUS_WAITING_TO_RETRY)
+            scheduleRetry(ret);
+        else
+            finishPiece(false);
+    }
+
+    private void handleRequest(StopRequest request)
+    {
+        PieceHelper.handleRequest(TAG, piece, request);
+    }
+
+    /*
+     * Retry the piece after a delay, as the piece thread does, without holding a thread
+     */
+
+    private void scheduleRetry(StopRequest request)
+    {
+        long delay = PieceHelper.getRetryDelay(numRetries++, result.retryAfter);
+        if (delay < 0) {
+            Log.i(TAG, "piece=" + piece.index + ", giving up retrying");
+            piece.statusCode = request.getFinalStatus();
+            finishPiece(false);
+            return;
+        }
+
+        Log.i(TAG, "piece=" + piece.index + ", retry in " + delay + " ms");
+        retryTimer = loop.schedule(() -> guard(() -> {
+            retryTimer = null;
+            /* Retry-After applies only to the failed request */
+            result.retryAfter = 0;
+            attempt();
+        }), delay);
+    }
+
+    /*
+     * Release the piece and take the next pending one, if any
+     */
+
+    private void finishPiece(boolean success)
+    {
+        writeToDatabase();
+        dispatcher.pieceDone(piece.index);
+
+        if (success && !cancelled) {
+            int index = dispatcher.pollPending();
+            if (index != -1) {
+                startPiece(index);
+                return;
+            }
+        }
+        finish();
+    }
+
+    private void onCancel()
+    {
+        if (done)
+            return;
+
+        if (conn != null) {
+            conn.cancel();
+            conn = null;
+        }
+        if (retryTimer != null) {
+            retryTimer.cancel();
+            retryTimer = null;
+        }
+        syncFile();
+        if (piece == null) {
+            if (loadingIndex != -1)
+                dispatcher.pieceDone(loadingIndex);
+            finish();
+            return;
+        }
+        handleRequest(new StopRequest(STATUS_STOPPED, "Download cancelled"));
+        finishPiece(false);
+    }
+
+    private void finish()
+    {
+        if (done)
+            return;
+
+        done = true;
+        /* The download thread reads the pieces when the result is set */
+        offload(() -> {
+            try {
+                file.release();
+
+            } finally {
+                future.complete(result);
+            }
+        });
+    }
+
+    /*
+     * Returns the start of the range that is on disk after the sync:
+     * the data written by the current connection and the downloaded part
+     * of the piece before it, which is already synced
+     */
+
+    private long getSyncedFrom()
+    {
+        return Math.min(writeStartPos, piece.startPos);
+    }
+
+    /*
+     * Sync everything written by the current connection to disk
+     */
+
+    private void syncFile()
+    {
+        if (!transferring)
+            return;
+
+        transferring = false;
+        long from = getSyncedFrom();
+        long to = piece.curBytes;
+        offload(() -> {
+            try {
+                file.sync();
+                dispatcher.markDone(from, to);
+
+            } catch (IOException e) {
+                /* Ignore */
+            }
+        });
+    }
+
+    /*
+     * Save a copy of the piece after the previous writes of the task
+     */
+
+    private void writeToDatabase()
+    {
+        DownloadPiece copy = new DownloadPiece(piece);
+        offload(() -> repo.updatePiece(copy));
+    }
+
+    /*
+     * Run the blocking work on a worker thread after the previous work of the task
+     */
+
+    private void offload(Runnable task)
+    {
+        synchronized (work) {
+            work.add(task);
+            if (working)
+                return;
+            working = true;
+        }
+        SelectorLoop.offload(this::runWork);
+    }
+
+    private void runWork()
+    {
+        while (true) {
+            Runnable task;
+            synchronized (work) {
+                task = work.poll();
+                if (task == null) {
+                    working = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+
+            } catch (Throwable t) {
+                loop.execute(() -> onCrash(t));
+            }
+        }
+    }
+
+    /*
+     * Continue on the loop thread, unless the task is finished
+     */
+
+    private void resume(Runnable runnable)
+    {
+        loop.execute(() -> guard(runnable));
+    }
+
+    /*
+     * The unexpected errors fail the piece instead of leaving the download waiting
+     */
+
+    private void guard(Runnable runnable)
+    {
+        if (done)
+            return;
+        try {
+            runnable.run();
+
+        } catch (Throwable t) {
+            onCrash(t);
+        }
+    }
+
+    private void onCrash(Throwable t)
+    {
+        Log.e(TAG, Log.getStackTraceString(t));
+        if (done)
+            return;
+
+        if (conn != null) {
+            conn.cancel();
+            conn = null;
+        }
+        syncFile();
+        if (piece != null) {
+            piece.statusCode = STATUS_UNKNOWN_ERROR;
+            piece.statusMsg = t.getMessage();
+            try {
+                writeToDatabase();
+                dispatcher.pieceDone(piece.index);
+
+            } catch (Throwable e) {
+                Log.e(TAG, Log.getStackTraceString(e));
+            }
+        } else if (loadingIndex != -1) {
+            dispatcher.pieceDone(loadingIndex);
+        }
+        finish();
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.model.data.StatusCode;
+import com.tachibana.downloader.core.model.data.entity.DownloadBlocks;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+import com.tachibana.downloader.core.utils.DateUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Hands out pieces of one download to its piece threads. A thread streams
+ * the following pending pieces over the same connection, and a new thread
+ * starts from the middle of the longest run of pending pieces, so that
+ * threads rarely catch up with each other. When there are no
+ * pending pieces left, an idle thread splits the largest remaining range
+ * of a still running piece and takes its second half, so that fast
+ * connections don't wait for the slowest one at the end of the download.
+ * When the remaining ranges are too small to split, the download enters
+ * the endgame mode: idle threads fetch the same ranges as the running pieces
+ * and whichever thread gets the range first cancels the other one.
+ * The number of running threads can be limited during download;
+ * the excess threads finish after their current piece.
+ * The dispatcher also keeps the bitmap of the downloaded blocks,
+ * shared by all threads, which is saved by the download thread.
+ */
+
+class PieceDispatcher
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = PieceDispatcher.class.getSimpleName();
+
+    /* The minimum size of the range that can be cut off from a running piece, bytes */
+    static final long MIN_SPLIT_SIZE = 512 * 1024;
+    /* A connection slower than this is considered stalled, bytes/s */
+    static final long STALLED_SPEED = 1024;
+    /* ...but only if it's also slower than the median speed of the download divided by this */
+    static final int STALLED_MEDIAN_DIVISOR = 10;
+    /* The time a new connection is given to speed up before checking it, ms */
+    static final long STALLED_CHECK_DELAY = 10 * DateUtils.SECOND_IN_MILLIS;
+
+    /* Not started pieces, sorted by the start position */
+    private TreeMap<Long, DownloadPiece> pending = new TreeMap<>();
+    /* The end positions (exclusive) of the running pieces, by the piece index */
+    private HashMap<Integer, Long> running = new HashMap<>();
+    private ArrayList<PieceThreadImpl> threads = new ArrayList<>();
+    private int nextIndex;
+    private int maxThreads = Integer.MAX_VALUE;
+    /* The server answered 503 or 429 since the last check */
+    private boolean serverBusy;
+    /* The downloaded blocks of the file, null if the size is unknown */
+    private DownloadBlocks blocks;
+    private boolean blocksChanged;
+
+    public PieceDispatcher(@NonNull List<DownloadPiece> pieces, DownloadBlocks blocks)
+    {
+        this.blocks = blocks;
+        for (DownloadPiece piece : pieces) {
+            nextIndex = Math.max(nextIndex, piece.index + 1);
+            if (piece.statusCode != StatusCode.STATUS_SUCCESS)
+                pending.put(piece.startPos, piece);
+        }
+    }
+
+    public synchronized int numPending()
+    {
+        return pending.size();
+    }
+
+    /*
+     * The thread gets the lowest connection number
+     * that the other running threads don't have
+     */
+
+    public synchronized void addThread(@NonNull PieceThreadImpl thread)
+    {
+        boolean[] taken = new boolean[threads.size()];
+        for (PieceThreadImpl t : threads) {
+            int number = t.getConnectionNumber();
+            if (number < taken.length)
+                taken[number] = true;
+        }
+        int number = 0;
+        while (number < taken.length && taken[number])
+            number++;
+        thread.setConnectionNumber(number);
+        threads.add(thread);
+    }
+
+    public synchronized void removeThread(@NonNull PieceThreadImpl thread)
+    {
+        threads.remove(thread);
+    }
+
+    public synchronized int numThreads()
+    {
+        return threads.size();
+    }
+
+    public synchronized void setMaxThreads(int maxThreads)
+    {
+        this.maxThreads = maxThreads;
+    }
+
+    public synchronized boolean hasExcessThreads()
+    {
+        return threads.size() > maxThreads;
+    }
+
+    /*
+     * Returns true and removes the thread if there are more threads than allowed
+     */
+
+    public synchronized boolean retire(@NonNull PieceThreadImpl thread)
+    {
+        if (threads.size() <= maxThreads)
+            return false;
+
+        return threads.remove(thread);
+    }
+
+    /*
+     * Returns the sum of the speeds of all running pieces, bytes/s
+     */
+
+    public synchronized long getTotalSpeed()
+    {
+        long speed = 0;
+        for (PieceThreadImpl t : threads)
+            speed += t.getSpeed();
+
+        return speed;
+    }
+
+    public synchronized void serverBusy()
+    {
+        serverBusy = true;
+    }
+
+    /*
+     * Returns true if the server answered 503 or 429 since the last call
+     */
+
+    public synchronized boolean checkServerBusy()
+    {
+        boolean busy = serverBusy;
+        serverBusy = false;
+
+        return busy;
+    }
+
+    /*
+     * Returns the index of the pending piece that is the farthest from
+     * the running ones: the first piece of the longest run of consecutive
+     * pending pieces, or its middle if a running piece is followed by the run.
+     * Returns -1 if there are no pending pieces
+     */
+
+    public synchronized int pollPending()
+    {
+        /* Find the longest run of consecutive pending pieces */
+        ArrayList<List<DownloadPiece>> runs = new ArrayList<>();
+        List<DownloadPiece> run = null;
+        for (DownloadPiece piece : pending.values()) {
+            if (run == null || !isConsecutive(run.get(run.size() - 1), piece)) {
+                run = new ArrayList<>();
+                runs.add(run);
+            }
+            run.add(piece);
+        }
+
+        DownloadPiece best = null;
+        int bestLen = 0;
+        for (List<DownloadPiece> r : runs) {
+            /* A run that follows a running piece is halved by the new thread */
+            boolean followed = running.containsValue(r.get(0).curBytes);
+            int len = (followed ? (r.size() + 1) / 2 : r.size());
+            if (len > bestLen) {
+                bestLen = len;
+                best = r.get(followed ? r.size() / 2 : 0);
+            }
+        }
+
+        return (best == null ? -1 : take(best));
+    }
+
+    private int take(DownloadPiece piece)
+    {
+        pending.remove(piece.startPos);
+        if (piece.size > 0)
+            running.put(piece.index, piece.startPos + piece.size);
+
+        return piece.index;
+    }
+
+    /*
+     * The thread has finished (or failed) the piece
+     */
+
+    public synchronized void pieceDone(int index)
+    {
+        running.remove(index);
+    }
+
+    /*
+     * Returns the pending piece that starts exactly at the given position,
+     * so that it can be streamed over the same connection, or null if there
+     * is no such piece. Nobody has changed the pending pieces since they were
+     * loaded, so there is no need to load the piece again
+     */
+
+    public synchronized DownloadPiece claimAt(long pos)
+    {
+        Map.Entry<Long, DownloadPiece> entry = pending.floorEntry(pos);
+        if (entry == null || entry.getValue().curBytes != pos)
+            return null;
+
+        DownloadPiece piece = entry.getValue();
+        take(piece);
+
+        return piece;
+    }
+
+    /*
+     * Returns the end position of the consecutive pending pieces that start
+     * at the given position or -1 if there are none
+     */
+
+    public synchronized long getStreamEnd(long pos)
+    {
+        long end = -1;
+        Map.Entry<Long, DownloadPiece> entry = pending.floorEntry(pos);
+        while (entry != null && entry.getValue().curBytes == pos && entry.getValue().size > 0) {
+            DownloadPiece piece = entry.getValue();
+            end = piece.startPos + piece.size - 1;
+            pos = end + 1;
+            entry = pending.ceilingEntry(pos);
+        }
+
+        return end;
+    }
+
+    private boolean isConsecutive(DownloadPiece prev, DownloadPiece piece)
+    {
+        return prev.size > 0 && prev.startPos + prev.size == piece.curBytes;
+    }
+
+    /*
+     * Returns the index of the next piece for the given thread (null for a new thread)
+     * or -1 if there is nothing left to download
+     */
+
+    public int nextPiece(PieceThreadImpl thread)
+    {
+        PieceThreadImpl victim = null;
+        DownloadPiece newPiece;
+        synchronized (this) {
+            int index = pollPending();
+            if (index != -1)
+                return index;
+
+            long maxRemaining = 2 * MIN_SPLIT_SIZE - 1;
+            for (PieceThreadImpl t : threads) {
+                if (t == thread)
+                    continue;
+                long remaining = t.getRemainingBytes();
+                if (remaining > maxRemaining) {
+                    maxRemaining = remaining;
+                    victim = t;
+                }
+            }
+            if (victim == null)
+                return -1;
+
+            newPiece = victim.cutRemaining(nextIndex, MIN_SPLIT_SIZE);
+            if (newPiece == null)
+                return -1;
+            nextIndex++;
+
+            long oldEnd = newPiece.startPos + newPiece.size;
+            for (Map.Entry<Integer, Long> entry : running.entrySet()) {
+                if (entry.getValue() == oldEnd)
+                    entry.setValue(newPiece.startPos);
+            }
+            running.put(newPiece.index, oldEnd);
+        }
+
+        /* The other threads don't wait for the database */
+        if (!victim.saveSplit(newPiece)) {
+            /* Download deleted or missing */
+            pieceDone(newPiece.index);
+            return -1;
+        }
+
+        return newPiece.index;
+    }
+
+    /*
+     * Returns true if a new thread would get a piece from nextPiece(),
+     * either a pending one or one split from a running piece
+     */
+
+    public synchronized boolean hasWork()
+    {
+        if (!pending.isEmpty())
+            return true;
+        for (PieceThreadImpl t : threads) {
+            if (t.getRemainingBytes() >= 2 * MIN_SPLIT_SIZE)
+                return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * Endgame mode: returns a copy of the remaining range of the running piece
+     * that is expected to finish last or null if there is nothing to duplicate.
+     * Each piece is duplicated by no more than one thread
+     */
+
+    public synchronized DownloadPiece nextDuplicate(@NonNull PieceThreadImpl thread)
+    {
+        PieceThreadImpl victim = null;
+        long maxEta = -1;
+        for (PieceThreadImpl t : threads) {
+            if (t == thread)
+                continue;
+            long eta = t.getDuplicateEta();
+            if (eta > maxEta) {
+                maxEta = eta;
+                victim = t;
+            }
+        }
+
+        return (victim == null ? null : victim.attachDuplicate(thread));
+    }
+
+    /*
+     * Mark the range [from, to) as downloaded and synced to disk
+     */
+
+    public synchronized void markDone(long from, long to)
+    {
+        if (blocks != null && blocks.markDone(from, to))
+            blocksChanged = true;
+    }
+
+    /*
+     * Returns the first position in the range [pos, end] that isn't
+     * downloaded yet or end + 1 if the whole range is downloaded
+     */
+
+    public synchronized long skipDone(long pos, long end)
+    {
+        return (blocks == null ? pos : blocks.skipDone(pos, end));
+    }
+
+    /*
+     * Returns a copy of the downloaded blocks if they have changed
+     * since the last call, null otherwise
+     */
+
+    public synchronized DownloadBlocks takeChangedBlocks()
+    {
+        if (!blocksChanged)
+            return null;
+        blocksChanged = false;
+
+        return new DownloadBlocks(blocks);
+    }
+
+    /*
+     * Abort the connections of all threads, e.g. on stop
+     */
+
+    public synchronized void abortAll()
+    {
+        for (PieceThreadImpl t : threads)
+            t.abort();
+    }
+
+    /*
+     * Drop the connections that are slower than both the absolute floor and
+     * the median speed of the download. The pieces are reconnected from
+     * their current position without counting it as a failure
+     */
+
+    public synchronized void reconnectStalled()
+    {
+        long now = DateUtils.elapsedRealtime();
+        ArrayList<PieceThreadImpl> measured = new ArrayList<>(threads.size());
+        long[] speeds = new long[threads.size()];
+        for (PieceThreadImpl t : threads) {
+            long speed = t.getTransferSpeed(now, STALLED_CHECK_DELAY);
+            if (speed < 0)
+                continue;
+            speeds[measured.size()] = speed;
+            measured.add(t);
+        }
+        int n = measured.size();
+        if (n == 0)
+            return;
+
+        long[] sorted = Arrays.copyOf(speeds, n);
+        Arrays.sort(sorted);
+        long median = (n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2);
+
+        for (int i = 0; i < n; i++) {
+            /* If there is only one connection, nothing to compare with */
+            boolean belowMedian = n == 1 || speeds[i] < median / STALLED_MEDIAN_DIVISOR;
+            if (speeds[i] < STALLED_SPEED && belowMedian)
+                measured.get(i).reconnect();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.model.data.PieceResult;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+import com.tachibana.downloader.core.model.data.entity.Header;
+import com.tachibana.downloader.core.utils.DateUtils;
+import com.tachibana.downloader.core.utils.Utils;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import static com.tachibana.downloader.core.model.data.StatusCode.HTTP_TOO_MANY_REQUESTS;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_CANNOT_RESUME;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_HTTP_DATA_ERROR;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_UNHANDLED_HTTP_CODE;
+import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_WAITING_TO_RETRY;
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+import static java.net.HttpURLConnection.HTTP_GONE;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+import static java.net.HttpURLConnection.HTTP_PRECON_FAILED;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+
+/*
+ * The request and response handling of a piece, shared by the piece threads
+ * and the non-blocking pieces, so that both of them download the same way
+ */
+
+class PieceHelper
+{
+    /*
+     * The number of times a piece is retried in a row without
+     * any progress, before the error is passed to the download
+     */
+    static final int MAX_PIECE_RETRIES = 5;
+    /* The delay before the first retry of a piece, doubled on each next one, ms */
+    static final long PIECE_RETRY_FIRST_DELAY = DateUtils.SECOND_IN_MILLIS;
+    static final long PIECE_RETRY_MAX_DELAY = 16 * DateUtils.SECOND_IN_MILLIS;
+
+    private static Random random = new Random();
+
+    interface RequestHeaders
+    {
+        void add(@NonNull String name, @NonNull String value);
+    }
+
+    interface ResponseHeaders
+    {
+        /* Returns null if there is no such header */
+        String get(@NonNull String name);
+    }
+
+    /*
+     * Returns the first position in the range [curBytes, endPos + 1]
+     * that isn't downloaded yet, e.g. by an interrupted duplicate
+     */
+
+    static long skipDone(PieceDispatcher dispatcher,
+                         @NonNull DownloadInfo info,
+                         long curBytes,
+                         long endPos)
+    {
+        if (!info.partialSupport || dispatcher == null || endPos < 0)
+            return curBytes;
+
+        long pos = dispatcher.skipDone(curBytes, endPos);
+
+        return (pos > curBytes ? Math.min(pos, endPos + 1) : curBytes);
+    }
+
+    /*
+     * Returns the end of the range to request: the following pieces that
+     * nobody downloads yet are requested too, to stream them over the same
+     * connection. Without the dispatcher only the piece itself is requested
+     */
+
+    static long getRangeEnd(PieceDispatcher dispatcher, long endPos)
+    {
+        if (endPos < 0 || dispatcher == null)
+            return endPos;
+
+        return Math.max(endPos, dispatcher.getStreamEnd(endPos + 1));
+    }
+
+    /*
+     * Add custom headers for this download to the HTTP request,
+     * along with the requested range
+     */
+
+    static void addRequestHeaders(@NonNull RequestHeaders headers,
+                                  @NonNull RequestTemplate template,
+                                  boolean resuming,
+                                  long curBytes,
+                                  long rangeEnd)
+    {
+        addCustomHeaders(headers, template);
+        if (resuming && template.etag != null)
+            headers.add("If-Match", template.etag);
+
+        String rangeRequest = "bytes=" + curBytes + "-";
+        if (rangeEnd >= 0)
+            rangeRequest += rangeEnd;
+        headers.add("Range", rangeRequest);
+    }
+
+    /*
+     * Add custom headers and the user agent for this download to the HTTP request.
+     * The cookies and the referer are added by HttpConnection
+     */
+
+    static void addCustomHeaders(@NonNull RequestHeaders headers,
+                                 @NonNull RequestTemplate template)
+    {
+        for (Header header : template.headers) {
+            /* Replaced below */
+            if (!header.name.equalsIgnoreCase("Accept-Encoding"))
+                headers.add(header.name, header.value);
+        }
+        if (!TextUtils.isEmpty(template.userAgent))
+            headers.add("User-Agent", template.userAgent);
+        /*
+         * Defeat transparent gzip compression, since it doesn't allow us to
+         * easily resume partial downloads.
+         */
+        headers.add("Accept-Encoding", "identity");
+    }
+
+    /*
+     * The signed redirect target has probably expired, not the download,
+     * so the redirects should be followed from the original URL again
+     */
+
+    static boolean isRedirectExpired(String resolvedUrl, int code)
+    {
+        return resolvedUrl != null && (code == HTTP_FORBIDDEN || code == HTTP_GONE);
+    }
+
+    /*
+     * Returns null if the body of the response should be transferred,
+     * otherwise the reason to stop. The server that answers 503 or 429
+     * is reported to the dispatcher, if any, since there are probably
+     * too many connections
+     */
+
+    static StopRequest checkResponse(int code,
+                                     String message,
+                                     @NonNull ResponseHeaders headers,
+                                     @NonNull DownloadInfo info,
+                                     boolean expectPartial,
+                                     @NonNull PieceResult result,
+                                     PieceDispatcher dispatcher)
+    {
+        switch (code) {
+            case HTTP_OK:
+                if (expectPartial)
+                    return new StopRequest(STATUS_CANNOT_RESUME,
+                            "Expected partial, but received OK");
+                return null;
+            case HTTP_PARTIAL:
+                return checkContentRange(headers.get("Content-Range"), info);
+            case HTTP_PRECON_FAILED:
+                return new StopRequest(STATUS_CANNOT_RESUME, "Precondition failed");
+            case HTTP_UNAVAILABLE:
+            case HTTP_TOO_MANY_REQUESTS:
+                result.retryAfter = parseRetryAfter(headers.get("Retry-After"));
+                if (dispatcher != null)
+                    dispatcher.serverBusy();
+                return new StopRequest(code, message);
+            case HTTP_INTERNAL_ERROR:
+                return new StopRequest(HTTP_INTERNAL_ERROR, message);
+            default:
+                return StopRequest.getUnhandledHttpError(code, message);
+        }
+    }
+
+    /*
+     * The file on the server may have changed since the download was started.
+     * The pieces that don't resume send no If-Match, so check at least the size
+     */
+
+    static StopRequest checkContentRange(String contentRange, @NonNull DownloadInfo info)
+    {
+        if (contentRange == null || info.totalBytes <= 0)
+            return null;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash == -1)
+            return null;
+
+        long total;
+        try {
+            total = Long.parseLong(contentRange.substring(slash + 1).trim());
+
+        } catch (NumberFormatException e) {
+            /* The size is unknown to the server ("*") */
+            return null;
+        }
+        if (total != info.totalBytes)
+            return new StopRequest(STATUS_CANNOT_RESUME,
+                    "File size has changed; found " + total + " instead of " + info.totalBytes);
+
+        return null;
+    }
+
+    /*
+     * Returns the delay in seconds or -1 if it's unknown
+     */
+
+    static long parseRetryAfter(String value)
+    {
+        if (value == null)
+            return -1;
+        try {
+            return Integer.parseInt(value.trim());
+
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static StopRequest getIOError(@NonNull IOException e)
+    {
+        String message = e.getMessage();
+        if (e instanceof ProtocolException && message != null &&
+            message.startsWith("Unexpected status line"))
+            return new StopRequest(STATUS_UNHANDLED_HTTP_CODE, e);
+        else if (e instanceof SocketTimeoutException)
+            return new StopRequest(HTTP_GATEWAY_TIMEOUT, "Download timeout");
+        else
+            /* Trouble with low-level sockets */
+            return new StopRequest(STATUS_HTTP_DATA_ERROR, e);
+    }
+
+    /*
+     * Set the status of the piece from the request to stop
+     */
+
+    static void handleRequest(@NonNull String tag,
+                              @NonNull DownloadPiece piece,
+                              @NonNull StopRequest request)
+    {
+        if (request.getException() != null)
+            Log.e(tag, "piece=" + piece.index + ", " + request + "\n" +
+                    Log.getStackTraceString(request.getException()));
+        else
+            Log.i(tag, "piece=" + piece.index + ", " + request);
+
+        piece.statusCode = request.getFinalStatus();
+        piece.statusMsg = request.getMessage();
+        /*
+         * Nobody below our level should request retries, since we handle
+         * failure counts at this level
+         */
+        if (piece.statusCode == STATUS_WAITING_TO_RETRY)
+            throw new IllegalStateException("Execution should always throw final error codes");
+
+        /* Some errors should be retryable, unless we fail too many times */
+        if (Utils.isStatusRetryable(piece.statusCode))
+            piece.statusCode = STATUS_WAITING_TO_RETRY;
+    }
+
+    /*
+     * Returns the delay before retrying the piece, in ms, so that the other
+     * pieces keep downloading instead of restarting the whole download.
+     * Returns -1 if the retries are exhausted or the server asks (in seconds)
+     * to wait longer: the error is left to the download thread,
+     * which reschedules the download
+     */
+
+    static long getRetryDelay(int numRetries, long retryAfter)
+    {
+        long retryAfterMillis = retryAfter * DateUtils.SECOND_IN_MILLIS;
+        if (numRetries >= MAX_PIECE_RETRIES || retryAfterMillis > PIECE_RETRY_MAX_DELAY)
+            return -1;
+
+        long delay = Math.min(PIECE_RETRY_FIRST_DELAY << numRetries, PIECE_RETRY_MAX_DELAY);
+
+        return Math.max(fuzzDelay(delay), retryAfterMillis);
+    }
+
+    /*
+     * Add random fuzz to the given delay so it's anywhere between 1-1.5x the
+     * requested delay, so that the pieces don't retry at the same time
+     */
+
+    static long fuzzDelay(long delay)
+    {
+        return delay + random.nextInt((int)(delay / 2));
+    }
+}
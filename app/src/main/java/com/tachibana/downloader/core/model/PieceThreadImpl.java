@@ -21,32 +21,30 @@
 package com.tachibana.downloader.core.model;
 
 import android.net.Uri;
-import android.text.TextUtils;
+import android.os.Debug;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.tachibana.downloader.core.ConnectionMetrics;
+import com.tachibana.downloader.core.Exchange;
 import com.tachibana.downloader.core.HttpConnection;
+import com.tachibana.downloader.core.SocketTuner;
 import com.tachibana.downloader.core.model.data.PieceResult;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
-import com.tachibana.downloader.core.model.data.entity.Header;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.storage.DataRepository;
-import com.tachibana.downloader.core.system.FileDescriptorWrapper;
 import com.tachibana.downloader.core.system.FileSystemFacade;
 import com.tachibana.downloader.core.system.SystemFacade;
 import com.tachibana.downloader.core.utils.DateUtils;
 import com.tachibana.downloader.core.utils.Utils;
 
-import java.io.FileDescriptor;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.UUID;
 
@@ -58,16 +56,10 @@ import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_RUNNING
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_STOPPED;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_SUCCESS;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_TOO_MANY_REDIRECTS;
-import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_UNHANDLED_HTTP_CODE;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_UNKNOWN_ERROR;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_WAITING_FOR_NETWORK;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_WAITING_TO_RETRY;
 import static java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
-import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
-import static java.net.HttpURLConnection.HTTP_OK;
-import static java.net.HttpURLConnection.HTTP_PARTIAL;
-import static java.net.HttpURLConnection.HTTP_PRECON_FAILED;
-import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
 /*
  * Represent one task of piece downloading.
@@ -78,7 +70,8 @@ class PieceThreadImpl extends Thread implements PieceThread
     @SuppressWarnings("unused")
     private static final String TAG = PieceThreadImpl.class.getSimpleName();
 
-    private static final int BUFFER_SIZE = 8192;
+    /* Fewer reads and writes on fast links */
+    private static final int BUFFER_SIZE = 64 * 1024;
     /* The minimum amount of progress that has to be done before the progress bar gets updated */
     private static final int MIN_PROGRESS_STEP = 65536;
     /* The minimum amount of time that has to elapse before the progress bar gets updated, ms */
@@ -87,24 +80,64 @@ class PieceThreadImpl extends Thread implements PieceThread
     private DownloadPiece piece;
     private UUID infoId;
     private int pieceIndex;
-    private long startPos, endPos;
+    /* Spreads the connections of the download across the host addresses */
+    private int connectionNumber;
+    private long startPos;
+    private volatile long endPos;
+    /* The end of the requested range, may include the following pieces */
+    private long rangeEnd;
+    /* The position from which the current connection writes data */
+    private long writeStartPos;
+    /* Guards the range of the current piece, which can be shrunk by another thread */
+    private final Object pieceLock = new Object();
+    /* Orders the database updates of the piece, which are done outside of pieceLock */
+    private final Object dbLock = new Object();
+    /* The piece shrunk by another thread whose cut off range isn't saved yet */
+    private DownloadPiece splitPiece;
+    private long splitSize;
+    private PieceDispatcher dispatcher;
+    private SpeedLimiter speedLimiter;
+    private RequestTemplate.Provider templateProvider;
+    /*
+     * Endgame mode: the thread that downloads the same range as this one
+     * and the thread whose range is downloaded by this one, respectively
+     */
+    private PieceThreadImpl duplicate;
+    private volatile PieceThreadImpl duplicateOf;
+    /* Endgame mode: the range has already been downloaded by another thread */
+    private volatile boolean raceLost;
+    private volatile Exchange activeConn;
+    private RedirectCache redirectCache = RedirectCache.getInstance();
+    private SocketTuner socketTuner = SocketTuner.getInstance();
+    private ConnectionMetrics metrics = ConnectionMetrics.getInstance();
+    /* The host name of the current connection, for the socket tuning */
+    private String transferHost;
+    /* The response to the metadata request, owned by this thread */
+    private Exchange initialResponse;
+    /* The response body of the current connection has been read to the end */
+    private boolean responseDrained;
+    /* The time when the current connection started transferring data, 0 if it doesn't */
+    private volatile long transferStartTime;
+    /* The bytes written by the current connection */
+    private long transferredBytes;
+    /* The current connection is aborted because it's stalled */
+    private volatile boolean stalled;
     /* Details from the last time we pushed a database update */
     private long lastUpdateBytes = 0;
     private long lastUpdateTime = 0;
     /* Time when current sample started */
-    private long speedSampleStart;
+    private volatile long speedSampleStart;
     /* Bytes transferred since current sample started */
-    private long speedSampleBytes;
+    private volatile long speedSampleBytes;
     private DataRepository repo;
     private FileSystemFacade fs;
     private SystemFacade systemFacade;
     private SettingsRepository pref;
     private PieceResult result;
 
-    private FileDescriptor outFd;
-    private FileOutputStream fout;
     private InputStream in;
-    private FileDescriptorWrapper fdWrapper;
+    /* Either shared by the pieces of the download or opened by this thread */
+    private DownloadFile file;
 
     public PieceThreadImpl(@NonNull UUID infoId,
                            int pieceIndex,
@@ -112,41 +145,135 @@ class PieceThreadImpl extends Thread implements PieceThread
                            @NonNull FileSystemFacade fs,
                            @NonNull SystemFacade systemFacade,
                            @NonNull SettingsRepository pref)
+    {
+        this(infoId, pieceIndex, repo, fs, systemFacade, pref, null, null, null);
+    }
+
+    /*
+     * If the dispatcher is set, the thread takes the next pieces
+     * from it after the given piece is finished (or right away
+     * if the piece index is -1). If the speed limiter is set,
+     * the thread waits for it after each read. The request template is taken
+     * from the provider, if set, otherwise it's read for every request
+     */
+
+    public PieceThreadImpl(@NonNull UUID infoId,
+                           int pieceIndex,
+                           @NonNull DataRepository repo,
+                           @NonNull FileSystemFacade fs,
+                           @NonNull SystemFacade systemFacade,
+                           @NonNull SettingsRepository pref,
+                           PieceDispatcher dispatcher,
+                           SpeedLimiter speedLimiter,
+                           RequestTemplate.Provider templateProvider)
     {
         this.infoId = infoId;
         this.pieceIndex = pieceIndex;
+        this.connectionNumber = Math.max(pieceIndex, 0);
         this.repo = repo;
         this.fs = fs;
         this.systemFacade = systemFacade;
         this.pref = pref;
+        this.dispatcher = dispatcher;
+        this.speedLimiter = speedLimiter;
+        this.templateProvider = (templateProvider == null ?
+                () -> RequestTemplate.load(repo, infoId) :
+                templateProvider);
         this.result = new PieceResult(infoId, pieceIndex);
     }
 
     @Override
     public PieceResult call()
+    {
+        try {
+            int firstIndex = pieceIndex;
+            if (firstIndex == -1 && dispatcher != null)
+                firstIndex = dispatcher.nextPiece(this);
+            boolean success = firstIndex != -1 && downloadPiece(firstIndex);
+            while (success && dispatcher != null && checkCancel() == null) {
+                /* There are too many connections, leave the rest to the other threads */
+                if (dispatcher.retire(this))
+                    break;
+                int index = dispatcher.nextPiece(this);
+                if (index != -1) {
+                    success = downloadPiece(index);
+                    continue;
+                }
+                /* Nothing to split anymore, help the pieces that are still running */
+                DownloadPiece range = dispatcher.nextDuplicate(this);
+                if (range == null)
+                    break;
+                success = downloadDuplicate(range);
+            }
+
+        } finally {
+            if (file != null) {
+                file.release();
+                file = null;
+            }
+        }
+
+        if (dispatcher != null)
+            dispatcher.removeThread(this);
+
+        return result;
+    }
+
+    /*
+     * Returns true if the piece is successfully downloaded
+     */
+
+    private boolean downloadPiece(int index)
     {
         StopRequest ret;
         try {
-            piece = repo.getPiece(pieceIndex, infoId);
+            DownloadPiece nextPiece = repo.getPiece(index, infoId);
+            synchronized (pieceLock) {
+                piece = nextPiece;
+                raceLost = false;
+            }
             if (piece == null) {
-                Log.w(TAG, "Piece " + pieceIndex + " is null, skipping");
-                return result;
+                Log.w(TAG, "Piece " + index + " is null, skipping");
+                return false;
             }
 
             if (piece.statusCode == STATUS_SUCCESS) {
-                Log.w(TAG, pieceIndex + " already finished, skipping");
-                return result;
+                Log.w(TAG, index + " already finished, skipping");
+                return true;
             }
 
+            /* Start progress and speed sampling from the position of this piece */
+            lastUpdateBytes = speedSampleBytes = piece.curBytes;
+            speedSampleStart = DateUtils.elapsedRealtime();
+
+            int numRetries = 0;
             do {
                 piece.statusCode = STATUS_RUNNING;
                 piece.statusMsg = null;
                 writeToDatabase();
 
-                if ((ret = execDownload()) != null)
+                stalled = false;
+                long prevBytes = piece.curBytes;
+                ret = execDownload();
+                if (ret != null && stalled) {
+                    /* It's not a failure, just reconnect from the current position */
+                    Log.i(TAG, "piece=" + piece.index + ", connection stalled, reconnecting");
+                    piece.statusCode = STATUS_WAITING_TO_RETRY;
+                    continue;
+                }
+
+                if (ret != null) {
+                    /* Only the failures in a row count, the piece can be long */
+                    if (piece.curBytes != prevBytes)
+                        numRetries = 0;
                     handleRequest(ret);
-                else
+                    if (piece.statusCode == STATUS_WAITING_TO_RETRY)
+                        waitToRetry(ret, numRetries++);
+                } else {
                     piece.statusCode = STATUS_SUCCESS;
+                    /* The piece doesn't transfer anything anymore */
+                    piece.speed = 0;
+                }
 
             } while (piece != null && piece.statusCode == STATUS_WAITING_TO_RETRY);
 
@@ -157,31 +284,346 @@ class PieceThreadImpl extends Thread implements PieceThread
 
         } finally {
             finalizeThread();
+            cancelDuplicate();
+            if (dispatcher != null && piece != null)
+                dispatcher.pieceDone(piece.index);
         }
 
-        return result;
+        return piece != null && piece.statusCode == STATUS_SUCCESS;
+    }
+
+    /*
+     * Endgame mode: download the remaining range of a piece that is
+     * running in another thread. The piece itself is owned by that thread,
+     * so nothing is written to the database here; the thread that
+     * gets the range first cancels the other one.
+     * Returns false if the range failed to download
+     */
+
+    private boolean downloadDuplicate(DownloadPiece range)
+    {
+        PieceThreadImpl victim = duplicateOf;
+        try {
+            synchronized (pieceLock) {
+                piece = range;
+                raceLost = false;
+            }
+            lastUpdateBytes = speedSampleBytes = range.curBytes;
+            speedSampleStart = DateUtils.elapsedRealtime();
+
+            StopRequest ret = execDownload();
+            if (ret != null) {
+                Log.i(TAG, "duplicate of piece=" + range.index + ", " + ret);
+                return false;
+            }
+            if (!raceLost)
+                victim.loseRace(range.index);
+
+            return true;
+
+        } catch (Throwable t) {
+            Log.e(TAG, Log.getStackTraceString(t));
+            return false;
+
+        } finally {
+            victim.detachDuplicate(this);
+            duplicateOf = null;
+            synchronized (pieceLock) {
+                piece = null;
+            }
+        }
+    }
+
+    /*
+     * Returns the number of bytes that are left to download
+     * in the currently running piece
+     */
+
+    long getRemainingBytes()
+    {
+        synchronized (pieceLock) {
+            if (piece == null || piece.size <= 0 || piece.statusCode != STATUS_RUNNING)
+                return 0;
+            if (duplicate != null || duplicateOf != null)
+                return 0;
+            /* The previous split isn't saved yet */
+            if (splitPiece != null)
+                return 0;
+
+            return piece.startPos + piece.size - piece.curBytes;
+        }
+    }
+
+    /*
+     * Cut off the second half of the remaining range of the currently running
+     * piece and return it as a new piece with the given index, which must be
+     * saved with saveSplit(). Returns null if the remaining range is too small to split
+     */
+
+    DownloadPiece cutRemaining(int newIndex, long minSize)
+    {
+        synchronized (pieceLock) {
+            long remaining = getRemainingBytes();
+            if (remaining < 2 * minSize)
+                return null;
+
+            long newStartPos = piece.curBytes + remaining / 2;
+            long newSize = piece.startPos + piece.size - newStartPos;
+            piece.size -= newSize;
+            endPos = piece.startPos + piece.size - 1;
+            splitPiece = piece;
+            splitSize = newSize;
+
+            return new DownloadPiece(infoId, newIndex, newSize, newStartPos);
+        }
+    }
+
+    /*
+     * Save the piece cut off by cutRemaining() along with the new size of
+     * the shrunk piece. It's done outside of pieceLock, so that the transaction
+     * doesn't block writing to the file. Returns false if the download is deleted or missing
+     */
+
+    boolean saveSplit(@NonNull DownloadPiece newPiece)
+    {
+        synchronized (dbLock) {
+            DownloadPiece shrunk;
+            synchronized (pieceLock) {
+                shrunk = new DownloadPiece(splitPiece);
+                splitPiece = null;
+            }
+
+            return repo.splitPiece(shrunk, newPiece) > 0;
+        }
+    }
+
+    /*
+     * Returns the current speed (bytes/s) of the connection, taking into account
+     * the time since data was last received, or -1 if the connection
+     * doesn't transfer data long enough to judge its speed
+     */
+
+    long getTransferSpeed(long now, long minTransferTime)
+    {
+        long startTime = transferStartTime;
+        if (startTime == 0 || now - startTime < minTransferTime || duplicateOf != null)
+            return -1;
+
+        synchronized (pieceLock) {
+            if (piece == null || piece.statusCode != STATUS_RUNNING)
+                return -1;
+
+            long speed = piece.speed;
+            long sampleDelta = now - speedSampleStart;
+            /* The speed isn't updated while nothing is received */
+            if (sampleDelta > DateUtils.SECOND_IN_MILLIS)
+                speed = Math.min(speed, ((piece.curBytes - speedSampleBytes) * 1000) / sampleDelta);
+
+            return speed;
+        }
+    }
+
+    /*
+     * Returns the current speed (bytes/s) of the piece
+     * or 0 if the thread doesn't download anything
+     */
+
+    long getSpeed()
+    {
+        if (duplicateOf != null)
+            return 0;
+
+        synchronized (pieceLock) {
+            if (piece == null || piece.statusCode != STATUS_RUNNING)
+                return 0;
+
+            return piece.speed;
+        }
+    }
+
+    /*
+     * Abort the current connection, the piece thread will reconnect
+     * from the current position without counting it as a failure
+     */
+
+    void reconnect()
+    {
+        Exchange conn = activeConn;
+        if (conn == null || transferStartTime == 0)
+            return;
+
+        stalled = true;
+        conn.cancel();
+    }
+
+    /*
+     * The number of the thread among the running threads of the download,
+     * which is kept for all pieces that the thread downloads
+     */
+
+    void setConnectionNumber(int number)
+    {
+        connectionNumber = number;
+    }
+
+    int getConnectionNumber()
+    {
+        return connectionNumber;
+    }
+
+    /*
+     * Use the response to the metadata request, which starts from the
+     * beginning of the file, instead of connecting for the first piece
+     */
+
+    void setInitialResponse(@NonNull Exchange conn)
+    {
+        initialResponse = conn;
+    }
+
+    /*
+     * Write to the file shared by the pieces of the download instead
+     * of opening it. The thread releases the file when it's finished
+     */
+
+    void setFile(@NonNull DownloadFile file)
+    {
+        this.file = file;
+    }
+
+    /*
+     * Abort the current connection on stop, so that the server doesn't
+     * continue streaming the response and a blocked read returns
+     */
+
+    void abort()
+    {
+        Exchange conn = activeConn;
+        if (conn != null)
+            conn.cancel();
+    }
+
+    /*
+     * Returns the estimated time (in ms) to finish the currently running piece
+     * or -1 if the piece can't be duplicated by another thread
+     */
+
+    long getDuplicateEta()
+    {
+        synchronized (pieceLock) {
+            if (piece == null || piece.size <= 0 || piece.statusCode != STATUS_RUNNING)
+                return -1;
+            if (duplicate != null || duplicateOf != null)
+                return -1;
+            long remaining = piece.startPos + piece.size - piece.curBytes;
+            if (remaining <= 0)
+                return -1;
+
+            return remaining * 1000 / Math.max(piece.speed, 1);
+        }
+    }
+
+    /*
+     * Returns a copy of the remaining range of the currently running piece
+     * for the given thread or null if the piece can't be duplicated
+     */
+
+    DownloadPiece attachDuplicate(@NonNull PieceThreadImpl thread)
+    {
+        synchronized (pieceLock) {
+            if (getDuplicateEta() == -1)
+                return null;
+
+            DownloadPiece range = new DownloadPiece(infoId, piece.index, piece.size, piece.curBytes);
+            range.startPos = piece.startPos;
+            duplicate = thread;
+            thread.duplicateOf = this;
+
+            return range;
+        }
+    }
+
+    private void detachDuplicate(PieceThreadImpl thread)
+    {
+        synchronized (pieceLock) {
+            if (duplicate == thread)
+                duplicate = null;
+        }
+    }
+
+    private void cancelDuplicate()
+    {
+        PieceThreadImpl thread;
+        int index;
+        synchronized (pieceLock) {
+            if (piece == null || duplicate == null)
+                return;
+            thread = duplicate;
+            index = piece.index;
+            duplicate = null;
+        }
+        thread.loseRace(index);
+    }
+
+    /*
+     * Stop downloading the given piece, because another thread has
+     * already downloaded its range
+     */
+
+    private void loseRace(int index)
+    {
+        Exchange conn;
+        synchronized (pieceLock) {
+            if (piece == null || piece.index != index)
+                return;
+            raceLost = true;
+            conn = activeConn;
+        }
+        /* Unblock reading from a stalled connection */
+        if (conn != null)
+            conn.cancel();
+    }
+
+    private StopRequest finishLostRace()
+    {
+        synchronized (pieceLock) {
+            piece.curBytes = endPos + 1;
+        }
+
+        return null;
     }
 
     private void handleRequest(StopRequest request)
     {
-        if (request.getException() != null)
-            Log.e(TAG, "piece=" + pieceIndex + ", " + request + "\n" +
-                    Log.getStackTraceString(request.getException()));
-        else
-            Log.i(TAG, "piece=" + pieceIndex + ", " + request);
+        PieceHelper.handleRequest(TAG, piece, request);
+    }
 
-        piece.statusCode = request.getFinalStatus();
-        piece.statusMsg = request.getMessage();
-        /*
-         * Nobody below our level should request retries, since we handle
-         * failure counts at this level
-         */
-        if (piece.statusCode == STATUS_WAITING_TO_RETRY)
-            throw new IllegalStateException("Execution should always throw final error codes");
+    /*
+     * Wait before retrying the piece, so that the other pieces keep downloading
+     * instead of restarting the whole download. If the retries are exhausted or
+     * the server asks to wait longer, the error is left to the download thread,
+     * which reschedules the download
+     */
+
+    private void waitToRetry(StopRequest request, int numRetries)
+    {
+        long delay = PieceHelper.getRetryDelay(numRetries, result.retryAfter);
+        if (delay < 0) {
+            Log.i(TAG, "piece=" + piece.index + ", giving up retrying");
+            piece.statusCode = request.getFinalStatus();
+            return;
+        }
 
-        /* Some errors should be retryable, unless we fail too many times */
-        if (Utils.isStatusRetryable(piece.statusCode))
-            piece.statusCode = STATUS_WAITING_TO_RETRY;
+        Log.i(TAG, "piece=" + piece.index + ", retry in " + delay + " ms");
+        try {
+            Thread.sleep(delay);
+            /* Retry-After applies only to the failed request */
+            result.retryAfter = 0;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handleRequest(checkCancel());
+        }
     }
 
     private void finalizeThread()
@@ -195,12 +637,27 @@ class PieceThreadImpl extends Thread implements PieceThread
         if (piece.size == 0)
             return new StopRequest(STATUS_SUCCESS, "Length is zero; skipping");
 
-        DownloadInfo info = repo.getInfoById(infoId);
-        if (info == null)
+        RequestTemplate template = templateProvider.get();
+        if (template == null)
             return new StopRequest(STATUS_STOPPED, "Download deleted or missing");
+        DownloadInfo info = template.info;
 
-        startPos = info.pieceStartPos(piece);
-        endPos = info.pieceEndPos(piece);
+        synchronized (pieceLock) {
+            startPos = info.pieceStartPos(piece);
+            endPos = info.pieceEndPos(piece);
+        }
+        if (raceLost)
+            return finishLostRace();
+
+        /* Skip the blocks that are already downloaded, e.g. by an interrupted duplicate */
+        long pos = PieceHelper.skipDone(dispatcher, info, piece.curBytes, endPos);
+        if (pos > piece.curBytes) {
+            synchronized (pieceLock) {
+                piece.curBytes = pos;
+            }
+            if (pos > endPos)
+                return null;
+        }
 
         /* Reset and download from the beginning */
         if (!info.partialSupport) {
@@ -208,9 +665,19 @@ class PieceThreadImpl extends Thread implements PieceThread
             writeToDatabase();
         }
 
-        HttpConnection connection;
+        Exchange initialConn = initialResponse;
+        initialResponse = null;
+        if (initialConn != null) {
+            if (startPos == 0 && piece.curBytes == 0)
+                return transferInitialResponse(initialConn, info);
+            initialConn.cancel();
+        }
+
+        /* Connect straight to where the URL redirected the previous time */
+        String resolvedUrl = redirectCache.get(infoId, info.url);
+        final HttpConnection connection;
         try {
-            connection = new HttpConnection(info.url);
+            connection = new HttpConnection(resolvedUrl == null ? info.url : resolvedUrl);
 
         } catch (MalformedURLException e) {
             return new StopRequest(STATUS_BAD_REQUEST, "bad url " + info.url, e);
@@ -218,50 +685,47 @@ class PieceThreadImpl extends Thread implements PieceThread
             return new StopRequest(STATUS_UNKNOWN_ERROR, "Unable to create SSLContext");
         }
         connection.setTimeout(pref.timeout());
+        connection.setKeepAlive(pref.reuseConnections());
+        connection.setReferer(template.referer);
+        if (pref.spreadConnections())
+            connection.setAddressSlot(connectionNumber);
+        /* The cookies of the redirect target aren't known in advance */
+        if (resolvedUrl == null)
+            connection.setCookies(template.cookies);
 
         if (!Utils.checkConnectivity(pref, systemFacade))
             return new StopRequest(STATUS_WAITING_FOR_NETWORK);
 
         final StopRequest[] ret = new StopRequest[1];
+        final boolean[] redirectExpired = new boolean[1];
         boolean resuming = piece.curBytes != startPos;
 
         connection.setListener(new HttpConnection.Listener() {
             @Override
-            public void onConnectionCreated(HttpURLConnection conn)
+            public void onConnectionCreated(Exchange conn)
             {
-                ret[0] = addRequestHeaders(conn, resuming);
+                activeConn = conn;
+                addRequestHeaders(conn, resuming, template);
             }
 
             @Override
-            public void onResponseHandle(HttpURLConnection conn, int code, String message)
+            public void onResponseHandle(Exchange conn, int code, String message)
             {
-                switch (code) {
-                    case HTTP_OK:
-                        if (startPos != 0 || resuming) {
-                            ret[0] = new StopRequest(STATUS_CANNOT_RESUME,
-                                    "Expected partial, but received OK");
-                            return;
-                        }
-                        ret[0] = transferData(conn);
-                        break;
-                    case HTTP_PARTIAL:
-                        ret[0] = transferData(conn);
-                        break;
-                    case HTTP_PRECON_FAILED:
-                        ret[0] = new StopRequest(STATUS_CANNOT_RESUME,
-                                "Precondition failed");
-                        break;
-                    case HTTP_UNAVAILABLE:
-                        parseUnavailableHeaders(conn);
-                        ret[0] = new StopRequest(HTTP_UNAVAILABLE, message);
-                        break;
-                    case HTTP_INTERNAL_ERROR:
-                        ret[0] = new StopRequest(HTTP_INTERNAL_ERROR, message);
-                        break;
-                    default:
-                        ret[0] = StopRequest.getUnhandledHttpError(code, message);
-                        break;
+                responseDrained = false;
+                transferHost = connection.getUrl().getHost();
+                if (PieceHelper.isRedirectExpired(resolvedUrl, code)) {
+                    redirectExpired[0] = true;
+                } else {
+                    ret[0] = PieceHelper.checkResponse(code, message, conn::getHeaderField,
+                            info, startPos != 0 || resuming, result, dispatcher);
+                    if (ret[0] == null) {
+                        redirectCache.put(infoId, info.url, connection.getUrl().toString());
+                        ret[0] = transferData(conn, info);
+                    }
                 }
+                /* Only the whole read response can leave the connection for reuse */
+                if (!responseDrained)
+                    conn.cancel();
             }
 
             @Override
@@ -273,13 +737,7 @@ class PieceThreadImpl extends Thread implements PieceThread
             @Override
             public void onIOException(IOException e)
             {
-                if (e instanceof ProtocolException && e.getMessage().startsWith("Unexpected status line"))
-                    ret[0] = new StopRequest(STATUS_UNHANDLED_HTTP_CODE, e);
-                else if (e instanceof SocketTimeoutException)
-                    ret[0] = new StopRequest(HTTP_GATEWAY_TIMEOUT, "Download timeout");
-                else
-                    /* Trouble with low-level sockets */
-                    ret[0] = new StopRequest(STATUS_HTTP_DATA_ERROR, e);
+                ret[0] = PieceHelper.getIOError(e);
             }
 
             @Override
@@ -289,59 +747,68 @@ class PieceThreadImpl extends Thread implements PieceThread
             }
         });
         connection.run();
+        activeConn = null;
+        /* The connection could be aborted because the range is already downloaded */
+        if (raceLost)
+            return finishLostRace();
+        /* Follow the redirects from the original URL again */
+        if (redirectExpired[0]) {
+            redirectCache.remove(infoId);
+            return execDownload();
+        }
 
         return ret[0];
     }
 
     /*
-     * Add custom headers for this download to the HTTP request.
+     * Read the piece from the already received response, which contains
+     * the whole file, and continue with the following pieces while nobody
+     * downloads them
      */
 
-    private StopRequest addRequestHeaders(HttpURLConnection conn, boolean resuming)
+    private StopRequest transferInitialResponse(Exchange conn, DownloadInfo info)
     {
-        DownloadInfo info = repo.getInfoById(infoId);
-        if (info == null)
-            return new StopRequest(STATUS_STOPPED, "Download deleted or missing");
+        activeConn = conn;
+        responseDrained = false;
+        transferHost = conn.getUrl().getHost();
+        rangeEnd = (info.totalBytes > 0 ? info.totalBytes - 1 : -1);
+        StopRequest ret = transferData(conn, info);
+        if (!responseDrained)
+            conn.cancel();
+        activeConn = null;
+        if (raceLost)
+            return finishLostRace();
+
+        return ret;
+    }
 
-        String etag = null;
-        for (Header header : repo.getHeadersById(infoId)) {
-            if ("ETag".equals(header.name)) {
-                etag = header.value;
-                continue;
-            }
-            conn.addRequestProperty(header.name, header.value);
-        }
-        if (conn.getRequestProperty("User-Agent") == null && !TextUtils.isEmpty(info.userAgent))
-            conn.addRequestProperty("User-Agent", info.userAgent);
-        /*
-         * Defeat transparent gzip compression, since it doesn't allow us to
-         * easily resume partial downloads.
-         */
-        conn.setRequestProperty("Accept-Encoding", "identity");
+    /*
+     * Add custom headers for this download to the HTTP request.
+     */
+
+    private void addRequestHeaders(Exchange conn,
+                                   boolean resuming,
+                                   RequestTemplate template)
+    {
+        /* Request the following pieces that nobody downloads yet to stream them too */
+        rangeEnd = PieceHelper.getRangeEnd((duplicateOf == null ? dispatcher : null), endPos);
+        PieceHelper.addRequestHeaders(conn::addRequestHeader, template,
+                resuming, piece.curBytes, rangeEnd);
         /*
-         * Defeat connection reuse, since otherwise servers may continue
+         * Defeat connection reuse if it's disabled. Otherwise the unfinished
+         * responses are aborted, since servers may continue
          * streaming large downloads after cancelled.
          */
-        conn.setRequestProperty("Connection", "close");
-        if (resuming && etag != null)
-            conn.addRequestProperty("If-Match", etag);
-        String rangeRequest = "bytes=" + piece.curBytes + "-";
-        if (endPos >= 0)
-            rangeRequest += endPos;
-        conn.addRequestProperty("Range", rangeRequest);
-
-        return null;
+        if (!pref.reuseConnections())
+            conn.setRequestHeader("Connection", "close");
     }
 
     /*
      * Transfer data from the given connection to the destination file.
      */
 
-    private StopRequest transferData(HttpURLConnection conn)
+    private StopRequest transferData(Exchange conn, DownloadInfo info)
     {
-        DownloadInfo info = repo.getInfoById(infoId);
-        if (info == null)
-            return new StopRequest(STATUS_STOPPED, "Download deleted or missing");
         StopRequest ret;
         if ((ret = checkCancel()) != null)
             return ret;
@@ -358,7 +825,7 @@ class PieceThreadImpl extends Thread implements PieceThread
             /* Try to get content length */
             try {
                 long contentLength = Long.parseLong(conn.getHeaderField("Content-Length"));
-                if (contentLength != -1 && pieceIndex == 0) {
+                if (contentLength != -1 && piece.index == 0) {
                     piece.size = contentLength;
                     writeToDatabase();
                 } else {
@@ -372,9 +839,10 @@ class PieceThreadImpl extends Thread implements PieceThread
             }
         }
 
+        writeStartPos = piece.curBytes;
         try {
             try {
-                in = conn.getInputStream();
+                in = conn.getBody();
 
             } catch (SocketTimeoutException e) {
                 return new StopRequest(HTTP_GATEWAY_TIMEOUT, "Download timeout");
@@ -382,43 +850,51 @@ class PieceThreadImpl extends Thread implements PieceThread
                 return new StopRequest(STATUS_HTTP_DATA_ERROR, e);
             }
 
-            try {
-                Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
-                if (filePath == null)
-                    throw new IOException("Write error: file not found");
-                fdWrapper = fs.getFD(filePath);
-                outFd = fdWrapper.open("rw");
-                fout = new FileOutputStream(outFd);
-
-                /* Move into place to begin writing */
-                fs.seek(fout, piece.curBytes);
+            if (file == null) {
+                try {
+                    Uri filePath = fs.getFileUri(info.dirPath, info.fileName);
+                    if (filePath == null)
+                        throw new IOException("Write error: file not found");
+                    file = DownloadFile.open(fs, filePath);
 
-            } catch (IOException e) {
-                return new StopRequest(STATUS_FILE_ERROR, e);
+                } catch (IOException e) {
+                    return new StopRequest(STATUS_FILE_ERROR, e);
+                }
             }
 
             /*
              * Start streaming data, periodically watch for pause/cancel
              * commands and checking disk space as needed.
              */
-            return transferData(in, fout, outFd);
+            transferStartTime = DateUtils.elapsedRealtime();
+            transferredBytes = 0;
+            boolean tls = "https".equals(conn.getUrl().getProtocol());
+            long cpuStart = Debug.threadCpuTimeNanos();
+            try {
+                return transferData(info, in);
+
+            } finally {
+                /* To compare with the non-blocking connections, which don't copy the data */
+                if (cpuStart >= 0)
+                    metrics.onTransfer(false, tls, transferredBytes,
+                            Debug.threadCpuTimeNanos() - cpuStart);
+            }
 
         } finally {
+            transferStartTime = 0;
+            /* Closing the stream would read the rest of the response */
+            if (!responseDrained)
+                conn.cancel();
             fs.closeQuietly(in);
+            in = null;
             try {
-                if (fout != null)
-                    fout.flush();
-                if (outFd != null)
-                    outFd.sync();
+                if (file != null) {
+                    file.sync();
+                    markSynced();
+                }
 
             } catch (IOException e) {
                 /* Ignore */
-            } finally {
-                fs.closeQuietly(fout);
-                fout = null;
-                outFd = null;
-                in = null;
-                fdWrapper = null;
             }
         }
     }
@@ -428,38 +904,88 @@ class PieceThreadImpl extends Thread implements PieceThread
      * net response to the destination file
      */
 
-    private StopRequest transferData(InputStream in, FileOutputStream fout, FileDescriptor outFd)
+    private StopRequest transferData(DownloadInfo info, InputStream in)
     {
         byte[] buffer = new byte[BUFFER_SIZE];
         while (true) {
             StopRequest ret;
             if ((ret = checkCancel()) != null)
                 return ret;
+            if (raceLost)
+                return finishLostRace();
 
             int len = -1;
             try {
-                len = in.read(buffer);
+                len = in.read(buffer, 0, (speedLimiter == null ?
+                        buffer.length :
+                        speedLimiter.getMaxRead(buffer.length)));
 
             } catch (IOException e) {
+                if (raceLost)
+                    return finishLostRace();
                 return new StopRequest(STATUS_HTTP_DATA_ERROR,
                         "Failed reading response: " + e, e);
             }
-            if (len == -1)
+            if (len == -1) {
+                responseDrained = true;
                 break;
+            }
 
-            try {
-                fout.write(buffer, 0, len);
+            if (speedLimiter != null) {
+                try {
+                    speedLimiter.acquire(len);
 
-                piece.curBytes += len;
-                if ((ret = updateProgress(outFd)) != null)
-                    return ret;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return checkCancel();
+                }
+            }
 
-            } catch (IOException e) {
-                return new StopRequest(STATUS_FILE_ERROR, e);
+            boolean finished = false;
+            int off = 0;
+            while (off < len) {
+                int n;
+                try {
+                    long pos;
+                    synchronized (pieceLock) {
+                        n = len - off;
+                        /* The piece may have been shrunk by another thread */
+                        if (piece.size != -1)
+                            n = (int)Math.min(n, endPos + 1 - piece.curBytes);
+                        pos = piece.curBytes;
+                    }
+                    /*
+                     * Another thread never cuts off less than MIN_SPLIT_SIZE,
+                     * which is larger than the buffer, so the range stays in the piece
+                     */
+                    file.write(ByteBuffer.wrap(buffer, off, n), pos);
+
+                    synchronized (pieceLock) {
+                        piece.curBytes += n;
+                        finished = piece.size != -1 && piece.curBytes >= endPos + 1;
+                    }
+                    if ((ret = updateProgress()) != null)
+                        return ret;
+
+                } catch (IOException e) {
+                    return new StopRequest(STATUS_FILE_ERROR, e);
+                }
+                off += n;
+                transferredBytes += n;
+
+                /* The rest of the data belongs to the following piece */
+                if (finished) {
+                    if (!streamNextPiece(info))
+                        break;
+                    finished = false;
+                }
             }
 
-            if (piece.size != -1 && piece.curBytes >= endPos + 1)
+            if (finished) {
+                /* Nothing left in the response after the requested range */
+                responseDrained = piece.curBytes == rangeEnd + 1 && off == len;
                 break;
+            }
         }
 
         /* Finished without error; verify length if known */
@@ -472,7 +998,53 @@ class PieceThreadImpl extends Thread implements PieceThread
         return null;
     }
 
-    private StopRequest updateProgress(FileDescriptor outFd) throws IOException
+    /*
+     * Continue reading the response into the following piece, if nobody
+     * downloads it yet. Returns false if there is nothing to continue with
+     */
+
+    private boolean streamNextPiece(DownloadInfo info)
+    {
+        if (dispatcher == null || duplicateOf != null || raceLost)
+            return false;
+        /* The response doesn't contain it */
+        if (rangeEnd <= endPos)
+            return false;
+        /* Too many connections, this one should be closed */
+        if (dispatcher.hasExcessThreads())
+            return false;
+
+        DownloadPiece nextPiece = dispatcher.claimAt(endPos + 1);
+        if (nextPiece == null)
+            return false;
+
+        cancelDuplicate();
+        long speed;
+        synchronized (pieceLock) {
+            speed = piece.speed;
+            piece.statusCode = STATUS_SUCCESS;
+            piece.statusMsg = null;
+            piece.speed = 0;
+        }
+        writeToDatabase();
+        dispatcher.pieceDone(piece.index);
+
+        synchronized (pieceLock) {
+            piece = nextPiece;
+            raceLost = false;
+            piece.statusCode = STATUS_RUNNING;
+            piece.statusMsg = null;
+            /* The same connection, so the speed is the same */
+            piece.speed = speed;
+            startPos = info.pieceStartPos(piece);
+            endPos = info.pieceEndPos(piece);
+        }
+        writeToDatabase();
+
+        return true;
+    }
+
+    private StopRequest updateProgress() throws IOException
     {
         long now = DateUtils.elapsedRealtime();
         long currentBytes = piece.curBytes;
@@ -487,6 +1059,8 @@ class PieceThreadImpl extends Thread implements PieceThread
 
             speedSampleStart = now;
             speedSampleBytes = currentBytes;
+            if (transferHost != null)
+                socketTuner.onSpeed(transferHost, piece.speed);
         }
 
         long bytesDelta = currentBytes - lastUpdateBytes;
@@ -496,7 +1070,8 @@ class PieceThreadImpl extends Thread implements PieceThread
              * sync() to ensure that current progress has been flushed to disk,
              * so we can always resume based on latest database information
              */
-            outFd.sync();
+            file.sync();
+            markSynced();
 
             StopRequest ret;
             if ((ret = writeToDatabaseOrCancel()) != null)
@@ -509,21 +1084,54 @@ class PieceThreadImpl extends Thread implements PieceThread
         return null;
     }
 
-    private void parseUnavailableHeaders(@NonNull HttpURLConnection conn)
+    /*
+     * Everything written by the current connection is on disk, as well as
+     * the downloaded part of the piece before it. The part of the range
+     * before a duplicate is written by the other thread
+     */
+
+    private void markSynced()
     {
-        result.retryAfter = conn.getHeaderFieldInt("Retry-After", -1);
+        if (dispatcher == null || piece.size == -1)
+            return;
+
+        long from = (duplicateOf != null ? writeStartPos : Math.min(writeStartPos, piece.startPos));
+        dispatcher.markDone(from, piece.curBytes);
     }
 
     private StopRequest writeToDatabaseOrCancel()
     {
-        return repo.updatePiece(piece) > 0 ?
+        /* The piece is owned by another thread */
+        if (duplicateOf != null)
+            return null;
+
+        return savePiece() > 0 ?
                 null :
                 new StopRequest(STATUS_STOPPED, "Download deleted or missing");
     }
 
     private void writeToDatabase()
     {
-        repo.updatePiece(piece);
+        /* The piece is owned by another thread */
+        if (duplicateOf != null)
+            return;
+
+        savePiece();
+    }
+
+    private int savePiece()
+    {
+        synchronized (dbLock) {
+            DownloadPiece copy;
+            synchronized (pieceLock) {
+                copy = new DownloadPiece(piece);
+                /* The piece covers the cut off range until it's saved as a new piece */
+                if (splitPiece == piece)
+                    copy.size += splitSize;
+            }
+
+            return repo.updatePiece(copy);
+        }
     }
 
     private StopRequest checkCancel()
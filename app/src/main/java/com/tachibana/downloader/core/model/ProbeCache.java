@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.tachibana.downloader.core.Exchange;
+import com.tachibana.downloader.core.utils.DateUtils;
+
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps the response to the link probe of the add download dialog for a short time,
+ * so that the download started from the dialog reads it instead of connecting again.
+ * The probe is a plain GET from the beginning of the file, so its body is
+ * the beginning of the download. The server doesn't wait for the reader
+ * forever, therefore the unclaimed probes are closed soon.
+ */
+
+public class ProbeCache
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = ProbeCache.class.getSimpleName();
+
+    static final long EXPIRY = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    private static ProbeCache cache;
+
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private ScheduledExecutorService executor;
+
+    private static class Entry
+    {
+        final Exchange conn;
+        final String userAgent;
+        final long totalBytes;
+        final String etag;
+        final long expireTime;
+
+        Entry(Exchange conn, String userAgent,
+              long totalBytes, String etag, long expireTime)
+        {
+            this.conn = conn;
+            this.userAgent = userAgent;
+            this.totalBytes = totalBytes;
+            this.etag = etag;
+            this.expireTime = expireTime;
+        }
+    }
+
+    public synchronized static ProbeCache getInstance()
+    {
+        if (cache == null)
+            cache = new ProbeCache();
+
+        return cache;
+    }
+
+    private ProbeCache()
+    {
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /*
+     * Keep the unread OK response to the given normalized URL.
+     * The previous probe of the same URL is closed
+     */
+
+    public void put(@NonNull String url, @NonNull Exchange conn,
+                    @Nullable String userAgent, long totalBytes, @Nullable String etag)
+    {
+        Entry entry = new Entry(conn, userAgent, totalBytes, etag,
+                DateUtils.elapsedRealtime() + EXPIRY);
+        Entry prev;
+        synchronized (this) {
+            prev = entries.put(url, entry);
+        }
+        if (prev != null)
+            prev.conn.cancel();
+
+        executor.schedule(() -> expire(url, entry), EXPIRY, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Returns the probe response to the given normalized URL, if it describes
+     * the same file as the download, or null otherwise.
+     * The caller owns the returned connection and must close it
+     */
+
+    @Nullable
+    Exchange claim(@NonNull String url, @Nullable String userAgent,
+                   long totalBytes, @Nullable String etag)
+    {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(url);
+        }
+        if (entry == null)
+            return null;
+
+        if (entry.expireTime <= DateUtils.elapsedRealtime() ||
+            entry.totalBytes != totalBytes ||
+            !TextUtils.equals(entry.etag, etag) ||
+            !TextUtils.equals(entry.userAgent, userAgent)) {
+            entry.conn.cancel();
+            return null;
+        }
+
+        return entry.conn;
+    }
+
+    private void expire(String url, Entry entry)
+    {
+        synchronized (this) {
+            if (entries.get(url) != entry)
+                return;
+            entries.remove(url);
+        }
+        entry.conn.cancel();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.utils.DateUtils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * Remembers the URL that the download URL redirects to, so that the pieces
+ * and retries connect straight to it instead of following the redirects
+ * every time. Redirect targets are often signed with a short expiry time,
+ * so they're kept for a few minutes; if the target refuses the request
+ * before that (403 or 410), it should be removed and the original URL is used again.
+ */
+
+class RedirectCache
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = RedirectCache.class.getSimpleName();
+
+    static final long EXPIRY = 5 * 60 * DateUtils.SECOND_IN_MILLIS;
+
+    private static RedirectCache cache;
+
+    private final HashMap<UUID, Entry> entries = new HashMap<>();
+
+    private static class Entry
+    {
+        final String url;
+        final String resolvedUrl;
+        final long expireTime;
+
+        Entry(String url, String resolvedUrl, long expireTime)
+        {
+            this.url = url;
+            this.resolvedUrl = resolvedUrl;
+            this.expireTime = expireTime;
+        }
+    }
+
+    synchronized static RedirectCache getInstance()
+    {
+        if (cache == null)
+            cache = new RedirectCache();
+
+        return cache;
+    }
+
+    /*
+     * Returns the URL that the given download URL redirects to
+     * or null if it's not cached or expired
+     */
+
+    synchronized String get(@NonNull UUID id, @NonNull String url)
+    {
+        Entry entry = entries.get(id);
+        if (entry == null || !entry.url.equals(url))
+            return null;
+        if (entry.expireTime <= DateUtils.elapsedRealtime()) {
+            entries.remove(id);
+            return null;
+        }
+
+        return entry.resolvedUrl;
+    }
+
+    /*
+     * Remember the final URL of the response to the given download URL,
+     * if it was redirected
+     */
+
+    synchronized void put(@NonNull UUID id, @NonNull String url, @NonNull String resolvedUrl)
+    {
+        if (url.equals(resolvedUrl))
+            return;
+
+        long now = DateUtils.elapsedRealtime();
+        Iterator<Map.Entry<UUID, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expireTime <= now)
+                it.remove();
+        }
+        Entry entry = entries.get(id);
+        /* Keep the expiry time of the same target */
+        if (entry != null && entry.url.equals(url) && entry.resolvedUrl.equals(resolvedUrl))
+            return;
+        entries.put(id, new Entry(url, resolvedUrl, now + EXPIRY));
+    }
+
+    synchronized void remove(@NonNull UUID id)
+    {
+        entries.remove(id);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.webkit.CookieManager;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+import com.tachibana.downloader.core.model.data.entity.Header;
+import com.tachibana.downloader.core.storage.DataRepository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The inputs of the HTTP requests of one download (URL, user agent, custom headers,
+ * ETag, cookies and referer), read once from the database and the cookie store.
+ * It's immutable and shared by all piece threads of the download thread that
+ * owns it. The download thread is stopped before its params are changed,
+ * so the next one reads a new template; a change of the cookie store
+ * makes the template stale.
+ */
+
+public class RequestTemplate
+{
+    private static final AtomicInteger cookiesVersion = new AtomicInteger();
+
+    /* The copy of the download info, mustn't be modified */
+    @NonNull
+    public final DownloadInfo info;
+    @NonNull
+    public final String url;
+    public final String userAgent;
+    /* Without ETag and Referer */
+    @NonNull
+    public final List<Header> headers;
+    public final String etag;
+    public final String referer;
+    /* The cookies for the URL, null if there are none */
+    public final String cookies;
+    private final int version;
+
+    /*
+     * Call if the cookie store has been changed
+     */
+
+    public static void onCookiesChanged()
+    {
+        cookiesVersion.incrementAndGet();
+    }
+
+    /*
+     * Returns null if the download is deleted or missing
+     */
+
+    static RequestTemplate load(@NonNull DataRepository repo, @NonNull UUID infoId)
+    {
+        int version = cookiesVersion.get();
+        DownloadInfo info = repo.getInfoById(infoId);
+        if (info == null)
+            return null;
+
+        return new RequestTemplate(info, repo.getHeadersById(infoId),
+                CookieManager.getInstance().getCookie(info.url), version);
+    }
+
+    private RequestTemplate(DownloadInfo info, List<Header> allHeaders, String cookies, int version)
+    {
+        this.info = info;
+        this.url = info.url;
+        this.cookies = cookies;
+        this.version = version;
+
+        String etag = null;
+        String referer = null;
+        String userAgent = null;
+        ArrayList<Header> headers = new ArrayList<>(allHeaders.size());
+        for (Header header : allHeaders) {
+            if ("ETag".equals(header.name))
+                etag = header.value;
+            else if ("Referer".equalsIgnoreCase(header.name))
+                referer = header.value;
+            else if ("User-Agent".equalsIgnoreCase(header.name))
+                userAgent = header.value;
+            else
+                headers.add(new Header(header.infoId, header.name, header.value));
+        }
+        this.etag = etag;
+        this.referer = referer;
+        this.userAgent = (userAgent == null ? info.userAgent : userAgent);
+        this.headers = Collections.unmodifiableList(headers);
+    }
+
+    /*
+     * Returns true if the cookie store has changed since the template was read
+     */
+
+    boolean isStale()
+    {
+        return version != cookiesVersion.get();
+    }
+
+    interface Provider
+    {
+        /* Returns null if the download is deleted or missing */
+        RequestTemplate get();
+    }
+}
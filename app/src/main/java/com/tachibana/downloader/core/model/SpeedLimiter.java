@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2019 Tachibana General Laboratories, LLC
+ * Copyright (C) 2019 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Limits the download speed of all threads that share it (token bucket).
+ * Instead of tokens, the bucket keeps the time when the data received so far
+ * is paid off at the limited speed: each read moves it forward and the thread waits
+ * until it's no further ahead of the current time than the allowed burst.
+ * It takes a single CAS per read, so the threads don't block each other.
+ * A limiter can have a parent, e.g. a download limiter inside the global one;
+ * the data must then fit both limits.
+ */
+
+class SpeedLimiter
+{
+    @SuppressWarnings("unused")
+    private static final String TAG = SpeedLimiter.class.getSimpleName();
+
+    /* The amount of data that can be received without waiting after a pause, ns of the limit */
+    static final long BURST_TIME = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final SpeedLimiter parent;
+    /* Bytes/s, 0 - unlimited */
+    private volatile long limit;
+    /* System.nanoTime() when the received data is paid off */
+    private final AtomicLong paidOffTime = new AtomicLong(System.nanoTime());
+
+    public SpeedLimiter()
+    {
+        this(null);
+    }
+
+    public SpeedLimiter(SpeedLimiter parent)
+    {
+        this.parent = parent;
+    }
+
+    public long getLimit()
+    {
+        return limit;
+    }
+
+    /*
+     * Set the limit in bytes/s, 0 - unlimited
+     */
+
+    public void setLimit(long limit)
+    {
+        if (limit < 0)
+            limit = 0;
+        if (this.limit == limit)
+            return;
+
+        /* Don't carry the debt of the old limit */
+        paidOffTime.set(System.nanoTime());
+        this.limit = limit;
+    }
+
+    /*
+     * Returns true if this limiter or its parent limits the speed
+     */
+
+    public boolean isLimited()
+    {
+        return limit > 0 || parent != null && parent.isLimited();
+    }
+
+    /*
+     * Returns how many bytes to read at once, so that the wait after each read
+     * stays within the burst time. Otherwise one read of a large buffer at a low limit
+     * would be followed by a long wait, freezing the progress between the bursts
+     */
+
+    public int getMaxRead(int bufferSize)
+    {
+        int max = (parent == null ? bufferSize : parent.getMaxRead(bufferSize));
+        long limit = this.limit;
+        if (limit <= 0)
+            return max;
+
+        long burst = (long)(limit * ((double)BURST_TIME / TimeUnit.SECONDS.toNanos(1)));
+
+        return (int)Math.max(1, Math.min(max, burst));
+    }
+
+    /*
+     * Take the received bytes into account and return the time
+     * to wait before receiving more data, ns
+     */
+
+    public long reserve(long bytes)
+    {
+        long delay = (parent == null ? 0 : parent.reserve(bytes));
+        long limit = this.limit;
+        if (limit <= 0)
+            return delay;
+
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / limit;
+        long now, next;
+        while (true) {
+            now = System.nanoTime();
+            long prev = paidOffTime.get();
+            /* The idle time isn't accumulated, only the burst is allowed after it */
+            next = (prev - now > 0 ? prev : now) + cost;
+            if (paidOffTime.compareAndSet(prev, next))
+                break;
+        }
+
+        return Math.max(delay, next - now - BURST_TIME);
+    }
+
+    /*
+     * Take the received bytes into account and wait if the limit is exceeded
+     */
+
+    public void acquire(long bytes) throws InterruptedException
+    {
+        long delay = reserve(bytes);
+        if (delay > 0)
+            TimeUnit.NANOSECONDS.sleep(delay);
+    }
+}
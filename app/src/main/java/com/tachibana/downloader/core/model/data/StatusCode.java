@@ -61,6 +61,8 @@ public class StatusCode
      * requests with unknown/unsupported URI schemes
      */
     public static final int STATUS_BAD_REQUEST = 400;
+    /* The server is overloaded by our requests. Not defined in HttpURLConnection */
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
     /* Some possibly transient error occurred, but we can't resume the download */
     public static final int STATUS_CANNOT_RESUME = 489;
     /* The file hash is different from the specified hash of the download */
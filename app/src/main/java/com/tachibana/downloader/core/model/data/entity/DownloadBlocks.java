@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Ignore;
+import androidx.room.PrimaryKey;
+
+import java.util.UUID;
+
+import static androidx.room.ForeignKey.CASCADE;
+
+/*
+ * The bitmap of the fixed-size blocks of the file that are downloaded
+ * and synced to disk. Unlike the progress of the pieces, it doesn't depend
+ * on which connection downloaded the data, so any mix of ranges
+ * can be resumed from it. The last block may be smaller than the others.
+ */
+
+@Entity(foreignKeys = @ForeignKey(
+                entity = DownloadInfo.class,
+                parentColumns = "id",
+                childColumns = "infoId",
+                onDelete = CASCADE))
+public class DownloadBlocks
+{
+    public static final long BLOCK_SIZE = 256 * 1024;
+
+    @PrimaryKey
+    @NonNull
+    public UUID infoId;
+    public long blockSize;
+    /* The size of the file the bitmap is made for */
+    public long totalBytes;
+    /* Bit i is set if the block i is downloaded */
+    @NonNull
+    public byte[] bitmap;
+
+    public DownloadBlocks(@NonNull UUID infoId,
+                          long blockSize,
+                          long totalBytes,
+                          @NonNull byte[] bitmap)
+    {
+        this.infoId = infoId;
+        this.blockSize = blockSize;
+        this.totalBytes = totalBytes;
+        this.bitmap = bitmap;
+    }
+
+    @Ignore
+    public DownloadBlocks(@NonNull UUID infoId, long totalBytes)
+    {
+        if (totalBytes <= 0)
+            throw new IllegalArgumentException("Unknown file size");
+
+        this.infoId = infoId;
+        this.blockSize = BLOCK_SIZE;
+        this.totalBytes = totalBytes;
+        long numBlocks = (totalBytes + blockSize - 1) / blockSize;
+        this.bitmap = new byte[(int)((numBlocks + 7) / 8)];
+    }
+
+    @Ignore
+    public DownloadBlocks(@NonNull DownloadBlocks blocks)
+    {
+        this(blocks.infoId, blocks.blockSize, blocks.totalBytes, blocks.bitmap.clone());
+    }
+
+    public int getNumBlocks()
+    {
+        return (int)((totalBytes + blockSize - 1) / blockSize);
+    }
+
+    public boolean isDone(int block)
+    {
+        return (bitmap[block >> 3] & (1 << (block & 7))) != 0;
+    }
+
+    /*
+     * Mark the blocks that lie entirely within the range [from, to).
+     * Returns true if any new block was marked
+     */
+
+    public boolean markDone(long from, long to)
+    {
+        to = Math.min(to, totalBytes);
+        boolean changed = false;
+        for (long block = (from + blockSize - 1) / blockSize;
+             block < getNumBlocks() && Math.min((block + 1) * blockSize, totalBytes) <= to;
+             block++) {
+            int i = (int)block;
+            if (!isDone(i)) {
+                bitmap[i >> 3] |= 1 << (i & 7);
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+
+    /*
+     * Returns the first position in the range [pos, end] that doesn't
+     * belong to a downloaded block or end + 1 if the whole range is downloaded
+     */
+
+    public long skipDone(long pos, long end)
+    {
+        while (pos <= end && pos < totalBytes) {
+            int block = (int)(pos / blockSize);
+            if (!isDone(block))
+                break;
+            pos = (block + 1) * blockSize;
+        }
+
+        return Math.min(pos, end + 1);
+    }
+
+    /*
+     * Returns the start of the first block in the downloaded range [from, to)
+     * that isn't marked or to if all of them are. The partial blocks at the
+     * edges of the range can't be marked by themselves and aren't checked
+     */
+
+    public long getConfirmedPos(long from, long to)
+    {
+        for (long block = (from + blockSize - 1) / blockSize;
+             block < getNumBlocks() && Math.min((block + 1) * blockSize, totalBytes) <= to;
+             block++) {
+            if (!isDone((int)block))
+                return block * blockSize;
+        }
+
+        return to;
+    }
+
+    public int countDone()
+    {
+        int count = 0;
+        for (byte b : bitmap)
+            count += Integer.bitCount(b & 0xff);
+
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DownloadBlocks{" +
+                "infoId=" + infoId +
+                ", blockSize=" + blockSize +
+                ", totalBytes=" + totalBytes +
+                ", done=" + countDone() + "/" + getNumBlocks() +
+                '}';
+    }
+}
@@ -48,8 +48,18 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
 {
     /* Piece number can't be less or equal zero */
     public static final int MIN_PIECES = 1;
-    /* Recommended max number of pieces */
+    /* Recommended max number of pieces (connections) */
     public static final int MAX_PIECES = 16;
+    /* The preferred size of a segment of the file, bytes */
+    public static final long SEGMENT_SIZE = 2 * 1024 * 1024;
+    /*
+     * Segments of large files are bigger to keep their number reasonable:
+     * the download list and the notifications load all of them on every
+     * progress update. The piece splitting balances the tail of the download
+     * and the blocks bitmap limits the data lost on resume, so larger
+     * segments are cheap
+     */
+    public static final int MAX_SEGMENTS = 256;
     /*
      * This download is visible but only shows in the notifications
      * while it's in progress
@@ -64,6 +74,10 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
     public static final int VISIBILITY_HIDDEN = 2;
     /* This download shows in the notifications after completion ONLY */
     public static final int VISIBILITY_VISIBLE_NOTIFY_ONLY_COMPLETION = 3;
+    /* The queued downloads with the higher priority run first (if the queue policy allows) */
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
     /*
      * The minimum amount of time that the download manager accepts for
      * a Retry-After response header with a parameter in delta-seconds
@@ -93,10 +107,24 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
     public String description;
     public String mimeType = "application/octet-stream";
     public long totalBytes = -1;
+    /*
+     * The number of connections. The file itself is split into segments
+     * (DownloadPiece), which are usually more than the connections
+     */
     private int numPieces = MIN_PIECES;
+    /*
+     * The number of connections is adjusted during download
+     * according to the measured speed, numPieces is the upper limit
+     */
+    public boolean autoPieces = false;
     public int statusCode = StatusCode.STATUS_PENDING;
     public boolean unmeteredConnectionsOnly = false;
     public boolean retry = true;
+    /* KiB/s, 0 - unlimited */
+    public int speedLimit = 0;
+    public int priority = PRIORITY_NORMAL;
+    /* The turn of the host in the queue of the waiting downloads, see DownloadQueue */
+    public long queueTurn = 0;
     /* Indicates that server support partial download */
     public boolean partialSupport = true;
     public String statusMsg;
@@ -135,7 +163,11 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
         statusCode = source.readInt();
         unmeteredConnectionsOnly = source.readByte() > 0;
         numPieces = source.readInt();
+        autoPieces = source.readByte() > 0;
         retry = source.readByte() > 0;
+        speedLimit = source.readInt();
+        priority = source.readInt();
+        queueTurn = source.readLong();
         statusMsg = source.readString();
         dateAdded = source.readLong();
         visibility = source.readInt();
@@ -166,7 +198,11 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
         dest.writeInt(statusCode);
         dest.writeByte((byte)(unmeteredConnectionsOnly ? 1 : 0));
         dest.writeInt(numPieces);
+        dest.writeByte((byte)(autoPieces ? 1 : 0));
         dest.writeByte((byte)(retry ? 1 : 0));
+        dest.writeInt(speedLimit);
+        dest.writeInt(priority);
+        dest.writeLong(queueTurn);
         dest.writeString(statusMsg);
         dest.writeLong(dateAdded);
         dest.writeInt(visibility);
@@ -213,19 +249,28 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
         return numPieces;
     }
 
+    /*
+     * Split the file into segments of about SEGMENT_SIZE,
+     * but no less than the number of connections
+     */
+
     public List<DownloadPiece> makePieces()
     {
-        List<DownloadPiece> pieces = new ArrayList<>();
+        int numSegments = numPieces;
+        if (partialSupport && totalBytes > 0)
+            numSegments = (int)Math.max(numPieces, Math.min(MAX_SEGMENTS, totalBytes / SEGMENT_SIZE));
+
+        List<DownloadPiece> pieces = new ArrayList<>(numSegments);
         long piecesSize = -1;
         long lastPieceSize = -1;
         if (totalBytes != -1) {
-            piecesSize = totalBytes / numPieces;
-            lastPieceSize = piecesSize + totalBytes % numPieces;
+            piecesSize = totalBytes / numSegments;
+            lastPieceSize = piecesSize + totalBytes % numSegments;
         }
 
         long curBytes = 0;
-        for (int i = 0; i < numPieces; i++) {
-            long pieceSize = (i == numPieces - 1 ? lastPieceSize : piecesSize);
+        for (int i = 0; i < numSegments; i++) {
+            long pieceSize = (i == numSegments - 1 ? lastPieceSize : piecesSize);
             pieces.add(new DownloadPiece(id, i, pieceSize, curBytes));
             curBytes += pieceSize;
         }
@@ -238,9 +283,7 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
         if (totalBytes <= 0)
             return 0;
 
-        long pieceSize = totalBytes / numPieces;
-
-        return piece.index * pieceSize;
+        return piece.startPos;
     }
 
     public long pieceEndPos(@NonNull DownloadPiece piece)
@@ -287,9 +330,13 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
                 (mimeType == null || mimeType.equals(info.mimeType)) &&
                 totalBytes == info.totalBytes &&
                 numPieces == info.numPieces &&
+                autoPieces == info.autoPieces &&
                 statusCode == info.statusCode &&
                 unmeteredConnectionsOnly == info.unmeteredConnectionsOnly &&
                 retry == info.retry &&
+                speedLimit == info.speedLimit &&
+                priority == info.priority &&
+                queueTurn == info.queueTurn &&
                 partialSupport == info.partialSupport &&
                 (statusMsg == null || statusMsg.equals(info.statusMsg)) &&
                 dateAdded == info.dateAdded &&
@@ -313,9 +360,13 @@ public class DownloadInfo implements Parcelable, Comparable<DownloadInfo>
                 ", mimeType='" + mimeType + '\'' +
                 ", totalBytes=" + totalBytes +
                 ", numPieces=" + numPieces +
+                ", autoPieces=" + autoPieces +
                 ", statusCode=" + statusCode +
                 ", unmeteredConnectionsOnly=" + unmeteredConnectionsOnly +
                 ", retry=" + retry +
+                ", speedLimit=" + speedLimit +
+                ", priority=" + priority +
+                ", queueTurn=" + queueTurn +
                 ", partialSupport=" + partialSupport +
                 ", statusMsg='" + statusMsg + '\'' +
                 ", dateAdded=" + SimpleDateFormat.getDateTimeInstance().format(new Date(dateAdded)) +
@@ -38,12 +38,17 @@ import static androidx.room.ForeignKey.CASCADE;
 
 /*
  * The class encapsulates information about piece of download.
- * A piece is a HTTP/S connection that downloads a certain part
- * of the data from the server (and currently stores it in a file position
- * specifically reserved for the piece).
+ * A piece is a segment of the file that is downloaded by one of the
+ * HTTP/S connections (and stored in a file position specifically
+ * reserved for the piece). A connection streams consecutive pieces
+ * one after another, so the number of pieces doesn't depend on
+ * the number of connections.
  *
- * As a rule, the entire file size is divided equally between all pieces,
- * so the size of the parts is the same, but the last piece may have a larger size.
+ * As a rule, the entire file size is initially divided into segments of equal size,
+ * but the last piece may have a larger size.
+ * When a piece is finished, its thread can split the largest remaining range
+ * of a still running piece and take its second half as a new piece,
+ * so the start position of each piece is stored explicitly.
  * If the file size is unknown, only one download piece is created,
  * which has a negative size (-1)
  *
@@ -64,6 +69,8 @@ public class DownloadPiece implements Parcelable
     public int index;
     @NonNull
     public UUID infoId;
+    /* Absolute position in the file */
+    public long startPos;
     public long size;
     public long curBytes;
     public int statusCode = StatusCode.STATUS_PENDING;
@@ -76,12 +83,24 @@ public class DownloadPiece implements Parcelable
         this.index = index;
         this.size = size;
         this.curBytes = curBytes;
+        this.startPos = curBytes;
+    }
+
+    @Ignore
+    public DownloadPiece(@NonNull DownloadPiece piece)
+    {
+        this(piece.infoId, piece.index, piece.size, piece.curBytes);
+        startPos = piece.startPos;
+        statusCode = piece.statusCode;
+        statusMsg = piece.statusMsg;
+        speed = piece.speed;
     }
 
     @Ignore
     public DownloadPiece(@NonNull Parcel source)
     {
         infoId = (UUID)source.readSerializable();
+        startPos = source.readLong();
         size = source.readLong();
         index = source.readInt();
         curBytes = source.readLong();
@@ -99,6 +118,7 @@ public class DownloadPiece implements Parcelable
     public void writeToParcel(Parcel dest, int flags)
     {
         dest.writeSerializable(infoId);
+        dest.writeLong(startPos);
         dest.writeLong(size);
         dest.writeInt(index);
         dest.writeLong(curBytes);
@@ -147,6 +167,7 @@ public class DownloadPiece implements Parcelable
 
         return infoId.equals(piece.infoId) &&
                 index == piece.index &&
+                startPos == piece.startPos &&
                 size == piece.size &&
                 curBytes == piece.curBytes &&
                 speed == piece.speed &&
@@ -160,6 +181,7 @@ public class DownloadPiece implements Parcelable
         return "DownloadPiece{" +
                 "index=" + index +
                 ", infoId=" + infoId +
+                ", startPos=" + startPos +
                 ", size=" + size +
                 ", curBytes=" + curBytes +
                 ", statusCode=" + statusCode +
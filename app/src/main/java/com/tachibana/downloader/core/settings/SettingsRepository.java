@@ -114,10 +114,26 @@ public interface SettingsRepository
 
     void maxDownloadRetries(int val);
 
+    int queuePolicy();
+
+    void queuePolicy(int val);
+
+    int maxConnectionsPerHost();
+
+    void maxConnectionsPerHost(int val);
+
     int timeout();
 
     void timeout(int val);
 
+    int speedLimitUnmetered();
+
+    void speedLimitUnmetered(int val);
+
+    int speedLimitMetered();
+
+    void speedLimitMetered(int val);
+
     boolean replaceDuplicateDownloads();
 
     void replaceDuplicateDownloads(boolean val);
@@ -126,6 +142,22 @@ public interface SettingsRepository
 
     void autoConnect(boolean val);
 
+    boolean reuseConnections();
+
+    void reuseConnections(boolean val);
+
+    boolean spreadConnections();
+
+    void spreadConnections(boolean val);
+
+    boolean http2();
+
+    void http2(boolean val);
+
+    boolean nonBlockingConnections();
+
+    void nonBlockingConnections(boolean val);
+
     String userAgent();
 
     void userAgent(String val);
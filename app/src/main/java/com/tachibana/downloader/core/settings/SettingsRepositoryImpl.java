@@ -30,6 +30,7 @@ import androidx.core.content.ContextCompat;
 
 import com.tachibana.downloader.R;
 import com.tachibana.downloader.core.HttpConnection;
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.system.SystemFacadeHelper;
 import com.tachibana.downloader.core.utils.UserAgentUtils;
 import com.tachibana.downloader.core.utils.Utils;
@@ -72,9 +73,21 @@ public class SettingsRepositoryImpl implements SettingsRepository
         static final int customBatteryControlValue = Utils.getDefaultBatteryLowLevel();
         static final int maxActiveDownloads = 3;
         static final int maxDownloadRetries = 5;
+        static int queuePolicy(@NonNull Context context)
+        {
+            return Integer.parseInt(context.getString(R.string.pref_queue_policy_fifo_value));
+        }
+        static final int maxConnectionsPerHost = DownloadInfo.MAX_PIECES;
         static final int timeout = HttpConnection.DEFAULT_TIMEOUT;
+        /* KiB/s, 0 - unlimited */
+        static final int speedLimitUnmetered = 0;
+        static final int speedLimitMetered = 0;
         static final boolean replaceDuplicateDownloads = true;
         static final boolean autoConnect = true;
+        static final boolean reuseConnections = true;
+        static final boolean spreadConnections = false;
+        static final boolean http2 = false;
+        static final boolean nonBlockingConnections = false;
         static String userAgent(@NonNull Context context)
         {
             String userAgent = SystemFacadeHelper.getSystemFacade(context).getSystemUserAgent();
@@ -418,6 +431,36 @@ public class SettingsRepositoryImpl implements SettingsRepository
                 .apply();
     }
 
+    @Override
+    public int queuePolicy()
+    {
+        return pref.getInt(appContext.getString(R.string.pref_key_queue_policy),
+                Default.queuePolicy(appContext));
+    }
+
+    @Override
+    public void queuePolicy(int val)
+    {
+        pref.edit()
+                .putInt(appContext.getString(R.string.pref_key_queue_policy), val)
+                .apply();
+    }
+
+    @Override
+    public int maxConnectionsPerHost()
+    {
+        return pref.getInt(appContext.getString(R.string.pref_key_max_connections_per_host),
+                Default.maxConnectionsPerHost);
+    }
+
+    @Override
+    public void maxConnectionsPerHost(int val)
+    {
+        pref.edit()
+                .putInt(appContext.getString(R.string.pref_key_max_connections_per_host), val)
+                .apply();
+    }
+
     @Override
     public int timeout()
     {
@@ -433,6 +476,36 @@ public class SettingsRepositoryImpl implements SettingsRepository
                 .apply();
     }
 
+    @Override
+    public int speedLimitUnmetered()
+    {
+        return pref.getInt(appContext.getString(R.string.pref_key_speed_limit_unmetered),
+                Default.speedLimitUnmetered);
+    }
+
+    @Override
+    public void speedLimitUnmetered(int val)
+    {
+        pref.edit()
+                .putInt(appContext.getString(R.string.pref_key_speed_limit_unmetered), val)
+                .apply();
+    }
+
+    @Override
+    public int speedLimitMetered()
+    {
+        return pref.getInt(appContext.getString(R.string.pref_key_speed_limit_metered),
+                Default.speedLimitMetered);
+    }
+
+    @Override
+    public void speedLimitMetered(int val)
+    {
+        pref.edit()
+                .putInt(appContext.getString(R.string.pref_key_speed_limit_metered), val)
+                .apply();
+    }
+
     @Override
     public boolean replaceDuplicateDownloads()
     {
@@ -463,6 +536,66 @@ public class SettingsRepositoryImpl implements SettingsRepository
                 .apply();
     }
 
+    @Override
+    public boolean reuseConnections()
+    {
+        return pref.getBoolean(appContext.getString(R.string.pref_key_reuse_connections),
+                Default.reuseConnections);
+    }
+
+    @Override
+    public void reuseConnections(boolean val)
+    {
+        pref.edit()
+                .putBoolean(appContext.getString(R.string.pref_key_reuse_connections), val)
+                .apply();
+    }
+
+    @Override
+    public boolean spreadConnections()
+    {
+        return pref.getBoolean(appContext.getString(R.string.pref_key_spread_connections),
+                Default.spreadConnections);
+    }
+
+    @Override
+    public void spreadConnections(boolean val)
+    {
+        pref.edit()
+                .putBoolean(appContext.getString(R.string.pref_key_spread_connections), val)
+                .apply();
+    }
+
+    @Override
+    public boolean http2()
+    {
+        return pref.getBoolean(appContext.getString(R.string.pref_key_http2),
+                Default.http2);
+    }
+
+    @Override
+    public void http2(boolean val)
+    {
+        pref.edit()
+                .putBoolean(appContext.getString(R.string.pref_key_http2), val)
+                .apply();
+    }
+
+    @Override
+    public boolean nonBlockingConnections()
+    {
+        return pref.getBoolean(appContext.getString(R.string.pref_key_nonblocking_connections),
+                Default.nonBlockingConnections);
+    }
+
+    @Override
+    public void nonBlockingConnections(boolean val)
+    {
+        pref.edit()
+                .putBoolean(appContext.getString(R.string.pref_key_nonblocking_connections), val)
+                .apply();
+    }
+
     @Override
     public String userAgent()
     {
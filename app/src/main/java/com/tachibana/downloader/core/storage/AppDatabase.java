@@ -32,6 +32,7 @@ import androidx.room.TypeConverters;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.tachibana.downloader.core.model.data.entity.BrowserBookmark;
+import com.tachibana.downloader.core.model.data.entity.DownloadBlocks;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
@@ -51,8 +52,9 @@ import io.reactivex.schedulers.Schedulers;
         DownloadPiece.class,
         Header.class,
         UserAgent.class,
-        BrowserBookmark.class},
-        version = 5)
+        BrowserBookmark.class,
+        DownloadBlocks.class},
+        version = 11)
 @TypeConverters({UUIDConverter.class})
 public abstract class AppDatabase extends RoomDatabase
 {
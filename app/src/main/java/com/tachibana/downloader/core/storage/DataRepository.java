@@ -22,6 +22,7 @@ package com.tachibana.downloader.core.storage;
 
 import androidx.lifecycle.LiveData;
 
+import com.tachibana.downloader.core.model.data.entity.DownloadBlocks;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
@@ -46,6 +47,8 @@ public interface DataRepository
 
     void deleteInfo(DownloadInfo info, boolean withFile);
 
+    void updateQueueTurn(List<UUID> ids, long turn);
+
     Flowable<List<InfoAndPieces>> observeAllInfoAndPieces();
 
     Flowable<InfoAndPieces> observeInfoAndPiecesById(UUID id);
@@ -60,6 +63,8 @@ public interface DataRepository
 
     int updatePiece(DownloadPiece piece);
 
+    int splitPiece(DownloadPiece piece, DownloadPiece newPiece);
+
     List<DownloadPiece> getPiecesById(UUID infoId);
 
     List<DownloadPiece> getPiecesByIdSorted(UUID infoId);
@@ -70,6 +75,12 @@ public interface DataRepository
 
     void addHeader(Header header);
 
+    DownloadBlocks getBlocksById(UUID infoId);
+
+    void addBlocks(DownloadBlocks blocks);
+
+    int updateBlocks(DownloadBlocks blocks);
+
     void addUserAgent(UserAgent agent);
 
     void deleteUserAgent(UserAgent agent);
@@ -28,6 +28,7 @@ import androidx.annotation.NonNull;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MediatorLiveData;
 
+import com.tachibana.downloader.core.model.data.entity.DownloadBlocks;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
@@ -95,6 +96,12 @@ public class DataRepositoryImpl implements DataRepository
             db.downloadDao().updateInfo(info);
     }
 
+    @Override
+    public void updateQueueTurn(List<UUID> ids, long turn)
+    {
+        db.downloadDao().updateQueueTurn(ids, turn);
+    }
+
     @Override
     public void deleteInfo(DownloadInfo info, boolean withFile)
     {
@@ -155,6 +162,16 @@ public class DataRepositoryImpl implements DataRepository
         return db.downloadDao().updatePiece(piece);
     }
 
+    /*
+     * Atomically update the shrunk piece and add the piece that was cut off from it
+     */
+
+    @Override
+    public int splitPiece(DownloadPiece piece, DownloadPiece newPiece)
+    {
+        return db.downloadDao().splitPiece(piece, newPiece);
+    }
+
     @Override
     public List<DownloadPiece> getPiecesById(UUID infoId)
     {
@@ -189,6 +206,24 @@ public class DataRepositoryImpl implements DataRepository
         db.downloadDao().addHeader(header);
     }
 
+    @Override
+    public DownloadBlocks getBlocksById(UUID infoId)
+    {
+        return db.downloadDao().getBlocksById(infoId);
+    }
+
+    @Override
+    public void addBlocks(DownloadBlocks blocks)
+    {
+        db.downloadDao().addBlocks(blocks);
+    }
+
+    @Override
+    public int updateBlocks(DownloadBlocks blocks)
+    {
+        return db.downloadDao().updateBlocks(blocks);
+    }
+
     @Override
     public void addUserAgent(UserAgent agent)
     {
@@ -33,6 +33,12 @@ class DatabaseMigration
                 MIGRATION_2_3,
                 MIGRATION_3_4,
                 MIGRATION_4_5,
+                MIGRATION_5_6,
+                MIGRATION_6_7,
+                MIGRATION_7_8,
+                MIGRATION_8_9,
+                MIGRATION_9_10,
+                MIGRATION_10_11,
         };
     }
 
@@ -79,4 +85,54 @@ class DatabaseMigration
             database.execSQL("CREATE TABLE IF NOT EXISTS `BrowserBookmark` (`url` TEXT NOT NULL, `name` TEXT NOT NULL, `dateAdded` INTEGER NOT NULL, PRIMARY KEY(`url`))");
         }
     };
+
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database)
+        {
+            /* Add `startPos` column to `DownloadPiece` table, pieces were equal before */
+            database.execSQL("ALTER TABLE `DownloadPiece` ADD COLUMN `startPos` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("UPDATE `DownloadPiece` SET `startPos` = `pieceIndex` * IFNULL((SELECT `totalBytes` / `numPieces` FROM `DownloadInfo` WHERE `DownloadInfo`.`id` = `DownloadPiece`.`infoId` AND `totalBytes` > 0), 0)");
+        }
+    };
+
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database)
+        {
+            database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `autoPieces` INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database)
+        {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `DownloadBlocks` (`infoId` TEXT NOT NULL, `blockSize` INTEGER NOT NULL, `totalBytes` INTEGER NOT NULL, `bitmap` BLOB NOT NULL, PRIMARY KEY(`infoId`), FOREIGN KEY(`infoId`) REFERENCES `DownloadInfo`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )");
+        }
+    };
+
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database)
+        {
+            database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `speedLimit` INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    static final Migration MIGRATION_9_10 = new Migration(9, 10) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database)
+        {
+            database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `priority` INTEGER NOT NULL DEFAULT 1");
+        }
+    };
+
+    static final Migration MIGRATION_10_11 = new Migration(10, 11) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database)
+        {
+            database.execSQL("ALTER TABLE `DownloadInfo` ADD COLUMN `queueTurn` INTEGER NOT NULL DEFAULT 0");
+        }
+    };
 }
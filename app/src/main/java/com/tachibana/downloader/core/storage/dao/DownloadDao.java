@@ -28,11 +28,13 @@ import androidx.room.Query;
 import androidx.room.Transaction;
 import androidx.room.Update;
 
+import com.tachibana.downloader.core.model.data.entity.DownloadBlocks;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
 import com.tachibana.downloader.core.model.data.entity.Header;
 import com.tachibana.downloader.core.model.data.entity.InfoAndPieces;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -45,11 +47,14 @@ public abstract class DownloadDao
     private static final String QUERY_GET_ALL_INFO = "SELECT * FROM DownloadInfo";
     private static final String QUERY_GET_INFO_BY_ID = "SELECT * FROM DownloadInfo WHERE id = :id";
     private static final String QUERY_DELETE_INFO_BY_URL = "DELETE FROM DownloadInfo WHERE url = :url";
+    private static final String QUERY_UPDATE_QUEUE_TURN = "UPDATE DownloadInfo SET queueTurn = :turn WHERE id IN (:ids) AND queueTurn < :turn";
     private static final String QUERY_DELETE_PIECES = "DELETE FROM DownloadPiece WHERE infoId = :infoId";
     private static final String QUERY_GET_PIECES_BY_ID = "SELECT * FROM DownloadPiece WHERE infoId = :infoId";
     private static final String QUERY_GET_PIECES_BY_ID_SORTED = "SELECT * FROM DownloadPiece WHERE infoId = :infoId ORDER BY statusCode ASC";
     private static final String QUERY_GET_PIECE = "SELECT * FROM DownloadPiece WHERE pieceIndex = :index AND infoId = :infoId";
     private static final String QUERY_GET_HEADERS = "SELECT * FROM download_info_headers WHERE infoId = :infoId";
+    private static final String QUERY_GET_BLOCKS = "SELECT * FROM DownloadBlocks WHERE infoId = :infoId";
+    private static final String QUERY_DELETE_BLOCKS = "DELETE FROM DownloadBlocks WHERE infoId = :infoId";
 
     @Transaction
     public void addInfo(DownloadInfo info)
@@ -82,11 +87,15 @@ public abstract class DownloadDao
     @Update
     public abstract void updateInfo(DownloadInfo info);
 
+    @Query(QUERY_UPDATE_QUEUE_TURN)
+    public abstract void updateQueueTurn(List<UUID> ids, long turn);
+
     @Transaction
     public void updateInfoWithPieces(DownloadInfo info)
     {
         updateInfo(info);
         deletePieces(info.id);
+        deleteBlocks(info.id);
         addPieces(info.makePieces());
     }
 
@@ -120,6 +129,16 @@ public abstract class DownloadDao
     @Update
     public abstract int updatePiece(DownloadPiece piece);
 
+    @Transaction
+    public int splitPiece(DownloadPiece piece, DownloadPiece newPiece)
+    {
+        int updated = updatePiece(piece);
+        if (updated > 0)
+            addPieces(Collections.singletonList(newPiece));
+
+        return updated;
+    }
+
     @Query(QUERY_GET_PIECES_BY_ID)
     public abstract List<DownloadPiece> getPiecesById(UUID infoId);
 
@@ -138,6 +157,18 @@ public abstract class DownloadDao
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     public abstract void addHeader(Header header);
 
+    @Query(QUERY_GET_BLOCKS)
+    public abstract DownloadBlocks getBlocksById(UUID infoId);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    public abstract void addBlocks(DownloadBlocks blocks);
+
+    @Update
+    public abstract int updateBlocks(DownloadBlocks blocks);
+
+    @Query(QUERY_DELETE_BLOCKS)
+    public abstract void deleteBlocks(UUID infoId);
+
     @Insert
     public abstract void add_info(DownloadInfo info);
 }
\ No newline at end of file
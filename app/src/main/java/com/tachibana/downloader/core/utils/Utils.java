@@ -54,6 +54,7 @@ import com.tachibana.downloader.R;
 import com.tachibana.downloader.core.RepositoryHelper;
 import com.tachibana.downloader.core.filter.DownloadFilter;
 import com.tachibana.downloader.core.filter.DownloadFilterCollection;
+import com.tachibana.downloader.core.model.RequestTemplate;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.sorting.DownloadSorting;
@@ -81,6 +82,7 @@ import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static com.tachibana.downloader.core.model.data.StatusCode.HTTP_TOO_MANY_REQUESTS;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_FILE_ERROR;
 import static com.tachibana.downloader.core.model.data.StatusCode.STATUS_HTTP_DATA_ERROR;
 import static com.tachibana.downloader.core.utils.MimeTypeUtils.DEFAULT_MIME_TYPE;
@@ -749,6 +751,7 @@ public class Utils {
         switch (statusCode) {
             case STATUS_HTTP_DATA_ERROR:
             case HTTP_UNAVAILABLE:
+            case HTTP_TOO_MANY_REQUESTS:
             case HTTP_INTERNAL_ERROR:
             case STATUS_FILE_ERROR:
                 return true;
@@ -789,6 +792,7 @@ public class Utils {
         } else {
             cookieManager.removeAllCookie();
         }
+        RequestTemplate.onCookiesChanged();
     }
 
     /*
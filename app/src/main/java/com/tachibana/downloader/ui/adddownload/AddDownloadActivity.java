@@ -90,6 +90,10 @@ public class AddDownloadActivity extends AppCompatActivity
                 getString(R.string.add_download_num_pieces),
                 initParams.numPieces
         );
+        initParams.autoPieces = localPref.getBoolean(
+                getString(R.string.add_download_auto_pieces_flag),
+                initParams.autoPieces
+        );
 
         return initParams;
     }
@@ -293,6 +293,12 @@ public class AddDownloadDialog extends DialogFragment {
                                     viewModel.params.getNumPieces())
                             .apply();
                     break;
+                case BR.autoPieces:
+                    localPref.edit()
+                            .putBoolean(getString(R.string.add_download_auto_pieces_flag),
+                                    viewModel.params.isAutoPieces())
+                            .apply();
+                    break;
             }
         }
     };
@@ -44,6 +44,7 @@ public class AddDownloadParams extends BaseObservable
     private String referer;
     private String userAgent;
     private int numPieces = DownloadInfo.MIN_PIECES;
+    private boolean autoPieces;
     private long totalBytes = -1;
     private boolean unmeteredConnectionsOnly;
     private boolean partialSupport = true;
@@ -177,6 +178,18 @@ public class AddDownloadParams extends BaseObservable
         notifyPropertyChanged(BR.numPieces);
     }
 
+    @Bindable
+    public boolean isAutoPieces()
+    {
+        return autoPieces;
+    }
+
+    public void setAutoPieces(boolean autoPieces)
+    {
+        this.autoPieces = autoPieces;
+        notifyPropertyChanged(BR.autoPieces);
+    }
+
     @Bindable
     public long getTotalBytes()
     {
@@ -261,6 +274,7 @@ public class AddDownloadParams extends BaseObservable
                 ", etag='" + etag + '\'' +
                 ", userAgent='" + userAgent + '\'' +
                 ", numPieces=" + numPieces +
+                ", autoPieces=" + autoPieces +
                 ", totalBytes=" + totalBytes +
                 ", unmeteredConnectionsOnly=" + unmeteredConnectionsOnly +
                 ", partialSupport=" + partialSupport +
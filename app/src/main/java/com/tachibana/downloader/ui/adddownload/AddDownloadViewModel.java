@@ -38,12 +38,14 @@ import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
+import com.tachibana.downloader.core.Exchange;
 import com.tachibana.downloader.core.HttpConnection;
 import com.tachibana.downloader.core.RepositoryHelper;
 import com.tachibana.downloader.core.exception.FreeSpaceException;
 import com.tachibana.downloader.core.exception.HttpException;
 import com.tachibana.downloader.core.exception.NormalizeUrlException;
 import com.tachibana.downloader.core.model.DownloadEngine;
+import com.tachibana.downloader.core.model.ProbeCache;
 import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
 import com.tachibana.downloader.core.model.data.entity.Header;
 import com.tachibana.downloader.core.model.data.entity.UserAgent;
@@ -160,6 +162,7 @@ public class AddDownloadViewModel extends AndroidViewModel
         params.setRetry(initParams.retry);
         params.setReplaceFile(initParams.replaceFile);
         params.setNumPieces(initParams.numPieces);
+        params.setAutoPieces(initParams.autoPieces);
     }
 
     public LiveData<List<UserAgent>> observeUserAgents()
@@ -211,7 +214,7 @@ public class AddDownloadViewModel extends AndroidViewModel
         }
 
         fetchTask = new FetchLinkTask(this);
-        fetchTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, params.getUrl(), params.getReferer());
+        fetchTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, params.getUrl(), params.getReferer(), params.getUserAgent());
     }
 
     private static class FetchLinkTask extends AsyncTask<String, Void, Throwable>
@@ -252,29 +255,41 @@ public class AddDownloadViewModel extends AndroidViewModel
             }
             connection.setTimeout(viewModel.get().pref.timeout());
             connection.setReferer(params[1]);
+            /* The OK response is handed to the download, if it's added soon */
+            connection.setKeepAlive(true);
+            String userAgent = params[2];
             
             NetworkInfo netInfo = viewModel.get().systemFacade.getActiveNetworkInfo();
             if (netInfo == null || !netInfo.isConnected())
                 return new ConnectException("Network is disconnected");
 
             Exception[] err = new Exception[1];
+            Exchange[] probe = new Exchange[1];
             connection.setListener(new HttpConnection.Listener() {
                 @Override
-                public void onConnectionCreated(HttpURLConnection conn)
+                public void onConnectionCreated(Exchange conn)
                 {
-                    /* TODO: maybe user agent spoofing (from settings) */
+                    /* Request the body in the same way as the download does */
+                    if (!TextUtils.isEmpty(userAgent))
+                        conn.setRequestHeader("User-Agent", userAgent);
+                    conn.setRequestHeader("Accept-Encoding", "identity");
                 }
 
                 @Override
-                public void onResponseHandle(HttpURLConnection conn, int code, String message)
+                public void onResponseHandle(Exchange conn, int code, String message)
                 {
-                    if (viewModel.get() == null)
+                    if (viewModel.get() == null) {
+                        conn.cancel();
                         return;
+                    }
 
-                    if (code == HttpURLConnection.HTTP_OK)
+                    if (code == HttpURLConnection.HTTP_OK) {
                         viewModel.get().parseOkHeaders(conn);
-                    else
+                        probe[0] = conn;
+                    } else {
+                        conn.cancel();
                         err[0] = new HttpException("Failed to fetch link, response code: " + code, code);
+                    }
                 }
 
                 @Override
@@ -305,6 +320,15 @@ public class AddDownloadViewModel extends AndroidViewModel
             });
             connection.run();
 
+            AddDownloadViewModel vm = viewModel.get();
+            if (probe[0] != null) {
+                if (err[0] == null && vm != null)
+                    ProbeCache.getInstance().put(vm.params.getUrl(), probe[0],
+                            userAgent, vm.params.getTotalBytes(), vm.params.getEtag());
+                else
+                    probe[0].cancel();
+            }
+
             return err[0];
         }
 
@@ -323,11 +347,11 @@ public class AddDownloadViewModel extends AndroidViewModel
         }
     }
 
-    private void parseOkHeaders(HttpURLConnection conn)
+    private void parseOkHeaders(Exchange conn)
     {
         String contentDisposition = conn.getHeaderField("Content-Disposition");
         String contentLocation = conn.getHeaderField("Content-Location");
-        String tmpUrl = conn.getURL().toString();
+        String tmpUrl = conn.getUrl().toString();
 
         String mimeType = Intent.normalizeMimeType(conn.getContentType());
         /* Try to determine the MIME type later by the filename extension */
@@ -448,6 +472,7 @@ public class AddDownloadViewModel extends AndroidViewModel
         info.setNumPieces((params.isPartialSupport() && params.getTotalBytes() > 0 ?
                 params.getNumPieces() :
                 DownloadInfo.MIN_PIECES));
+        info.autoPieces = params.isAutoPieces() && info.getNumPieces() > 1;
         info.retry = params.isRetry();
         info.userAgent = params.getUserAgent();
 
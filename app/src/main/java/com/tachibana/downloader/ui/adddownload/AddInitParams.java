@@ -39,6 +39,7 @@ public class AddInitParams implements Parcelable
     public boolean retry = true;
     public boolean replaceFile = false;
     public int numPieces = DownloadInfo.MIN_PIECES;
+    public boolean autoPieces = false;
 
     public AddInitParams() {}
 
@@ -53,6 +54,7 @@ public class AddInitParams implements Parcelable
         retry = source.readByte() > 0;
         replaceFile = source.readByte() > 0;
         numPieces = source.readInt();
+        autoPieces = source.readByte() > 0;
     }
 
     @Override
@@ -73,6 +75,7 @@ public class AddInitParams implements Parcelable
         dest.writeByte((byte)(retry ? 1 : 0));
         dest.writeByte((byte)(replaceFile ? 1 : 0));
         dest.writeInt(numPieces);
+        dest.writeByte((byte)(autoPieces ? 1 : 0));
     }
 
     public static final Parcelable.Creator<AddInitParams> CREATOR =
@@ -104,6 +107,7 @@ public class AddInitParams implements Parcelable
                 ", retry=" + retry +
                 ", replaceFile=" + replaceFile +
                 ", numPieces=" + numPieces +
+                ", autoPieces=" + autoPieces +
                 '}';
     }
 }
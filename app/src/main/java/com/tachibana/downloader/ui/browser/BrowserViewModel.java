@@ -43,6 +43,7 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import com.tachibana.downloader.core.RepositoryHelper;
+import com.tachibana.downloader.core.model.RequestTemplate;
 import com.tachibana.downloader.core.model.data.entity.BrowserBookmark;
 import com.tachibana.downloader.core.settings.SettingsRepository;
 import com.tachibana.downloader.core.storage.BrowserRepository;
@@ -339,6 +340,8 @@ public class BrowserViewModel extends AndroidViewModel
         public void onPageFinished(WebView view, String url)
         {
             super.onPageFinished(view, url);
+            /* The page could set the cookies of the running downloads */
+            RequestTemplate.onCookiesChanged();
 
             String titleStr = view.getTitle();
             if (TextUtils.isEmpty(titleStr))
@@ -26,6 +26,8 @@ import androidx.databinding.BaseObservable;
 import androidx.databinding.Bindable;
 import androidx.databinding.library.baseAdapters.BR;
 
+import com.tachibana.downloader.core.model.data.entity.DownloadInfo;
+
 public class DownloadDetailsMutableParams extends BaseObservable
 {
     private String url;
@@ -35,6 +37,10 @@ public class DownloadDetailsMutableParams extends BaseObservable
     private boolean unmeteredConnectionsOnly = false;
     private boolean retry = false;
     private String checksum;
+    /* KiB/s, as entered by the user */
+    private String speedLimit;
+    /* The spinner position is the priority value */
+    private int priority = DownloadInfo.PRIORITY_NORMAL;
 
     @Bindable
     public String getUrl()
@@ -120,6 +126,30 @@ public class DownloadDetailsMutableParams extends BaseObservable
         notifyPropertyChanged(BR.checksum);
     }
 
+    @Bindable
+    public String getSpeedLimit()
+    {
+        return speedLimit;
+    }
+
+    public void setSpeedLimit(String speedLimit)
+    {
+        this.speedLimit = speedLimit;
+        notifyPropertyChanged(BR.speedLimit);
+    }
+
+    @Bindable
+    public int getPriority()
+    {
+        return priority;
+    }
+
+    public void setPriority(int priority)
+    {
+        this.priority = priority;
+        notifyPropertyChanged(BR.priority);
+    }
+
     @Override
     public String toString()
     {
@@ -131,6 +161,8 @@ public class DownloadDetailsMutableParams extends BaseObservable
                 ", unmeteredConnectionsOnly=" + unmeteredConnectionsOnly +
                 ", retry=" + retry +
                 ", checksum='" + checksum + '\'' +
+                ", speedLimit='" + speedLimit + '\'' +
+                ", priority=" + priority +
                 '}';
     }
 }
@@ -120,6 +120,8 @@ public class DownloadDetailsViewModel extends AndroidViewModel
         mutableParams.setUnmeteredConnectionsOnly(downloadInfo.unmeteredConnectionsOnly);
         mutableParams.setRetry(downloadInfo.retry);
         mutableParams.setChecksum(downloadInfo.checksum);
+        mutableParams.setSpeedLimit(Integer.toString(downloadInfo.speedLimit));
+        mutableParams.setPriority(downloadInfo.priority);
     }
 
     private final Observable.OnPropertyChangedCallback mutableParamsCallback = new Observable.OnPropertyChangedCallback()
@@ -227,6 +229,8 @@ public class DownloadDetailsViewModel extends AndroidViewModel
         boolean unmeteredConnectionsOnly = mutableParams.isUnmeteredConnectionsOnly();
         boolean retry = mutableParams.isRetry();
         String checksum = mutableParams.getChecksum();
+        int speedLimit = parseSpeedLimit(mutableParams.getSpeedLimit(), downloadInfo.speedLimit);
+        int priority = mutableParams.getPriority();
 
         if (!downloadInfo.url.equals(url))
             params.url = url;
@@ -243,10 +247,30 @@ public class DownloadDetailsViewModel extends AndroidViewModel
         if (TextUtils.isEmpty(checksum) || isChecksumValid(checksum) &&
                 !checksum.equals(downloadInfo.checksum))
             params.checksum = checksum;
+        if (downloadInfo.speedLimit != speedLimit)
+            params.speedLimit = speedLimit;
+        if (downloadInfo.priority != priority)
+            params.priority = priority;
 
         return params;
     }
 
+    /*
+     * Empty value means no limit, an invalid one leaves the current limit
+     */
+
+    private int parseSpeedLimit(String value, int defaultValue)
+    {
+        if (TextUtils.isEmpty(value))
+            return 0;
+        try {
+            return Math.max(Integer.parseInt(value), 0);
+
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public boolean isChecksumValid(String checksum)
     {
         if (checksum == null)
@@ -26,6 +26,7 @@ import android.text.TextUtils;
 
 import androidx.fragment.app.FragmentManager;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.SeekBarPreference;
 import androidx.preference.SwitchPreferenceCompat;
@@ -144,6 +145,13 @@ public class BehaviorSettingsFragment extends PreferenceFragmentCompat
             bindOnPreferenceChangeListener(maxActiveDownloads);
         }
 
+        String keyQueuePolicy = getString(R.string.pref_key_queue_policy);
+        ListPreference queuePolicy = findPreference(keyQueuePolicy);
+        if (queuePolicy != null) {
+            queuePolicy.setValueIndex(pref.queuePolicy());
+            bindOnPreferenceChangeListener(queuePolicy);
+        }
+
         String keyMaxDownloadRetries = getString(R.string.pref_key_max_download_retries);
         EditTextPreference maxDownloadRetries = findPreference(keyMaxDownloadRetries);
         if (maxDownloadRetries != null) {
@@ -156,6 +164,18 @@ public class BehaviorSettingsFragment extends PreferenceFragmentCompat
             bindOnPreferenceChangeListener(maxDownloadRetries);
         }
 
+        String keyMaxConnectionsPerHost = getString(R.string.pref_key_max_connections_per_host);
+        EditTextPreference maxConnectionsPerHost = findPreference(keyMaxConnectionsPerHost);
+        if (maxConnectionsPerHost != null) {
+            String value = Integer.toString(pref.maxConnectionsPerHost());
+            maxConnectionsPerHost.setOnBindEditTextListener((editText) ->
+                    editText.setFilters(new InputFilter[]{new InputFilterMinMax(1, Integer.MAX_VALUE)}));
+            maxConnectionsPerHost.setSummary(value);
+            maxConnectionsPerHost.setText(value);
+            maxConnectionsPerHost.setDialogMessage(R.string.pref_max_connections_per_host_dialog_msg);
+            bindOnPreferenceChangeListener(maxConnectionsPerHost);
+        }
+
         String keyReplaceDuplicateDownloads = getString(R.string.pref_key_replace_duplicate_downloads);
         SwitchPreferenceCompat replaceDuplicateDownloads = findPreference(keyReplaceDuplicateDownloads);
         if (replaceDuplicateDownloads != null) {
@@ -170,6 +190,34 @@ public class BehaviorSettingsFragment extends PreferenceFragmentCompat
             bindOnPreferenceChangeListener(autoConnect);
         }
 
+        String keyReuseConnections = getString(R.string.pref_key_reuse_connections);
+        SwitchPreferenceCompat reuseConnections = findPreference(keyReuseConnections);
+        if (reuseConnections != null) {
+            reuseConnections.setChecked(pref.reuseConnections());
+            bindOnPreferenceChangeListener(reuseConnections);
+        }
+
+        String keySpreadConnections = getString(R.string.pref_key_spread_connections);
+        SwitchPreferenceCompat spreadConnections = findPreference(keySpreadConnections);
+        if (spreadConnections != null) {
+            spreadConnections.setChecked(pref.spreadConnections());
+            bindOnPreferenceChangeListener(spreadConnections);
+        }
+
+        String keyHttp2 = getString(R.string.pref_key_http2);
+        SwitchPreferenceCompat http2 = findPreference(keyHttp2);
+        if (http2 != null) {
+            http2.setChecked(pref.http2());
+            bindOnPreferenceChangeListener(http2);
+        }
+
+        String keyNonBlocking = getString(R.string.pref_key_nonblocking_connections);
+        SwitchPreferenceCompat nonBlocking = findPreference(keyNonBlocking);
+        if (nonBlocking != null) {
+            nonBlocking.setChecked(pref.nonBlockingConnections());
+            bindOnPreferenceChangeListener(nonBlocking);
+        }
+
         String keyTimeout = getString(R.string.pref_key_timeout);
         EditTextPreference timeout = findPreference(keyTimeout);
         if (timeout != null) {
@@ -181,6 +229,30 @@ public class BehaviorSettingsFragment extends PreferenceFragmentCompat
             timeout.setText(value);
             bindOnPreferenceChangeListener(timeout);
         }
+
+        String keySpeedLimitUnmetered = getString(R.string.pref_key_speed_limit_unmetered);
+        EditTextPreference speedLimitUnmetered = findPreference(keySpeedLimitUnmetered);
+        if (speedLimitUnmetered != null) {
+            String value = Integer.toString(pref.speedLimitUnmetered());
+            speedLimitUnmetered.setOnBindEditTextListener((editText) ->
+                    editText.setFilters(new InputFilter[]{new InputFilterMinMax(0, Integer.MAX_VALUE)}));
+            speedLimitUnmetered.setSummary(value);
+            speedLimitUnmetered.setText(value);
+            speedLimitUnmetered.setDialogMessage(R.string.pref_speed_limit_dialog_msg);
+            bindOnPreferenceChangeListener(speedLimitUnmetered);
+        }
+
+        String keySpeedLimitMetered = getString(R.string.pref_key_speed_limit_metered);
+        EditTextPreference speedLimitMetered = findPreference(keySpeedLimitMetered);
+        if (speedLimitMetered != null) {
+            String value = Integer.toString(pref.speedLimitMetered());
+            speedLimitMetered.setOnBindEditTextListener((editText) ->
+                    editText.setFilters(new InputFilter[]{new InputFilterMinMax(0, Integer.MAX_VALUE)}));
+            speedLimitMetered.setSummary(value);
+            speedLimitMetered.setText(value);
+            speedLimitMetered.setDialogMessage(R.string.pref_speed_limit_dialog_msg);
+            bindOnPreferenceChangeListener(speedLimitMetered);
+        }
     }
 
     @Override
@@ -263,6 +335,9 @@ public class BehaviorSettingsFragment extends PreferenceFragmentCompat
             pref.maxActiveDownloads(value);
             preference.setSummary(Integer.toString(value));
 
+        } else if (preference.getKey().equals(getString(R.string.pref_key_queue_policy))) {
+            pref.queuePolicy(Integer.parseInt((String)newValue));
+
         } else if (preference.getKey().equals(getString(R.string.pref_key_max_download_retries))) {
             int value = 0;
             if (!TextUtils.isEmpty((String)newValue))
@@ -270,18 +345,51 @@ public class BehaviorSettingsFragment extends PreferenceFragmentCompat
             pref.maxDownloadRetries(value);
             preference.setSummary(Integer.toString(value));
 
+        } else if (preference.getKey().equals(getString(R.string.pref_key_max_connections_per_host))) {
+            int value = 1;
+            if (!TextUtils.isEmpty((String)newValue))
+                value = Integer.parseInt((String)newValue);
+            pref.maxConnectionsPerHost(value);
+            preference.setSummary(Integer.toString(value));
+
         } else if(preference.getKey().equals(getString(R.string.pref_key_replace_duplicate_downloads))) {
             pref.replaceDuplicateDownloads((boolean)newValue);
 
         } else if(preference.getKey().equals(getString(R.string.pref_key_auto_connect))) {
             pref.autoConnect((boolean)newValue);
 
+        } else if(preference.getKey().equals(getString(R.string.pref_key_reuse_connections))) {
+            pref.reuseConnections((boolean)newValue);
+
+        } else if(preference.getKey().equals(getString(R.string.pref_key_spread_connections))) {
+            pref.spreadConnections((boolean)newValue);
+
+        } else if(preference.getKey().equals(getString(R.string.pref_key_http2))) {
+            pref.http2((boolean)newValue);
+
+        } else if(preference.getKey().equals(getString(R.string.pref_key_nonblocking_connections))) {
+            pref.nonBlockingConnections((boolean)newValue);
+
         } else if(preference.getKey().equals(getString(R.string.pref_key_timeout))) {
             int value = 0;
             if (!TextUtils.isEmpty((String)newValue))
                 value = Integer.parseInt((String)newValue);
             pref.timeout(value);
             preference.setSummary(Integer.toString(value));
+
+        } else if (preference.getKey().equals(getString(R.string.pref_key_speed_limit_unmetered))) {
+            int value = 0;
+            if (!TextUtils.isEmpty((String)newValue))
+                value = Integer.parseInt((String)newValue);
+            pref.speedLimitUnmetered(value);
+            preference.setSummary(Integer.toString(value));
+
+        } else if (preference.getKey().equals(getString(R.string.pref_key_speed_limit_metered))) {
+            int value = 0;
+            if (!TextUtils.isEmpty((String)newValue))
+                value = Integer.parseInt((String)newValue);
+            pref.speedLimitMetered(value);
+            preference.setSummary(Integer.toString(value));
         }
 
         return true;
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+// TODO: needs Java 9
+@Config(sdk = Build.VERSION_CODES.P)
+public class AddressSelectorTest
+{
+    private static final int TIMEOUT = 5000;
+
+    /* The listening loopback addresses, all with the same port */
+    private InetAddress first;
+    private InetAddress second;
+    /* Nothing listens there */
+    private InetAddress dead;
+    private int port;
+    private ArrayList<ServerSocket> servers = new ArrayList<>();
+    private HashMap<String, InetAddress[]> hosts = new HashMap<>();
+    private AddressSelector selector;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        first = InetAddress.getByName("127.0.0.1");
+        second = InetAddress.getByName("127.0.0.2");
+        dead = InetAddress.getByName("127.0.0.3");
+        ServerSocket server = new ServerSocket(0, 50, first);
+        servers.add(server);
+        port = server.getLocalPort();
+        servers.add(new ServerSocket(port, 50, second));
+
+        selector = new AddressSelector((host) -> hosts.get(host));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (ServerSocket server : servers)
+            server.close();
+    }
+
+    @Test
+    public void testSelect()
+    {
+        hosts.put("a", new InetAddress[]{first, second});
+        hosts.put("b", new InetAddress[]{first});
+
+        /* The connections are spread across the addresses */
+        HashSet<InetAddress> selected = new HashSet<>();
+        selected.add(selector.select("a", port, 0, TIMEOUT));
+        selected.add(selector.select("a", port, 1, TIMEOUT));
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), selected);
+        assertEquals(selector.select("a", port, 0, TIMEOUT),
+                selector.select("a", port, 2, TIMEOUT));
+
+        /* The client picks the only address itself */
+        assertNull(selector.select("b", port, 0, TIMEOUT));
+    }
+
+    @Test
+    public void testOnError()
+    {
+        hosts.put("a", new InetAddress[]{first, second});
+
+        selector.onError("a", first);
+        assertEquals(second, selector.select("a", port, 0, TIMEOUT));
+        assertEquals(second, selector.select("a", port, 1, TIMEOUT));
+
+        /* None is left, the client picks the address */
+        selector.onError("a", second);
+        assertNull(selector.select("a", port, 0, TIMEOUT));
+    }
+
+    @Test
+    public void testRaceFallback() throws Exception
+    {
+        hosts.put("a", new InetAddress[]{dead, first});
+        hosts.put("b", new InetAddress[]{dead, InetAddress.getByName("127.0.0.4")});
+
+        /* The address that can't be connected to is skipped */
+        assertEquals(first, selector.select("a", port, 0, TIMEOUT));
+        assertEquals(first, selector.select("a", port, 1, TIMEOUT));
+
+        /* None can be connected to, the client tries them itself */
+        assertNull(selector.select("b", port, 0, TIMEOUT));
+    }
+
+    @Test
+    public void testConcurrentSelect() throws Exception
+    {
+        hosts.put("a", new InetAddress[]{first, second});
+
+        /* The connections wait for the same race instead of racing one by one */
+        List<Thread> threads = new ArrayList<>();
+        InetAddress[] selected = new InetAddress[4];
+        for (int i = 0; i < selected.length; i++) {
+            int slot = i;
+            Thread t = new Thread(() -> selected[slot] = selector.select("a", port, slot, TIMEOUT));
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        for (int i = 0; i < selected.length; i++)
+            assertTrue(selected[i] == first || selected[i] == second);
+        assertEquals(selected[0], selected[2]);
+        assertEquals(selected[1], selected[3]);
+        assertTrue(selected[0] != selected[1]);
+    }
+
+    @Test
+    public void testInterleave() throws Exception
+    {
+        InetAddress v6a = InetAddress.getByName("2001:db8::1");
+        InetAddress v6b = InetAddress.getByName("2001:db8::2");
+        InetAddress v4a = InetAddress.getByName("192.0.2.1");
+        InetAddress v4b = InetAddress.getByName("192.0.2.2");
+        InetAddress v4c = InetAddress.getByName("192.0.2.3");
+
+        /* Starts with the family of the first address */
+        List<InetAddress> order = AddressSelector.interleave(
+                new InetAddress[]{v6a, v6b, v4a, v4b, v4c});
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b, v4c), order);
+
+        order = AddressSelector.interleave(new InetAddress[]{v4a, v4b, v6a});
+        assertEquals(Arrays.asList(v4a, v6a, v4b), order);
+
+        /* The single family keeps the resolver order */
+        order = AddressSelector.interleave(new InetAddress[]{v4c, v4a, v4b});
+        assertEquals(Arrays.asList(v4c, v4a, v4b), order);
+    }
+}
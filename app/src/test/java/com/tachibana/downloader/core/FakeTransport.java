@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * The in-process server: answers the requests with the responses set for their URLs
+ */
+
+public class FakeTransport implements Transport
+{
+    private final HashMap<String, Response> responses = new HashMap<>();
+    public final List<FakeExchange> exchanges = new ArrayList<>();
+
+    public static class Response
+    {
+        final int code;
+        final HashMap<String, String> headers = new HashMap<>();
+        final byte[] body;
+
+        public Response(int code, byte[] body)
+        {
+            this.code = code;
+            this.body = body;
+        }
+
+        public Response header(String name, String value)
+        {
+            headers.put(name.toLowerCase(), value);
+
+            return this;
+        }
+    }
+
+    public void setResponse(@NonNull String url, @NonNull Response response)
+    {
+        responses.put(url, response);
+    }
+
+    @NonNull
+    @Override
+    public Exchange newExchange(@NonNull URL url, @Nullable InetAddress address, int timeout)
+    {
+        FakeExchange exchange = new FakeExchange(url, responses.get(url.toString()));
+        exchanges.add(exchange);
+
+        return exchange;
+    }
+
+    public static class FakeExchange implements Exchange
+    {
+        private final URL url;
+        private final Response response;
+        public String method = "GET";
+        public final HashMap<String, String> requestHeaders = new HashMap<>();
+        public boolean cancelled;
+
+        FakeExchange(URL url, Response response)
+        {
+            this.url = url;
+            this.response = response;
+        }
+
+        @Override
+        public URL getUrl()
+        {
+            return url;
+        }
+
+        @Override
+        public void setMethod(@NonNull String method)
+        {
+            this.method = method;
+        }
+
+        @Override
+        public void setRequestHeader(@NonNull String name, String value)
+        {
+            requestHeaders.put(name.toLowerCase(), value);
+        }
+
+        @Override
+        public void addRequestHeader(@NonNull String name, String value)
+        {
+            String prev = requestHeaders.get(name.toLowerCase());
+            requestHeaders.put(name.toLowerCase(), (prev == null ? value : prev + ", " + value));
+        }
+
+        @Override
+        public String getRequestHeader(@NonNull String name)
+        {
+            return requestHeaders.get(name.toLowerCase());
+        }
+
+        @Override
+        public int getResponseCode() throws IOException
+        {
+            if (response == null)
+                throw new IOException("Connection refused: " + url);
+
+            return response.code;
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException
+        {
+            return String.valueOf(getResponseCode());
+        }
+
+        @Override
+        public String getHeaderField(@NonNull String name)
+        {
+            return (response == null ? null : response.headers.get(name.toLowerCase()));
+        }
+
+        @Override
+        public int getHeaderFieldInt(@NonNull String name, int defaultValue)
+        {
+            try {
+                return Integer.parseInt(getHeaderField(name));
+
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return getHeaderField("Content-Type");
+        }
+
+        @Override
+        public InputStream getBody() throws IOException
+        {
+            getResponseCode();
+
+            return new ByteArrayInputStream(response.body);
+        }
+
+        @Override
+        public InputStream getErrorBody()
+        {
+            return null;
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+// TODO: needs Java 9
+@Config(sdk = Build.VERSION_CODES.P)
+public class HttpConnectionTest
+{
+    private FakeTransport transport = new FakeTransport();
+    private List<String> events = new ArrayList<>();
+
+    private HttpConnection.Listener listener = new HttpConnection.Listener() {
+        @Override
+        public void onConnectionCreated(Exchange conn)
+        {
+            conn.setRequestHeader("User-Agent", "test");
+        }
+
+        @Override
+        public void onResponseHandle(Exchange conn, int code, String message)
+        {
+            events.add("response " + code + " " + conn.getUrl());
+        }
+
+        @Override
+        public void onMovedPermanently(String newUrl)
+        {
+            events.add("moved " + newUrl);
+        }
+
+        @Override
+        public void onIOException(IOException e)
+        {
+            events.add("error");
+        }
+
+        @Override
+        public void onTooManyRedirects()
+        {
+            events.add("too many redirects");
+        }
+    };
+
+    @Before
+    public void init()
+    {
+        transport.setResponse("http://127.0.0.1/file",
+                new FakeTransport.Response(HttpURLConnection.HTTP_MOVED_PERM, new byte[0])
+                        .header("Location", "/moved"));
+        transport.setResponse("http://127.0.0.1/moved",
+                new FakeTransport.Response(HttpURLConnection.HTTP_MOVED_TEMP, new byte[0])
+                        .header("Location", "http://127.0.0.2/file"));
+        transport.setResponse("http://127.0.0.2/file",
+                new FakeTransport.Response(HttpURLConnection.HTTP_OK, new byte[]{1, 2, 3}));
+        transport.setResponse("http://127.0.0.1/loop",
+                new FakeTransport.Response(HttpURLConnection.HTTP_MOVED_TEMP, new byte[0])
+                        .header("Location", "/loop"));
+    }
+
+    private HttpConnection makeConnection(String url) throws Exception
+    {
+        HttpConnection connection = new HttpConnection(url);
+        connection.setTransport(transport);
+        connection.setCookies(null);
+        connection.setListener(listener);
+
+        return connection;
+    }
+
+    @Test
+    public void testRedirects() throws Exception
+    {
+        HttpConnection connection = makeConnection("http://127.0.0.1/file");
+        connection.setKeepAlive(true);
+        connection.setReferer("http://example.org");
+        connection.run();
+
+        assertEquals(3, transport.exchanges.size());
+        assertEquals(2, events.size());
+        assertEquals("moved http://127.0.0.1/moved", events.get(0));
+        assertEquals("response 200 http://127.0.0.2/file", events.get(1));
+        assertEquals("http://127.0.0.2/file", connection.getUrl().toString());
+
+        for (FakeTransport.FakeExchange exchange : transport.exchanges) {
+            assertEquals("test", exchange.getRequestHeader("User-Agent"));
+            assertEquals("http://example.org", exchange.getRequestHeader("Referer"));
+        }
+        /* The drained redirects and the handled response stay open */
+        for (FakeTransport.FakeExchange exchange : transport.exchanges)
+            assertFalse(exchange.cancelled);
+    }
+
+    @Test
+    public void testClose() throws Exception
+    {
+        makeConnection("http://127.0.0.1/file").run();
+
+        for (FakeTransport.FakeExchange exchange : transport.exchanges)
+            assertTrue(exchange.cancelled);
+    }
+
+    @Test
+    public void testError() throws Exception
+    {
+        makeConnection("http://127.0.0.1/unknown").run();
+
+        assertEquals(1, events.size());
+        assertEquals("error", events.get(0));
+    }
+
+    @Test
+    public void testTooManyRedirects() throws Exception
+    {
+        makeConnection("http://127.0.0.1/loop").run();
+
+        assertEquals("too many redirects", events.get(events.size() - 1));
+    }
+}
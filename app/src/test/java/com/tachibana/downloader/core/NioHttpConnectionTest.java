@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+// TODO: needs Java 9
+@Config(sdk = Build.VERSION_CODES.P)
+public class NioHttpConnectionTest
+{
+    private ServerSocket server;
+    private volatile String request;
+    private CountDownLatch finished = new CountDownLatch(1);
+    private int code;
+    private Map<String, String> headers;
+    private ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private IOException error;
+
+    private NioHttpConnection.Listener listener = new NioHttpConnection.Listener() {
+        @Override
+        public boolean onResponse(int code, @NonNull String message, @NonNull Map<String, String> headers)
+        {
+            NioHttpConnectionTest.this.code = code;
+            NioHttpConnectionTest.this.headers = headers;
+
+            return true;
+        }
+
+        @Override
+        public void onData(@NonNull ByteBuffer data)
+        {
+            while (data.hasRemaining())
+                body.write(data.get());
+        }
+
+        @Override
+        public void onComplete()
+        {
+            finished.countDown();
+        }
+
+        @Override
+        public void onError(@NonNull IOException e)
+        {
+            error = e;
+            finished.countDown();
+        }
+    };
+
+    @Before
+    public void init() throws IOException
+    {
+        server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @Test
+    public void testResponse() throws Exception
+    {
+        serve("HTTP/1.1 100 Continue\r\n\r\n" +
+              "HTTP/1.1 206 Partial Content\r\n" +
+              "Content-Range: bytes 10-19/100\r\n" +
+              "Content-Length: 10\r\n\r\n" +
+              "0123456789 and the rest isn't the body");
+
+        NioHttpConnection conn = newConnection();
+        conn.setRequestHeader("Range", "bytes=10-19");
+        conn.start();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertNull(error);
+        assertEquals(206, code);
+        assertEquals("bytes 10-19/100", headers.get("content-range"));
+        assertEquals("0123456789", body.toString("UTF-8"));
+        assertTrue(request.startsWith("GET /file?q=1 HTTP/1.1\r\n"));
+        assertTrue(request.contains("\r\nRange: bytes=10-19\r\n"));
+        assertTrue(request.contains("\r\nConnection: close\r\n"));
+    }
+
+    @Test
+    public void testEndOfStream() throws Exception
+    {
+        serve("HTTP/1.1 200 OK\r\n" +
+              "Content-Length: 10\r\n\r\n" +
+              "01234");
+
+        newConnection().start();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(200, code);
+        assertEquals("01234", body.toString("UTF-8"));
+        assertTrue(error instanceof EOFException);
+    }
+
+    @Test
+    public void testBodyUntilClose() throws Exception
+    {
+        serve("HTTP/1.1 200 OK\r\n\r\n" +
+              "0123456789");
+
+        NioHttpConnection conn = newConnection();
+        conn.start();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertNull(error);
+        assertEquals("0123456789", body.toString("UTF-8"));
+    }
+
+    @Test
+    public void testChunked() throws Exception
+    {
+        serve("HTTP/1.1 200 OK\r\n" +
+              "Transfer-Encoding: chunked\r\n" +
+              "Content-Length: 3\r\n\r\n" +
+              "4;name=value\r\n0123\r\n" +
+              "6\r\n456789\r\n" +
+              "0\r\n" +
+              "Trailer: value\r\n\r\n" +
+              "and the rest isn't the body");
+
+        newConnection().start();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertNull(error);
+        assertEquals(200, code);
+        assertEquals("0123456789", body.toString("UTF-8"));
+    }
+
+    @Test
+    public void testChunkedEndOfStream() throws Exception
+    {
+        serve("HTTP/1.1 200 OK\r\n" +
+              "Transfer-Encoding: chunked\r\n\r\n" +
+              "a\r\n01234");
+
+        newConnection().start();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals("01234", body.toString("UTF-8"));
+        assertTrue(error instanceof EOFException);
+    }
+
+    private NioHttpConnection newConnection() throws IOException
+    {
+        URL url = new URL("http://127.0.0.1:" + server.getLocalPort() + "/file?q=1");
+        NioHttpConnection conn = new NioHttpConnection(SelectorLoop.next(), url, 10000);
+        conn.setListener(listener);
+
+        return conn;
+    }
+
+    /*
+     * Send the response after the request is received, then close the connection
+     */
+
+    private void serve(String response)
+    {
+        Thread thread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                InputStream in = socket.getInputStream();
+                StringBuilder sb = new StringBuilder();
+                while (!sb.toString().endsWith("\r\n\r\n"))
+                    sb.append((char)in.read());
+                request = sb.toString();
+
+                OutputStream out = socket.getOutputStream();
+                out.write(response.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+
+            } catch (IOException e) {
+                /* The test fails */
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core;
+
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+// TODO: needs Java 9
+@Config(sdk = Build.VERSION_CODES.P)
+public class OkHttpTransportTest
+{
+    /* Resolved only by the address given to the transport */
+    private static final String PINNED_HOST = "pinned.invalid";
+
+    private MockWebServer server = new MockWebServer();
+    private OkHttpTransport transport;
+
+    @Before
+    public void init() throws Exception
+    {
+        /* HTTP/2 is negotiated with ALPN, as with the real servers */
+        HeldCertificate cert = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("localhost")
+                .addSubjectAlternativeName(PINNED_HOST)
+                .build();
+        HandshakeCertificates serverCerts = new HandshakeCertificates.Builder()
+                .heldCertificate(cert)
+                .build();
+        HandshakeCertificates clientCerts = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(cert.certificate())
+                .build();
+        server.useHttps(serverCerts.sslSocketFactory(), false);
+        server.setProtocols(OkHttpTransport.PROTOCOLS);
+        server.start(InetAddress.getByName("localhost"), 0);
+        transport = new OkHttpTransport(clientCerts.sslSocketFactory(), OkHttpTransport.PROTOCOLS);
+    }
+
+    @After
+    public void shutdown() throws IOException
+    {
+        server.shutdown();
+    }
+
+    @Test
+    public void testMultiplexing() throws Exception
+    {
+        URL url = server.url("/file").url();
+        server.enqueue(new MockResponse().setBody("first"));
+        server.enqueue(new MockResponse().setBody("second"));
+
+        Exchange first = transport.newExchange(url, null, 10000);
+        first.setRequestHeader("Range", "bytes=0-4");
+        Exchange second = transport.newExchange(url, null, 10000);
+        second.setRequestHeader("Range", "bytes=5-10");
+
+        /* Both responses are open at the same time */
+        assertEquals(200, first.getResponseCode());
+        assertEquals(200, second.getResponseCode());
+        assertEquals("first", read(first));
+        assertEquals("second", read(second));
+
+        assertEquals(1, transport.getConnectionCount());
+        /* The streams of one connection */
+        assertEquals(0, server.takeRequest().getSequenceNumber());
+        assertEquals(1, server.takeRequest().getSequenceNumber());
+    }
+
+    @Test
+    public void testAddress() throws Exception
+    {
+        URL url = new URL("https", PINNED_HOST, server.getPort(), "/file");
+        server.enqueue(new MockResponse().setBody("pinned"));
+
+        Exchange exchange = transport.newExchange(url, InetAddress.getByName("localhost"), 10000);
+        assertEquals(200, exchange.getResponseCode());
+        assertEquals("pinned", read(exchange));
+    }
+
+    @Test
+    public void testErrorBody() throws Exception
+    {
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("not found"));
+
+        Exchange exchange = transport.newExchange(server.url("/").url(), null, 10000);
+        assertEquals(404, exchange.getResponseCode());
+        try (InputStream is = exchange.getErrorBody()) {
+            assertEquals('n', is.read());
+        }
+    }
+
+    private String read(Exchange exchange) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        try (InputStream is = exchange.getBody()) {
+            int c;
+            while ((c = is.read()) != -1)
+                sb.append((char)c);
+        }
+
+        return sb.toString();
+    }
+}
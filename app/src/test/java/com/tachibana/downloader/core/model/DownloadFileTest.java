@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.system.FileDescriptorWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloadFileTest
+{
+    private File path;
+    private AtomicInteger numOpens = new AtomicInteger();
+
+    @Before
+    public void init() throws IOException
+    {
+        path = File.createTempFile("download", null);
+    }
+
+    @After
+    public void cleanup()
+    {
+        path.delete();
+    }
+
+    private DownloadFile openFile() throws IOException
+    {
+        return new DownloadFile(() -> {
+            numOpens.incrementAndGet();
+            RandomAccessFile raf = new RandomAccessFile(path, "rw");
+            FileDescriptor fd = raf.getFD();
+
+            return new FileDescriptorWrapper() {
+                @Override
+                public FileDescriptor open(@NonNull String mode)
+                {
+                    return fd;
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    raf.close();
+                }
+            };
+        });
+    }
+
+    @Test
+    public void testPositionalWrites() throws Exception
+    {
+        int pieceSize = 64 * 1024;
+        int numPieces = 4;
+        DownloadFile file = openFile();
+
+        /* The pieces write their chunks at the same time */
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numPieces; i++) {
+            DownloadFile pieceFile = file.acquire();
+            byte value = (byte)(i + 1);
+            Thread t = new Thread(() -> {
+                try {
+                    byte[] chunk = new byte[4096];
+                    Arrays.fill(chunk, value);
+                    long pos = (value - 1) * (long)pieceSize;
+                    for (int off = 0; off < pieceSize; off += chunk.length) {
+                        pieceFile.write(ByteBuffer.wrap(chunk), pos + off);
+                        pieceFile.sync();
+                    }
+
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    pieceFile.release();
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads)
+            t.join();
+        file.release();
+
+        assertEquals(1, numOpens.get());
+        byte[] expected = new byte[pieceSize * numPieces];
+        for (int i = 0; i < numPieces; i++)
+            Arrays.fill(expected, i * pieceSize, (i + 1) * pieceSize, (byte)(i + 1));
+        byte[] actual = new byte[expected.length];
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            assertEquals(expected.length, raf.length());
+            raf.readFully(actual);
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testInterruptedWrite() throws Exception
+    {
+        DownloadFile file = openFile();
+
+        /* The channel isn't closed for the other pieces */
+        Thread.currentThread().interrupt();
+        file.write(ByteBuffer.wrap(new byte[]{1, 2}), 0);
+        assertTrue(Thread.interrupted());
+        file.write(ByteBuffer.wrap(new byte[]{3}), 2);
+        file.sync();
+        file.release();
+
+        assertEquals(1, numOpens.get());
+        assertEquals(3, path.length());
+    }
+
+    @Test
+    public void testRelease() throws Exception
+    {
+        DownloadFile file = openFile();
+        DownloadFile pieceFile = file.acquire();
+
+        /* Open until the last user releases it */
+        file.release();
+        pieceFile.write(ByteBuffer.wrap(new byte[]{1}), 0);
+        pieceFile.release();
+        try {
+            pieceFile.write(ByteBuffer.wrap(new byte[]{1}), 1);
+            fail("The file is closed");
+
+        } catch (ClosedChannelException e) {
+            /* Expected */
+        }
+        assertEquals(1, path.length());
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadQueueTest
+{
+    @Test
+    public void testRoundRobin()
+    {
+        DownloadQueue queue = new DownloadQueue();
+        DownloadQueue.Entry a1 = makeEntry("a", 1, 1, 0);
+        DownloadQueue.Entry a2 = makeEntry("a", 1, 2, 0);
+        DownloadQueue.Entry a3 = makeEntry("a", 1, 3, 0);
+        DownloadQueue.Entry b1 = makeEntry("b", 1, 4, 0);
+        DownloadQueue.Entry c1 = makeEntry("c", 1, 5, 0);
+        queue.push(a3);
+        queue.push(a1);
+        queue.push(a2);
+        queue.push(a1);
+        queue.push(b1);
+        queue.push(c1);
+        assertEquals(5, queue.size());
+
+        assertEquals(a1.id, queue.pop((host) -> true));
+        assertEquals(b1.id, queue.pop((host) -> true));
+        /* The host without free connections is skipped */
+        assertEquals(a2.id, queue.pop((host) -> !host.equals("c")));
+        assertEquals(c1.id, queue.pop((host) -> true));
+        assertNull(queue.pop((host) -> !host.equals("a")));
+        assertEquals(a3.id, queue.pop((host) -> true));
+        assertNull(queue.pop((host) -> true));
+    }
+
+    @Test
+    public void testPriorityPolicy()
+    {
+        DownloadQueue queue = new DownloadQueue(DownloadQueue.PRIORITY);
+        DownloadQueue.Entry low = makeEntry("a", 0, 1, 0);
+        DownloadQueue.Entry normal = makeEntry("a", 1, 2, 0);
+        DownloadQueue.Entry high = makeEntry("b", 2, 3, 0);
+        queue.push(low);
+        queue.push(normal);
+        queue.push(high);
+
+        assertTrue(queue.isAhead(high, normal));
+        assertFalse(queue.isAhead(normal, makeEntry("c", 1, 0, 0)));
+        assertEquals(high.id, queue.peek((host) -> true).id);
+        assertEquals(high.id, queue.pop((host) -> true));
+        assertEquals(normal.id, queue.pop((host) -> true));
+        assertEquals(low.id, queue.pop((host) -> true));
+    }
+
+    @Test
+    public void testChangePriority()
+    {
+        DownloadQueue queue = new DownloadQueue(DownloadQueue.PRIORITY);
+        DownloadQueue.Entry first = makeEntry("a", 1, 1, 0);
+        DownloadQueue.Entry second = makeEntry("a", 1, 2, 0);
+        DownloadQueue.Entry other = makeEntry("b", 1, 3, 0);
+        queue.push(first);
+        queue.push(second);
+        queue.push(other);
+
+        /* Moves ahead of the others, including the ones of the other hosts */
+        assertTrue(queue.setPriority(second.id, 2));
+        assertEquals(3, queue.size());
+        assertEquals(second.id, queue.peek((host) -> true).id);
+        assertFalse(queue.setPriority(UUID.randomUUID(), 2));
+
+        /* And back */
+        assertTrue(queue.setPriority(second.id, 0));
+        assertEquals(first.id, queue.pop((host) -> true));
+        assertEquals(other.id, queue.pop((host) -> true));
+        assertEquals(second.id, queue.pop((host) -> true));
+        assertNull(queue.pop((host) -> true));
+    }
+
+    @Test
+    public void testShortestFirstPolicy()
+    {
+        DownloadQueue queue = new DownloadQueue();
+        DownloadQueue.Entry big = makeEntry("a", 1, 1, 100);
+        DownloadQueue.Entry unknown = makeEntry("a", 1, 2, Long.MAX_VALUE);
+        DownloadQueue.Entry small = makeEntry("b", 1, 3, 10);
+        queue.push(big);
+        queue.push(unknown);
+        queue.push(small);
+
+        /* Reorders the already queued downloads */
+        queue.setPolicy(DownloadQueue.SHORTEST_FIRST);
+        assertEquals(small.id, queue.pop((host) -> true));
+        assertEquals(big.id, queue.pop((host) -> true));
+        queue.remove(unknown.id);
+        assertEquals(0, queue.size());
+        assertNull(queue.pop((host) -> true));
+    }
+
+    @Test
+    public void testReload()
+    {
+        HashMap<UUID, Long> storedTurns = new HashMap<>();
+        DownloadQueue.TurnListener listener = (ids, turn) -> {
+            for (UUID id : ids)
+                storedTurns.put(id, turn);
+        };
+        DownloadQueue queue = new DownloadQueue();
+        queue.setTurnListener(listener);
+        ArrayList<DownloadQueue.Entry> entries = new ArrayList<>();
+        entries.add(makeEntry("a", 1, 1, 0));
+        entries.add(makeEntry("a", 1, 2, 0));
+        entries.add(makeEntry("a", 1, 3, 0));
+        entries.add(makeEntry("b", 1, 4, 0));
+        entries.add(makeEntry("b", 1, 5, 0));
+        entries.add(makeEntry("c", 1, 6, 0));
+        for (DownloadQueue.Entry entry : entries)
+            queue.push(entry);
+
+        /* The host "a" has had its turn, "b" goes next */
+        UUID popped = queue.pop((host) -> true);
+        assertEquals(entries.get(0).id, popped);
+        assertEquals(2, storedTurns.size());
+
+        /* Restart: the downloads are queued again in any order with the stored turns */
+        DownloadQueue reloaded = new DownloadQueue();
+        reloaded.setTurnListener(listener);
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            DownloadQueue.Entry entry = entries.get(i);
+            if (entry.id.equals(popped))
+                continue;
+            Long turn = storedTurns.get(entry.id);
+            reloaded.push(new DownloadQueue.Entry(entry.id, entry.host, entry.priority,
+                    entry.dateAdded, entry.remainingBytes, (turn == null ? 0 : turn)));
+        }
+
+        while (queue.size() > 0) {
+            UUID expected = queue.pop((host) -> true);
+            assertEquals(expected, reloaded.pop((host) -> true));
+        }
+        assertEquals(0, reloaded.size());
+    }
+
+    private DownloadQueue.Entry makeEntry(String host, int priority, long dateAdded, long remainingBytes)
+    {
+        return new DownloadQueue.Entry(UUID.randomUUID(), host, priority, dateAdded, remainingBytes);
+    }
+}
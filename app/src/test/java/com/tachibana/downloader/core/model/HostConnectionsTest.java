@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class HostConnectionsTest
+{
+    @Test
+    public void testAcquire()
+    {
+        HostConnections connections = new HostConnections();
+        UUID id1 = UUID.randomUUID();
+        UUID id2 = UUID.randomUUID();
+        UUID id3 = UUID.randomUUID();
+
+        assertEquals(10, connections.acquire(id1, "a", 10, 16));
+        assertEquals(6, connections.getFree("a", 16));
+        /* Gets only the rest of the connections */
+        assertEquals(6, connections.acquire(id2, "a", 10, 16));
+        assertEquals(0, connections.acquire(id3, "a", 1, 16));
+        assertEquals(16, connections.getFree("b", 16));
+
+        connections.release(id1);
+        assertEquals(10, connections.getFree("a", 16));
+    }
+}
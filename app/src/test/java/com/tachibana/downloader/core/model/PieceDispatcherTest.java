@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import com.tachibana.downloader.core.model.data.StatusCode;
+import com.tachibana.downloader.core.model.data.entity.DownloadBlocks;
+import com.tachibana.downloader.core.model.data.entity.DownloadPiece;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.tachibana.downloader.core.model.PieceDispatcher.MIN_SPLIT_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+// TODO: needs Java 9
+@Config(sdk = Build.VERSION_CODES.P)
+public class PieceDispatcherTest
+{
+    private UUID infoId = UUID.randomUUID();
+
+    @Test
+    public void testPollPending()
+    {
+        List<DownloadPiece> pieces = makePieces(6, 10);
+        pieces.get(2).statusCode = StatusCode.STATUS_SUCCESS;
+        PieceDispatcher dispatcher = new PieceDispatcher(pieces, null);
+        assertEquals(5, dispatcher.numPending());
+
+        /* The start of the longest run */
+        assertEquals(3, dispatcher.pollPending());
+        /* The run that isn't followed by a running piece */
+        assertEquals(0, dispatcher.pollPending());
+        assertEquals(1, dispatcher.pollPending());
+        /* The middle of the run that follows a running piece */
+        assertEquals(5, dispatcher.pollPending());
+        assertEquals(4, dispatcher.pollPending());
+        assertEquals(-1, dispatcher.pollPending());
+        assertEquals(0, dispatcher.numPending());
+    }
+
+    @Test
+    public void testStream()
+    {
+        List<DownloadPiece> pieces = makePieces(4, 10);
+        /* Resumed from the middle */
+        pieces.get(3).curBytes = 35;
+        PieceDispatcher dispatcher = new PieceDispatcher(pieces, null);
+
+        assertEquals(0, dispatcher.pollPending());
+        assertEquals(29, dispatcher.getStreamEnd(10));
+        assertEquals(-1, dispatcher.getStreamEnd(15));
+
+        DownloadPiece piece = dispatcher.claimAt(10);
+        assertNotNull(piece);
+        assertEquals(1, piece.index);
+        assertNull(dispatcher.claimAt(10));
+        assertNull(dispatcher.claimAt(15));
+        assertEquals(2, dispatcher.claimAt(20).index);
+
+        /* The resumed piece continues from its current position only */
+        assertEquals(-1, dispatcher.getStreamEnd(30));
+        assertNull(dispatcher.claimAt(30));
+        assertEquals(39, dispatcher.getStreamEnd(35));
+        assertEquals(3, dispatcher.claimAt(35).index);
+        assertEquals(-1, dispatcher.pollPending());
+    }
+
+    @Test
+    public void testSplit()
+    {
+        List<DownloadPiece> pieces = makePieces(1, 8 * MIN_SPLIT_SIZE);
+        PieceDispatcher dispatcher = new PieceDispatcher(pieces, null);
+        assertEquals(0, dispatcher.pollPending());
+
+        FakeThread running = new FakeThread(pieces.get(0));
+        FakeThread idle = new FakeThread(null);
+        dispatcher.addThread(running);
+        dispatcher.addThread(idle);
+
+        /* A thread doesn't split its own piece */
+        dispatcher.removeThread(idle);
+        assertEquals(-1, dispatcher.nextPiece(running));
+        dispatcher.addThread(idle);
+
+        /* The second half of the remaining range is cut off into a new piece */
+        running.pos = 2 * MIN_SPLIT_SIZE;
+        assertEquals(1, dispatcher.nextPiece(idle));
+        assertEquals(1, running.saved.index);
+        assertEquals(5 * MIN_SPLIT_SIZE, running.saved.startPos);
+        assertEquals(3 * MIN_SPLIT_SIZE, running.saved.size);
+        assertEquals(5 * MIN_SPLIT_SIZE, running.end);
+
+        /* The largest remaining range is split first */
+        running.pos = 4 * MIN_SPLIT_SIZE;
+        idle.piece = running.saved;
+        idle.end = idle.piece.startPos + idle.piece.size;
+        idle.pos = idle.piece.startPos;
+        FakeThread other = new FakeThread(null);
+        dispatcher.addThread(other);
+        assertEquals(2, dispatcher.nextPiece(other));
+        assertEquals(2, idle.saved.index);
+        assertEquals(13 * MIN_SPLIT_SIZE / 2, idle.saved.startPos);
+
+        /* The remaining ranges are too small */
+        running.pos = running.end - 2 * MIN_SPLIT_SIZE + 1;
+        idle.pos = idle.end - MIN_SPLIT_SIZE;
+        other.piece = idle.saved;
+        other.end = other.piece.startPos + other.piece.size;
+        other.pos = other.end - 1;
+        assertFalse(dispatcher.hasWork());
+        assertEquals(-1, dispatcher.nextPiece(new FakeThread(null)));
+    }
+
+    @Test
+    public void testSplit_saveFailed()
+    {
+        List<DownloadPiece> pieces = makePieces(1, 4 * MIN_SPLIT_SIZE);
+        PieceDispatcher dispatcher = new PieceDispatcher(pieces, null);
+        assertEquals(0, dispatcher.pollPending());
+
+        FakeThread running = new FakeThread(pieces.get(0));
+        running.saveResult = false;
+        dispatcher.addThread(running);
+
+        /* Download deleted or missing */
+        assertEquals(-1, dispatcher.nextPiece(null));
+        assertNotNull(running.saved);
+        /* The index of the piece that isn't saved is taken anyway */
+        running.saveResult = true;
+        running.splitFinished();
+        assertEquals(2, dispatcher.nextPiece(null));
+    }
+
+    @Test
+    public void testPendingBeforeSplit()
+    {
+        List<DownloadPiece> pieces = makePieces(2, 4 * MIN_SPLIT_SIZE);
+        PieceDispatcher dispatcher = new PieceDispatcher(pieces, null);
+        assertEquals(0, dispatcher.pollPending());
+        dispatcher.addThread(new FakeThread(pieces.get(0)));
+
+        assertTrue(dispatcher.hasWork());
+        assertEquals(1, dispatcher.nextPiece(null));
+        assertEquals(0, dispatcher.numPending());
+        /* The running piece can still be split */
+        assertTrue(dispatcher.hasWork());
+    }
+
+    @Test
+    public void testEndgame()
+    {
+        PieceDispatcher dispatcher = new PieceDispatcher(makePieces(2, MIN_SPLIT_SIZE), null);
+        FakeThread fast = new FakeThread(null);
+        fast.eta = 1000;
+        FakeThread slow = new FakeThread(null);
+        slow.eta = 5000;
+        FakeThread idle = new FakeThread(null);
+        dispatcher.addThread(fast);
+        dispatcher.addThread(slow);
+        dispatcher.addThread(idle);
+
+        /* The piece that is expected to finish last is duplicated first */
+        assertNotNull(dispatcher.nextDuplicate(idle));
+        assertSame(idle, slow.attached);
+        assertNotNull(dispatcher.nextDuplicate(slow));
+        assertSame(slow, fast.attached);
+        /* Each piece is duplicated only once */
+        assertNull(dispatcher.nextDuplicate(new FakeThread(null)));
+    }
+
+    @Test
+    public void testReconnectStalled()
+    {
+        PieceDispatcher dispatcher = new PieceDispatcher(new ArrayList<>(), null);
+        FakeThread stalled = new FakeThread(null);
+        stalled.transferSpeed = 200;
+        FakeThread slow = new FakeThread(null);
+        /* Below the floor, but not much slower than the others */
+        slow.transferSpeed = PieceDispatcher.STALLED_SPEED - 1;
+        FakeThread fast = new FakeThread(null);
+        fast.transferSpeed = 5 * PieceDispatcher.STALLED_SPEED;
+        FakeThread starting = new FakeThread(null);
+        starting.transferSpeed = -1;
+        dispatcher.addThread(stalled);
+        dispatcher.addThread(slow);
+        dispatcher.addThread(fast);
+        dispatcher.addThread(starting);
+
+        /* The median is the speed of the slow thread */
+        dispatcher.reconnectStalled();
+        assertFalse(stalled.reconnected);
+        assertFalse(slow.reconnected);
+
+        fast.transferSpeed = 100 * PieceDispatcher.STALLED_SPEED;
+        FakeThread faster = new FakeThread(null);
+        faster.transferSpeed = 100 * PieceDispatcher.STALLED_SPEED;
+        dispatcher.addThread(faster);
+        dispatcher.reconnectStalled();
+        assertTrue(stalled.reconnected);
+        assertTrue(slow.reconnected);
+        assertFalse(fast.reconnected);
+        assertFalse(starting.reconnected);
+
+        /* A single connection has nothing to compare with */
+        dispatcher = new PieceDispatcher(new ArrayList<>(), null);
+        FakeThread single = new FakeThread(null);
+        single.transferSpeed = 100;
+        dispatcher.addThread(single);
+        dispatcher.reconnectStalled();
+        assertTrue(single.reconnected);
+    }
+
+    @Test
+    public void testMaxThreads()
+    {
+        PieceDispatcher dispatcher = new PieceDispatcher(new ArrayList<>(), null);
+        FakeThread first = new FakeThread(null);
+        FakeThread second = new FakeThread(null);
+        dispatcher.addThread(first);
+        dispatcher.addThread(second);
+        assertFalse(dispatcher.retire(first));
+
+        dispatcher.setMaxThreads(1);
+        assertTrue(dispatcher.hasExcessThreads());
+        assertTrue(dispatcher.retire(first));
+        assertFalse(dispatcher.retire(second));
+        assertEquals(1, dispatcher.numThreads());
+    }
+
+    @Test
+    public void testBlocks()
+    {
+        long blockSize = DownloadBlocks.BLOCK_SIZE;
+        List<DownloadPiece> pieces = makePieces(2, 2 * blockSize);
+        PieceDispatcher dispatcher = new PieceDispatcher(pieces,
+                new DownloadBlocks(infoId, 4 * blockSize));
+        assertNull(dispatcher.takeChangedBlocks());
+
+        /* Only whole blocks are marked */
+        dispatcher.markDone(0, blockSize - 1);
+        assertNull(dispatcher.takeChangedBlocks());
+        assertEquals(0, dispatcher.skipDone(0, 2 * blockSize - 1));
+
+        dispatcher.markDone(0, blockSize);
+        DownloadBlocks changed = dispatcher.takeChangedBlocks();
+        assertNotNull(changed);
+        assertEquals(1, changed.countDone());
+        assertNull(dispatcher.takeChangedBlocks());
+        assertEquals(blockSize, dispatcher.skipDone(0, 2 * blockSize - 1));
+        assertEquals(blockSize, dispatcher.skipDone(10, 2 * blockSize - 1));
+
+        /* The copy doesn't change with the dispatcher */
+        dispatcher.markDone(blockSize, 2 * blockSize);
+        assertEquals(1, changed.countDone());
+        assertEquals(2 * blockSize, dispatcher.skipDone(0, 2 * blockSize - 1));
+
+        /* The size is unknown */
+        dispatcher = new PieceDispatcher(pieces, null);
+        dispatcher.markDone(0, blockSize);
+        assertNull(dispatcher.takeChangedBlocks());
+        assertEquals(0, dispatcher.skipDone(0, 2 * blockSize - 1));
+    }
+
+    @Test
+    public void testConnectionNumbers()
+    {
+        PieceDispatcher dispatcher = new PieceDispatcher(makePieces(4, 10), null);
+        FakeThread first = new FakeThread(null);
+        FakeThread second = new FakeThread(null);
+        FakeThread third = new FakeThread(null);
+        dispatcher.addThread(first);
+        dispatcher.addThread(second);
+        dispatcher.addThread(third);
+        assertEquals(0, first.getConnectionNumber());
+        assertEquals(1, second.getConnectionNumber());
+        assertEquals(2, third.getConnectionNumber());
+
+        /* The added thread takes the number of the finished one */
+        dispatcher.removeThread(second);
+        FakeThread added = new FakeThread(null);
+        dispatcher.addThread(added);
+        assertEquals(1, added.getConnectionNumber());
+    }
+
+    private List<DownloadPiece> makePieces(int num, long size)
+    {
+        ArrayList<DownloadPiece> pieces = new ArrayList<>(num);
+        for (int i = 0; i < num; i++)
+            pieces.add(new DownloadPiece(infoId, i, size, i * size));
+
+        return pieces;
+    }
+
+    /*
+     * Replaces the running piece of the thread; nothing is downloaded
+     */
+
+    private class FakeThread extends PieceThreadImpl
+    {
+        DownloadPiece piece;
+        /* The current position and the end (exclusive) of the running piece */
+        long pos;
+        long end;
+        DownloadPiece saved;
+        boolean splitting;
+        boolean saveResult = true;
+        long eta = -1;
+        PieceThreadImpl attached;
+        long transferSpeed = -1;
+        boolean reconnected;
+
+        FakeThread(DownloadPiece piece)
+        {
+            super(infoId, (piece == null ? -1 : piece.index), null, null, null, null);
+
+            this.piece = piece;
+            if (piece != null) {
+                pos = piece.curBytes;
+                end = piece.startPos + piece.size;
+            }
+        }
+
+        void splitFinished()
+        {
+            splitting = false;
+        }
+
+        @Override
+        long getRemainingBytes()
+        {
+            return (piece == null || splitting ? 0 : end - pos);
+        }
+
+        @Override
+        DownloadPiece cutRemaining(int newIndex, long minSize)
+        {
+            long remaining = getRemainingBytes();
+            if (remaining < 2 * minSize)
+                return null;
+
+            long newStartPos = pos + remaining / 2;
+            DownloadPiece newPiece = new DownloadPiece(infoId, newIndex, end - newStartPos, newStartPos);
+            end = newStartPos;
+            splitting = true;
+
+            return newPiece;
+        }
+
+        @Override
+        boolean saveSplit(@NonNull DownloadPiece newPiece)
+        {
+            saved = newPiece;
+            if (saveResult)
+                splitting = false;
+
+            return saveResult;
+        }
+
+        @Override
+        long getDuplicateEta()
+        {
+            return eta;
+        }
+
+        @Override
+        DownloadPiece attachDuplicate(@NonNull PieceThreadImpl thread)
+        {
+            if (eta == -1)
+                return null;
+            eta = -1;
+            attached = thread;
+
+            return new DownloadPiece(infoId, 0, 1, 0);
+        }
+
+        @Override
+        long getTransferSpeed(long now, long minTransferTime)
+        {
+            return transferSpeed;
+        }
+
+        @Override
+        void reconnect()
+        {
+            reconnected = true;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2019 Tachibana General Laboratories, LLC
+ * Copyright (C) 2019 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpeedLimiterTest
+{
+    @Test
+    public void testUnlimited()
+    {
+        SpeedLimiter limiter = new SpeedLimiter();
+        assertFalse(limiter.isLimited());
+        assertEquals(0, limiter.reserve(1024 * 1024));
+    }
+
+    @Test
+    public void testLimit()
+    {
+        SpeedLimiter limiter = new SpeedLimiter();
+        limiter.setLimit(1024);
+        assertTrue(limiter.isLimited());
+
+        /* The burst is received without waiting */
+        assertEquals(0, limiter.reserve(256));
+        /* 2 s of data at once */
+        long delay = limiter.reserve(2048);
+        long expected = TimeUnit.MILLISECONDS.toNanos(2250) - SpeedLimiter.BURST_TIME;
+        assertTrue(delay <= expected);
+        assertTrue(delay > expected - TimeUnit.MILLISECONDS.toNanos(200));
+
+        /* The debt of the old limit is forgiven */
+        limiter.setLimit(2048);
+        assertEquals(0, limiter.reserve(512));
+    }
+
+    @Test
+    public void testParent()
+    {
+        SpeedLimiter global = new SpeedLimiter();
+        SpeedLimiter download = new SpeedLimiter(global);
+        assertFalse(download.isLimited());
+
+        global.setLimit(1024);
+        assertTrue(download.isLimited());
+        assertTrue(download.reserve(4096) > 0);
+        /* The parent is shared with the other limiters */
+        assertTrue(new SpeedLimiter(global).reserve(1) > 0);
+    }
+
+    @Test
+    public void testLimitLessThanBuffer()
+    {
+        SpeedLimiter parent = new SpeedLimiter();
+        SpeedLimiter limiter = new SpeedLimiter(parent);
+        assertEquals(65536, limiter.getMaxRead(65536));
+
+        /* Reading the whole buffer at 1 KiB/s would mean waiting about a minute */
+        limiter.setLimit(1024);
+        int len = limiter.getMaxRead(65536);
+        assertEquals(512, len);
+        assertEquals(0, limiter.reserve(len));
+        /* The next read waits no longer than the burst */
+        long delay = limiter.reserve(len);
+        assertTrue(delay > 0);
+        assertTrue(delay <= SpeedLimiter.BURST_TIME);
+
+        /* The lower limit of the parent */
+        parent.setLimit(100);
+        assertEquals(50, limiter.getMaxRead(65536));
+        /* At least one byte */
+        parent.setLimit(1);
+        assertEquals(1, limiter.getMaxRead(65536));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 Tachibana General Laboratories, LLC
+ * Copyright (C) 2020 Yaroslav Pronin <proninyaroslav@mail.ru>
+ *
+ * This file is part of Download Navi.
+ *
+ * Download Navi is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Download Navi is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Download Navi.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.tachibana.downloader.core.model.data.entity;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadBlocksTest
+{
+    private long blockSize = DownloadBlocks.BLOCK_SIZE;
+    /* The last block is smaller than the others */
+    private DownloadBlocks blocks = new DownloadBlocks(UUID.randomUUID(), 10 * blockSize + 5);
+
+    @Test
+    public void testMarkDone()
+    {
+        assertEquals(11, blocks.getNumBlocks());
+        assertEquals(2, blocks.bitmap.length);
+
+        /* Only whole blocks are marked */
+        assertFalse(blocks.markDone(1, blockSize + 1));
+        assertTrue(blocks.markDone(0, 2 * blockSize));
+        assertTrue(blocks.isDone(0));
+        assertTrue(blocks.isDone(1));
+        assertFalse(blocks.isDone(2));
+        assertFalse(blocks.markDone(0, 2 * blockSize));
+
+        /* The last block */
+        assertFalse(blocks.markDone(10 * blockSize, 10 * blockSize + 4));
+        assertTrue(blocks.markDone(10 * blockSize, 10 * blockSize + 5));
+        assertTrue(blocks.isDone(10));
+        assertEquals(3, blocks.countDone());
+    }
+
+    @Test
+    public void testSkipDone()
+    {
+        blocks.markDone(0, 2 * blockSize);
+        blocks.markDone(3 * blockSize, 4 * blockSize);
+
+        assertEquals(2 * blockSize, blocks.skipDone(0, 10 * blockSize));
+        assertEquals(2 * blockSize, blocks.skipDone(blockSize + 10, 10 * blockSize));
+        assertEquals(2 * blockSize + 10, blocks.skipDone(2 * blockSize + 10, 10 * blockSize));
+        assertEquals(4 * blockSize, blocks.skipDone(3 * blockSize, 10 * blockSize));
+        /* The whole range is downloaded */
+        assertEquals(blockSize, blocks.skipDone(0, blockSize - 1));
+    }
+
+    @Test
+    public void testConfirmedPos()
+    {
+        blocks.markDone(0, 2 * blockSize);
+        blocks.markDone(3 * blockSize, 10 * blockSize + 5);
+
+        assertEquals(2 * blockSize, blocks.getConfirmedPos(0, 3 * blockSize));
+        assertEquals(2 * blockSize, blocks.getConfirmedPos(10, 3 * blockSize));
+        /* The partial blocks at the edges aren't checked */
+        assertEquals(2 * blockSize + 10, blocks.getConfirmedPos(0, 2 * blockSize + 10));
+        assertEquals(3 * blockSize - 1, blocks.getConfirmedPos(2 * blockSize + 1, 3 * blockSize - 1));
+        assertEquals(10 * blockSize + 5, blocks.getConfirmedPos(3 * blockSize, 10 * blockSize + 5));
+    }
+}
@@ -111,6 +111,50 @@ public class DownloadInfoTest
                 });
     }
 
+    @Test
+    public void makeSegmentsTest()
+    {
+        long segmentSize = DownloadInfo.SEGMENT_SIZE;
+
+        /* More segments than connections */
+        info.totalBytes = 10 * segmentSize + 5;
+        info.setNumPieces(2);
+        List<DownloadPiece> pieces = info.makePieces();
+        assertEquals(10, pieces.size());
+        assertEquals(0, info.pieceStartPos(pieces.get(0)));
+        assertEquals(segmentSize - 1, info.pieceEndPos(pieces.get(0)));
+        assertEquals(9 * segmentSize, info.pieceStartPos(pieces.get(9)));
+        assertEquals(info.totalBytes - 1, info.pieceEndPos(pieces.get(9)));
+
+        /* The number of segments is limited */
+        info.totalBytes = 4 * DownloadInfo.MAX_SEGMENTS * segmentSize;
+        assertEquals(DownloadInfo.MAX_SEGMENTS, info.makePieces().size());
+
+        /* Without partial download the file can't be split */
+        info.setNumPieces(1);
+        info.partialSupport = false;
+        assertEquals(1, info.makePieces().size());
+    }
+
+    @Test
+    public void splitPieceTest()
+    {
+        info.totalBytes = 1024;
+        info.setNumPieces(2);
+        List<DownloadPiece> pieces = info.makePieces();
+
+        /* Cut off the second half of the last piece */
+        DownloadPiece piece = pieces.get(1);
+        DownloadPiece newPiece = new DownloadPiece(info.id, 2, 256, 768);
+        piece.size -= newPiece.size;
+
+        assertEquals(512, info.pieceStartPos(piece));
+        assertEquals(767, info.pieceEndPos(piece));
+        assertEquals(768, info.pieceStartPos(newPiece));
+        assertEquals(1023, info.pieceEndPos(newPiece));
+        assertEquals(0, info.getDownloadedBytes(newPiece));
+    }
+
     private void checkPiecesAlignment(DownloadInfo info, long[][] testAlignment) throws IllegalArgumentException
     {
         List<DownloadPiece> pieces = info.makePieces();